@@ -0,0 +1,146 @@
+package com.irhammuch.android.facerecognition;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link FaceGallery} enrolled into from one thread while others search it, without either
+ * side waiting on the other.
+ *
+ * Writes go to the wrapped gallery under a lock and then publish a new {@link GallerySnapshot}
+ * that only copies the segments the write touched. Searches, whatever the gallery size, scan
+ * whatever snapshot was published last, without locking; a search running while a person is
+ * enrolled simply doesn't see them yet. The graph index of the wrapped gallery, if any, is not
+ * used.
+ *
+ * A {@link GalleryFile} passed in keeps journaling the writes, but only queues their records
+ * under the lock; they are written to disk once the snapshot is published and the lock is
+ * released. Only the rare rewrite of the whole file runs under the lock, it needs the gallery
+ * to hold still.
+ *
+ * The wrapped gallery must not be changed directly once wrapped.
+ */
+public class ConcurrentGallery {
+
+    private final FaceGallery gallery;
+    @Nullable
+    private final GalleryFile file;
+    private volatile GallerySnapshot snapshot;
+
+    public ConcurrentGallery(FaceGallery gallery) {
+        this(gallery, null);
+    }
+
+    /** @param file the file {@code gallery} was opened from, or null when it isn't saved */
+    public ConcurrentGallery(FaceGallery gallery, @Nullable GalleryFile file) {
+        this.gallery = gallery;
+        this.file = file;
+        this.snapshot = GallerySnapshot.of(gallery);
+        if (file != null) {
+            file.setDeferred(true);
+        }
+    }
+
+    /** The latest published entries, to search from any thread. */
+    public GallerySnapshot snapshot() {
+        return snapshot;
+    }
+
+    /** Finds the entry closest to {@code query} in the latest snapshot, see {@link GallerySnapshot}. */
+    public boolean findNearest(float[] query, FaceGallery.Match out) {
+        return snapshot.findNearest(query, out);
+    }
+
+    /** Finds the entries closest to {@code query} in the latest snapshot, see {@link GallerySnapshot}. */
+    public int findNearest(float[] query, FaceGallery.Matches out) {
+        return snapshot.findNearest(query, out);
+    }
+
+    public int add(String label, float[] embedding) {
+        int id;
+        synchronized (this) {
+            id = gallery.add(label, embedding);
+            publish(Collections.singletonList(id));
+        }
+        flush();
+        return id;
+    }
+
+    public boolean remove(int id) {
+        synchronized (this) {
+            if (!gallery.remove(id)) {
+                return false;
+            }
+            publish(Collections.singletonList(id));
+        }
+        flush();
+        return true;
+    }
+
+    /** Replaces every entry labeled {@code label}, see {@link FaceGallery#replace}. */
+    public void replace(String label, List<float[]> embeddings) {
+        for (float[] embedding : embeddings) {
+            if (embedding.length != gallery.dimension()) {
+                throw new IllegalArgumentException(
+                        "Embedding has " + embedding.length + " values, gallery expects " + gallery.dimension());
+            }
+        }
+        synchronized (this) {
+            List<Integer> changed = new ArrayList<>();
+            snapshot.idsOf(label, changed);
+            for (int id : changed) {
+                gallery.remove(id);
+            }
+            for (float[] embedding : embeddings) {
+                changed.add(gallery.add(label, embedding));
+            }
+            publish(changed);
+        }
+        flush();
+    }
+
+    /** Removes every entry labeled {@code label} and returns how many there were. */
+    public int removeAll(String label) {
+        List<Integer> removed = new ArrayList<>();
+        synchronized (this) {
+            snapshot.idsOf(label, removed);
+            for (int id : removed) {
+                gallery.remove(id);
+            }
+            publish(removed);
+        }
+        flush();
+        return removed.size();
+    }
+
+    /** Removes every entry. */
+    public void clear() {
+        synchronized (this) {
+            gallery.clear();
+            snapshot = GallerySnapshot.of(gallery);
+        }
+        flush();
+    }
+
+    private void publish(List<Integer> changedIds) {
+        if (!changedIds.isEmpty()) {
+            snapshot = snapshot.with(gallery, changedIds);
+        }
+    }
+
+    /** Writes the journal records queued by the last write, outside the lock. */
+    private void flush() {
+        if (file == null) {
+            return;
+        }
+        file.flush();
+        if (file.isRewriteDue()) {
+            synchronized (this) {
+                file.rewriteIfDue(gallery);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs MobileFaceNet on 112x112 face crops.
+ *
+ * Input buffers, pixel scratch and output arrays are allocated once per calling thread and
+ * reused afterwards, so the steady state recognition path does not allocate. The arrays handed
+ * out by {@link #inputBuffer()} and {@link #run()} belong to the calling thread and are
+ * overwritten by its next call: copy an embedding before keeping it.
+ *
+ * Several crops can be embedded with a single invocation through {@link #extractBatch} or
+ * {@link #batchInput} / {@link #runBatch}; the interpreter input is then resized to
+ * [N,112,112,3]. N is rounded up to a power of two, at most the max batch size, and the batch
+ * padded with blank crops, so the interpreter only reallocates its tensors (and a GPU delegate
+ * only re-delegates) for a handful of sizes instead of for every face count. Models with a
+ * fixed batch dimension fall back to one invocation per crop.
+ *
+ * Float32 and int8 / uint8 quantized models are supported, the tensor types and quantization
+ * parameters are read from the interpreter, see {@link TensorFormat}. Crops written into the
+ * input buffers directly have to be encoded with {@link #format()}.
+ */
+public class EmbeddingExtractor {
+
+    private static final String TAG = "EmbeddingExtractor";
+
+    public static final int INPUT_SIZE = 112;
+    public static final int OUTPUT_SIZE = 192;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+
+    private final Interpreter tfLite;
+    private final TensorFormat format;
+    private final int maxBatchSize;
+
+    // Batch size the interpreter input is currently resized to, guarded by tfLite.
+    private int currentBatchSize = 1;
+    private boolean batchSupported = true;
+    private final int[][] batchShapes;
+
+    private final ThreadLocal<Tensors> tensors = new ThreadLocal<Tensors>() {
+        @Override
+        protected Tensors initialValue() {
+            return new Tensors(format);
+        }
+    };
+
+    private final ThreadLocal<BatchTensors> batchTensors = new ThreadLocal<BatchTensors>() {
+        @Override
+        protected BatchTensors initialValue() {
+            return new BatchTensors(format, maxBatchSize);
+        }
+    };
+
+    /** Pre-allocated input/output set of one worker thread. */
+    private static class Tensors {
+        final ByteBuffer imgData;
+        final int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
+        final Object output;
+        final float[] embedding = new float[OUTPUT_SIZE];
+        final Object[] inputArray;
+        final Map<Integer, Object> outputMap = new HashMap<>();
+
+        Tensors(TensorFormat format) {
+            imgData = ByteBuffer.allocateDirect(format.cropBytes());
+            imgData.order(ByteOrder.nativeOrder());
+            output = format.newOutput(1);
+            inputArray = new Object[]{imgData};
+            outputMap.put(0, output);
+        }
+    }
+
+    /**
+     * Pre-allocated batch set of one worker thread: one direct buffer holding maxBatchSize crops,
+     * a view per crop for filling, a view per batch size for feeding the interpreter and an
+     * output array per batch size. Views and outputs are created on first use of a size.
+     */
+    private static class BatchTensors {
+        final TensorFormat format;
+        final int cropBytes;
+        final ByteBuffer imgData;
+        final ByteBuffer[] cropViews;
+        final ByteBuffer[] batchViews;
+        final Object[] outputs;
+        final Object single;
+        final byte[] blank;
+        final Object[] inputArray = new Object[1];
+        final Map<Integer, Object> outputMap = new HashMap<>();
+
+        BatchTensors(TensorFormat format, int maxBatchSize) {
+            this.format = format;
+            cropBytes = format.cropBytes();
+            imgData = ByteBuffer.allocateDirect(cropBytes * maxBatchSize);
+            imgData.order(ByteOrder.nativeOrder());
+            cropViews = new ByteBuffer[maxBatchSize];
+            batchViews = new ByteBuffer[maxBatchSize + 1];
+            outputs = new Object[maxBatchSize + 1];
+            single = format.newOutput(1);
+            blank = new byte[cropBytes];
+        }
+
+        ByteBuffer cropView(int index) {
+            if (cropViews[index] == null) {
+                cropViews[index] = slice(index * cropBytes, cropBytes);
+            }
+            return cropViews[index];
+        }
+
+        ByteBuffer batchView(int n) {
+            if (batchViews[n] == null) {
+                batchViews[n] = slice(0, n * cropBytes);
+            }
+            return batchViews[n];
+        }
+
+        Object output(int n) {
+            if (outputs[n] == null) {
+                outputs[n] = format.newOutput(n);
+            }
+            return outputs[n];
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer dup = imgData.duplicate();
+            dup.position(offset);
+            dup.limit(offset + length);
+            // slice() resets the byte order, the model expects native order.
+            return dup.slice().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public EmbeddingExtractor(Interpreter tfLite) {
+        this(tfLite, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public EmbeddingExtractor(Interpreter tfLite, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.tfLite = tfLite;
+        this.format = TensorFormat.of(tfLite);
+        this.maxBatchSize = maxBatchSize;
+        this.batchShapes = new int[maxBatchSize + 1][];
+        for (int n = 1; n <= maxBatchSize; n++) {
+            batchShapes[n] = new int[]{n, INPUT_SIZE, INPUT_SIZE, 3};
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /** Encoding of the input buffers and output of the model. */
+    public TensorFormat format() {
+        return format;
+    }
+
+    /** Input buffer of the calling thread, rewound and ready to be filled with a face crop. */
+    public ByteBuffer inputBuffer() {
+        ByteBuffer imgData = tensors.get().imgData;
+        imgData.rewind();
+        return imgData;
+    }
+
+    /** Runs the model on whatever was written into {@link #inputBuffer()}. */
+    public float[] run() {
+        Tensors t = tensors.get();
+        t.imgData.rewind();
+
+        // Interpreter is not thread safe, threads sharing it take turns.
+        synchronized (tfLite) {
+            resizeLocked(1);
+            tfLite.runForMultipleInputsOutputs(t.inputArray, t.outputMap); //Run model
+        }
+
+        format.readOutput(t.output, 0, t.embedding);
+        return t.embedding;
+    }
+
+    /** Normalizes a 112x112 bitmap into the input buffer and runs the model. */
+    public float[] extract(Bitmap bitmap) {
+        Tensors t = tensors.get();
+        t.imgData.rewind();
+        normalize(bitmap, t.intValues, t.imgData, format);
+        return run();
+    }
+
+    /**
+     * Input buffer for crop {@code index} of the next {@link #runBatch} call of the calling
+     * thread, rewound and ready to be filled.
+     */
+    public ByteBuffer batchInput(int index) {
+        if (index < 0 || index >= maxBatchSize) {
+            throw new IndexOutOfBoundsException("Batch index " + index + " of " + maxBatchSize);
+        }
+        ByteBuffer view = batchTensors.get().cropView(index);
+        view.rewind();
+        return view;
+    }
+
+    /**
+     * Runs the model once on the first {@code n} crops written through {@link #batchInput} and
+     * copies embedding i into {@code out[i]}.
+     */
+    public void runBatch(int n, float[][] out) {
+        runBatch(n, out, 0);
+    }
+
+    private void runBatch(int n, float[][] out, int outOffset) {
+        if (n < 1 || n > maxBatchSize) {
+            throw new IllegalArgumentException("Batch of " + n + " exceeds 1.." + maxBatchSize);
+        }
+        BatchTensors t = batchTensors.get();
+        int size = batchSize(n, maxBatchSize);
+
+        synchronized (tfLite) {
+            if (n > 1 && batchSupported) {
+                try {
+                    resizeLocked(size);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    Log.w(TAG, "Model does not accept batched input, running crops one by one", e);
+                    batchSupported = false;
+                }
+            }
+
+            if (n > 1 && batchSupported) {
+                for (int i = n; i < size; i++) {
+                    ByteBuffer padding = t.cropView(i);
+                    padding.rewind();
+                    padding.put(t.blank);
+                }
+                Object embeddings = t.output(size);
+                ByteBuffer input = t.batchView(size);
+                input.rewind();
+                t.inputArray[0] = input;
+                t.outputMap.put(0, embeddings);
+                tfLite.runForMultipleInputsOutputs(t.inputArray, t.outputMap);
+                for (int i = 0; i < n; i++) {
+                    format.readOutput(embeddings, i, out[outOffset + i]);
+                }
+            } else {
+                resizeLocked(1);
+                t.outputMap.put(0, t.single);
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer input = t.cropView(i);
+                    input.rewind();
+                    t.inputArray[0] = input;
+                    tfLite.runForMultipleInputsOutputs(t.inputArray, t.outputMap);
+                    format.readOutput(t.single, 0, out[outOffset + i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the model {@code runs} times at every batch size {@link #runBatch} uses for up to
+     * {@code maxBatch} crops on blank input, so the tensor allocations and buffers of the calling
+     * thread are in place before the first real face.
+     */
+    public void warmUp(int runs, int maxBatch) {
+        int batch = batchSize(Math.max(1, Math.min(maxBatch, maxBatchSize)), maxBatchSize);
+        float[][] out = new float[batch][OUTPUT_SIZE];
+        for (int n = 1; ; n = batchSize(n + 1, maxBatchSize)) {
+            for (int run = 0; run < runs; run++) {
+                runBatch(n, out);
+            }
+            if (n >= batch) {
+                break;
+            }
+        }
+    }
+
+    /** Batch size {@code n} crops are run at: the next power of two, at most {@code maxBatchSize}. */
+    static int batchSize(int n, int maxBatchSize) {
+        int size = Integer.highestOneBit(n);
+        if (size < n) {
+            size <<= 1;
+        }
+        return Math.min(size, maxBatchSize);
+    }
+
+    /**
+     * Embeds 112x112 face bitmaps, maxBatchSize at a time, writing embedding i into
+     * {@code out[i]}.
+     */
+    public void extractBatch(List<Bitmap> faces, float[][] out) {
+        int[] intValues = tensors.get().intValues;
+        int count = faces.size();
+
+        for (int start = 0; start < count; start += maxBatchSize) {
+            int n = Math.min(maxBatchSize, count - start);
+            for (int i = 0; i < n; i++) {
+                normalize(faces.get(start + i), intValues, batchInput(i), format);
+            }
+            runBatch(n, out, start);
+        }
+    }
+
+    private void resizeLocked(int n) {
+        if (currentBatchSize == n) {
+            return;
+        }
+        currentBatchSize = n;
+        tfLite.resizeInput(0, batchShapes[n]);
+        tfLite.allocateTensors();
+
+        // A reshape baked into the graph keeps the output at batch 1, treat it as unsupported.
+        if (tfLite.getOutputTensor(0).shape()[0] != n) {
+            resizeLocked(1);
+            throw new IllegalArgumentException("Output batch does not follow input batch " + n);
+        }
+    }
+
+    private static void normalize(Bitmap bitmap, int[] intValues, ByteBuffer imgData, TensorFormat format) {
+        //get pixel values from Bitmap to normalize
+        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+
+        for (int i = 0; i < INPUT_SIZE; ++i) {
+            for (int j = 0; j < INPUT_SIZE; ++j) {
+                int pixelValue = intValues[i * INPUT_SIZE + j];
+                format.putPixel(imgData, (pixelValue >> 16) & 0xFF, (pixelValue >> 8) & 0xFF, pixelValue & 0xFF);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Matrix;
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceLandmark;
+
+/**
+ * Where every pixel of the 112x112 model input comes from in the upright source image.
+ *
+ * With landmarks the face is aligned: a similarity transform, rotation plus uniform scale plus
+ * translation, is fitted by least squares between the five landmarks, eyes, nose and mouth
+ * corners, and the canonical positions MobileFaceNet was trained on, so faces are upright,
+ * equally sized and centred whatever the head roll or the box the detector drew. Without
+ * landmarks the bounding box is stretched onto the input as before.
+ *
+ * The mapping goes from the crop to the source, so crops can be sampled straight from the
+ * source in one pass, see {@link YuvFaceCropper}; {@link #toMatrix()} gives the other direction
+ * for drawing with a Canvas.
+ */
+public class FaceAlignment {
+
+    private static final int INPUT_SIZE = EmbeddingExtractor.INPUT_SIZE;
+
+    /**
+     * Canonical landmarks in the 112x112 input, x and y of the left eye, right eye, nose, left
+     * and right mouth corner, left and right as seen in the image.
+     */
+    static final float[] TEMPLATE = {
+            38.2946f, 51.6963f,
+            73.5318f, 51.5014f,
+            56.0252f, 71.7366f,
+            41.5493f, 92.3655f,
+            70.7299f, 92.2041f
+    };
+
+    // Eyes closer than this, in source pixels, can't be aligned on.
+    private static final float MIN_EYE_DISTANCE = 1f;
+
+    // A crop point (u, v) comes from (m00 * u + m01 * v + m02, m10 * u + m11 * v + m12).
+    private final float m00, m01, m02;
+    private final float m10, m11, m12;
+    private final boolean aligned;
+
+    private FaceAlignment(float m00, float m01, float m02, float m10, float m11, float m12, boolean aligned) {
+        this.m00 = m00;
+        this.m01 = m01;
+        this.m02 = m02;
+        this.m10 = m10;
+        this.m11 = m11;
+        this.m12 = m12;
+        this.aligned = aligned;
+    }
+
+    /**
+     * Aligns on the landmarks of {@code face}, or falls back to its bounding box when the
+     * detector didn't find all of them, e.g. without {@code LANDMARK_MODE_ALL}.
+     *
+     * @param flipX mirror the crop horizontally (front camera)
+     */
+    public static FaceAlignment of(Face face, boolean flipX) {
+        PointF leftEye = position(face, FaceLandmark.LEFT_EYE);
+        PointF rightEye = position(face, FaceLandmark.RIGHT_EYE);
+        PointF nose = position(face, FaceLandmark.NOSE_BASE);
+        PointF leftMouth = position(face, FaceLandmark.MOUTH_LEFT);
+        PointF rightMouth = position(face, FaceLandmark.MOUTH_RIGHT);
+        if (leftEye == null || rightEye == null || nose == null || leftMouth == null || rightMouth == null
+                || Math.hypot(leftEye.x - rightEye.x, leftEye.y - rightEye.y) < MIN_EYE_DISTANCE) {
+            return fromBox(face.getBoundingBox(), flipX);
+        }
+
+        // ML Kit names the landmarks after the subject's sides, the template after the image's
+        PointF[] eyes = leftEye.x <= rightEye.x ? new PointF[]{leftEye, rightEye} : new PointF[]{rightEye, leftEye};
+        PointF[] mouth = leftMouth.x <= rightMouth.x
+                ? new PointF[]{leftMouth, rightMouth} : new PointF[]{rightMouth, leftMouth};
+        return fromLandmarks(new float[]{
+                eyes[0].x, eyes[0].y,
+                eyes[1].x, eyes[1].y,
+                nose.x, nose.y,
+                mouth[0].x, mouth[0].y,
+                mouth[1].x, mouth[1].y
+        }, flipX);
+    }
+
+    @Nullable
+    private static PointF position(Face face, int type) {
+        FaceLandmark landmark = face.getLandmark(type);
+        return landmark != null ? landmark.getPosition() : null;
+    }
+
+    /** Stretches {@code box} onto the input, the crop used without landmarks. */
+    public static FaceAlignment fromBox(Rect box, boolean flipX) {
+        return fromBox(box.left, box.top, box.right, box.bottom, flipX);
+    }
+
+    /** Stretches the box with these edges onto the input. */
+    public static FaceAlignment fromBox(float left, float top, float right, float bottom, boolean flipX) {
+        FaceAlignment alignment = new FaceAlignment(
+                (right - left) / INPUT_SIZE, 0, left,
+                0, (bottom - top) / INPUT_SIZE, top,
+                false);
+        return flipX ? alignment.flipped() : alignment;
+    }
+
+    /**
+     * Fits the similarity transform that takes {@link #TEMPLATE} onto {@code points}.
+     *
+     * @param points source x and y of the landmarks, in the order of {@link #TEMPLATE}
+     * @param flipX  mirror the crop horizontally (front camera)
+     */
+    public static FaceAlignment fromLandmarks(float[] points, boolean flipX) {
+        int n = TEMPLATE.length / 2;
+        float templateX = 0, templateY = 0, sourceX = 0, sourceY = 0;
+        for (int i = 0; i < n; i++) {
+            templateX += TEMPLATE[2 * i];
+            templateY += TEMPLATE[2 * i + 1];
+            sourceX += points[2 * i];
+            sourceY += points[2 * i + 1];
+        }
+        templateX /= n;
+        templateY /= n;
+        sourceX /= n;
+        sourceY /= n;
+
+        // Least squares of source = [a -b; b a] * template + t around the centroids.
+        double dot = 0, cross = 0, norm = 0;
+        for (int i = 0; i < n; i++) {
+            double tx = TEMPLATE[2 * i] - templateX;
+            double ty = TEMPLATE[2 * i + 1] - templateY;
+            double sx = points[2 * i] - sourceX;
+            double sy = points[2 * i + 1] - sourceY;
+            dot += tx * sx + ty * sy;
+            cross += tx * sy - ty * sx;
+            norm += tx * tx + ty * ty;
+        }
+        float a = (float) (dot / norm);
+        float b = (float) (cross / norm);
+
+        FaceAlignment alignment = new FaceAlignment(
+                a, -b, sourceX - (a * templateX - b * templateY),
+                b, a, sourceY - (b * templateX + a * templateY),
+                true);
+        return flipX ? alignment.flipped() : alignment;
+    }
+
+    /** The same crop taken from the mirror image along x = INPUT_SIZE / 2 of the crop. */
+    private FaceAlignment flipped() {
+        return new FaceAlignment(
+                -m00, m01, m02 + m00 * INPUT_SIZE,
+                -m10, m11, m12 + m10 * INPUT_SIZE,
+                aligned);
+    }
+
+    /** Whether the crop is aligned on landmarks rather than stretched from the box. */
+    public boolean isAligned() {
+        return aligned;
+    }
+
+    /** Source x of the crop point (u, v); pixel centres are at half coordinates. */
+    public float sourceX(float u, float v) {
+        return m00 * u + m01 * v + m02;
+    }
+
+    /** Source y of the crop point (u, v). */
+    public float sourceY(float u, float v) {
+        return m10 * u + m11 * v + m12;
+    }
+
+    /**
+     * The same crop taken from a source whose coordinates are {@code scale} times these,
+     * shifted by {@code dx}, {@code dy}, e.g. a region decoded at another resolution.
+     */
+    public FaceAlignment transformed(float scale, float dx, float dy) {
+        return new FaceAlignment(
+                m00 * scale, m01 * scale, m02 * scale + dx,
+                m10 * scale, m11 * scale, m12 * scale + dy,
+                aligned);
+    }
+
+    /** Smallest rectangle of the source that holds the whole crop. */
+    public Rect sourceBounds() {
+        float[] bounds = sourceBox();
+        return new Rect((int) bounds[0], (int) bounds[1], (int) bounds[2], (int) bounds[3]);
+    }
+
+    /** {@link #sourceBounds()} as left, top, right and bottom, in whole pixels. */
+    float[] sourceBox() {
+        float left = Float.MAX_VALUE, top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            float u = (corner & 1) == 0 ? 0 : INPUT_SIZE;
+            float v = (corner & 2) == 0 ? 0 : INPUT_SIZE;
+            float x = sourceX(u, v);
+            float y = sourceY(u, v);
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x);
+            bottom = Math.max(bottom, y);
+        }
+        return new float[]{
+                (float) Math.floor(left), (float) Math.floor(top),
+                (float) Math.ceil(right), (float) Math.ceil(bottom)};
+    }
+
+    /** Maps the source onto the crop, for {@code Canvas.drawBitmap}. */
+    public Matrix toMatrix() {
+        Matrix toSource = new Matrix();
+        toSource.setValues(new float[]{m00, m01, m02, m10, m11, m12, 0, 0, 1});
+        Matrix toCrop = new Matrix();
+        toSource.invert(toCrop);
+        return toCrop;
+    }
+}
@@ -0,0 +1,463 @@
+package com.irhammuch.android.facerecognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Groups face embeddings into identities as they arrive, without ever re-clustering everything.
+ *
+ * Every identity is a cluster whose centroid is an entry of the {@code clusters} gallery, so
+ * searches and persistence work as for registered faces; the cluster's id doubles as its label.
+ * Every assigned embedding is kept as a member in the {@code members} gallery, labeled with the
+ * id of its cluster, so callers refer to faces by member id and always see the cluster the face
+ * ended up in.
+ *
+ * A new face joins the cluster with the closest centroid when it is within the gallery
+ * threshold, and the centroid moves to the mean of the members; otherwise it starts a cluster.
+ * Because that depends on the order faces arrive in, clusters touched since the last pass are
+ * periodically merged with a neighbour whose centroid came close, and a cluster whose members
+ * spread too far from their centroid is split in two with 2-means.
+ *
+ * Not thread safe, like the galleries.
+ */
+public class FaceClusterer {
+
+    private static final int DEFAULT_MERGE_EVERY = 64;
+    /** Clusters smaller than this are never split, nor created by a split. */
+    private static final int MIN_SPLIT_SIZE = 4;
+    private static final int SPLIT_ITERATIONS = 8;
+
+    private final FaceGallery clusters;
+    private final FaceGallery members;
+    private final int dimension;
+    private final boolean cosine;
+
+    private final float mergeDistance;
+    private final float splitSpread;
+    private final int mergeEvery;
+
+    private final HashMap<Integer, Cluster> byId = new HashMap<>();
+    private final Set<Integer> dirty = new HashSet<>();
+    private int assignedSinceMerge = 0;
+
+    private final FaceGallery.Match nearest = new FaceGallery.Match();
+    private final float[] centroid;
+    private final float[] member;
+    private final Random random = new Random(7);
+
+    private static final class Cluster {
+        final int id;
+        final double[] sum;
+        double sumSquares;
+        int[] memberIds = new int[4];
+        int memberCount = 0;
+        // Weight of a centroid that was in the gallery without members, e.g. from before members
+        // were stored, it counts as one face.
+        int prior = 0;
+        // Size at the last split attempt that failed, retried once the cluster doubled.
+        int lastSplitAttempt = 0;
+
+        Cluster(int id, int dimension) {
+            this.id = id;
+            this.sum = new double[dimension];
+        }
+
+        int count() {
+            return memberCount + prior;
+        }
+
+        void addMember(int memberId) {
+            if (memberCount == memberIds.length) {
+                memberIds = Arrays.copyOf(memberIds, memberCount * 2);
+            }
+            memberIds[memberCount++] = memberId;
+        }
+
+        boolean removeMember(int memberId) {
+            for (int i = 0; i < memberCount; i++) {
+                if (memberIds[i] == memberId) {
+                    memberIds[i] = memberIds[--memberCount];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public FaceClusterer(FaceGallery clusters, FaceGallery members) {
+        this(clusters, members, 0.8f * clusters.threshold(), 0.6f * clusters.threshold(),
+                DEFAULT_MERGE_EVERY);
+    }
+
+    /**
+     * Picks up the clusters and members already in the galleries.
+     *
+     * @param mergeDistance distance below which two centroids are merged
+     * @param splitSpread   mean distance of members to their centroid above which a cluster is
+     *                      split, when the halves end up further than mergeDistance apart
+     * @param mergeEvery    assignments between merge passes
+     */
+    public FaceClusterer(FaceGallery clusters, FaceGallery members, float mergeDistance,
+                         float splitSpread, int mergeEvery) {
+        if (clusters.dimension() != members.dimension() || clusters.metric() != members.metric()) {
+            throw new IllegalArgumentException("Cluster and member galleries don't match");
+        }
+        this.clusters = clusters;
+        this.members = members;
+        this.dimension = clusters.dimension();
+        this.cosine = clusters.metric() == FaceGallery.Metric.COSINE;
+        this.mergeDistance = mergeDistance;
+        this.splitSpread = splitSpread;
+        this.mergeEvery = mergeEvery;
+        this.centroid = new float[dimension];
+        this.member = new float[dimension];
+        load();
+    }
+
+    /** Number of identities. */
+    public int size() {
+        return byId.size();
+    }
+
+    /** Puts {@code embedding} in a cluster and returns its member id. */
+    public int assign(float[] embedding) {
+        Cluster cluster = closestCluster(embedding);
+        int memberId = members.add(String.valueOf(cluster.id), embedding);
+        join(cluster, memberId);
+        if (++assignedSinceMerge >= mergeEvery) {
+            mergePass();
+        }
+        return memberId;
+    }
+
+    /** Cluster with the closest centroid within the threshold, or a new one at {@code embedding}. */
+    private Cluster closestCluster(float[] embedding) {
+        Cluster cluster = null;
+        if (clusters.findNearest(embedding, nearest) && clusters.isMatch(nearest)) {
+            cluster = byId.get(nearest.id);
+        }
+        return cluster != null ? cluster : newCluster(embedding);
+    }
+
+    /** Adds the stored member {@code memberId}, already labeled, to {@code cluster}. */
+    private void join(Cluster cluster, int memberId) {
+        members.embedding(memberId, member);
+        cluster.addMember(memberId);
+        accumulate(cluster, member, 1);
+        updateCentroid(cluster);
+        dirty.add(cluster.id);
+        maybeSplit(cluster);
+    }
+
+    /** Id of the cluster member {@code memberId} belongs to, or -1 when it was removed. */
+    public int clusterOf(int memberId) {
+        String label = members.label(memberId);
+        return label == null ? -1 : Integer.parseInt(label);
+    }
+
+    /** Name of the identity of member {@code memberId}, or null when it was removed. */
+    public String nameOf(int memberId) {
+        int clusterId = clusterOf(memberId);
+        return clusterId < 0 ? null : clusters.label(clusterId);
+    }
+
+    /** Number of faces in cluster {@code clusterId}. */
+    public int memberCount(int clusterId) {
+        Cluster cluster = byId.get(clusterId);
+        return cluster == null ? 0 : cluster.count();
+    }
+
+    /** Forgets a face, e.g. because its image was deleted. Empty clusters are dropped. */
+    public boolean removeMember(int memberId) {
+        Cluster cluster = byId.get(clusterOf(memberId));
+        if (cluster == null || !cluster.removeMember(memberId)) {
+            return false;
+        }
+        members.embedding(memberId, member);
+        members.remove(memberId);
+        accumulate(cluster, member, -1);
+        if (cluster.count() == 0) {
+            byId.remove(cluster.id);
+            dirty.remove(cluster.id);
+            clusters.remove(cluster.id);
+        } else {
+            updateCentroid(cluster);
+            dirty.add(cluster.id);
+        }
+        return true;
+    }
+
+    /**
+     * Merges every cluster changed since the last pass into its closest neighbour when their
+     * centroids are within the merge distance.
+     */
+    public void mergePass() {
+        assignedSinceMerge = 0;
+        List<Integer> changed = new ArrayList<>(dirty);
+        dirty.clear();
+        for (int id : changed) {
+            Cluster cluster = byId.get(id);
+            if (cluster == null) {
+                continue; // merged away earlier in this pass
+            }
+            int other = closestOtherCluster(cluster.id);
+            if (other >= 0) {
+                merge(cluster, byId.get(other));
+            }
+        }
+    }
+
+    /** Moves every member of the smaller cluster into the larger one. */
+    private void merge(Cluster a, Cluster b) {
+        Cluster into = a.count() >= b.count() ? a : b;
+        Cluster from = into == a ? b : a;
+
+        String label = String.valueOf(into.id);
+        for (int i = 0; i < from.memberCount; i++) {
+            members.relabel(from.memberIds[i], label);
+            into.addMember(from.memberIds[i]);
+        }
+        for (int i = 0; i < dimension; i++) {
+            into.sum[i] += from.sum[i];
+        }
+        into.sumSquares += from.sumSquares;
+        into.prior += from.prior;
+
+        byId.remove(from.id);
+        dirty.remove(from.id);
+        clusters.remove(from.id);
+        updateCentroid(into);
+    }
+
+    /** Closest cluster to {@code id} within the merge distance, or -1. */
+    private int closestOtherCluster(int id) {
+        clusters.embedding(id, centroid);
+        int best = -1;
+        float bestDistance = Float.MAX_VALUE;
+        // Raw scores: squared euclidean distance, or cosine distance.
+        float limit = cosine ? mergeDistance : mergeDistance * mergeDistance;
+        for (int slot = 0; slot < clusters.slotCount(); slot++) {
+            if (!clusters.isLive(slot) || clusters.idAt(slot) == id) {
+                continue;
+            }
+            float distance = clusters.rawDistance(centroid, 0, slot);
+            if (distance < limit && distance < bestDistance) {
+                best = clusters.idAt(slot);
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /** Splits {@code cluster} with 2-means when its members spread too far. */
+    private void maybeSplit(Cluster cluster) {
+        int count = cluster.memberCount;
+        if (count < 2 * MIN_SPLIT_SIZE || count < 2 * cluster.lastSplitAttempt
+                || spread(cluster) <= splitSpread) {
+            return;
+        }
+        cluster.lastSplitAttempt = count;
+
+        float[][] points = new float[count][];
+        for (int i = 0; i < count; i++) {
+            points[i] = new float[dimension];
+            members.embedding(cluster.memberIds[i], points[i]);
+        }
+        boolean[] second = twoMeans(points);
+
+        int secondCount = 0;
+        for (boolean s : second) {
+            if (s) {
+                secondCount++;
+            }
+        }
+        if (secondCount < MIN_SPLIT_SIZE || count - secondCount < MIN_SPLIT_SIZE) {
+            return;
+        }
+
+        // Only split when the halves would not be merged right back.
+        float[] firstMean = mean(points, second, false);
+        float[] secondMean = mean(points, second, true);
+        if (distance(firstMean, secondMean) < mergeDistance) {
+            return;
+        }
+
+        Cluster split = newCluster(secondMean);
+        String label = String.valueOf(split.id);
+        int[] ids = Arrays.copyOf(cluster.memberIds, count);
+        for (int i = 0; i < count; i++) {
+            if (second[i]) {
+                cluster.removeMember(ids[i]);
+                accumulate(cluster, points[i], -1);
+                members.relabel(ids[i], label);
+                split.addMember(ids[i]);
+                accumulate(split, points[i], 1);
+            }
+        }
+        split.lastSplitAttempt = split.memberCount;
+        cluster.lastSplitAttempt = cluster.memberCount;
+        updateCentroid(cluster);
+        updateCentroid(split);
+        dirty.add(cluster.id);
+        dirty.add(split.id);
+    }
+
+    /**
+     * Mean distance of the members to the centroid, from the running sums: for euclidean the
+     * root of the mean squared distance, for cosine 1 - |sum| / n over unit length members.
+     */
+    private float spread(Cluster cluster) {
+        int n = cluster.count();
+        double norm = 0;
+        for (double value : cluster.sum) {
+            norm += value * value;
+        }
+        if (cosine) {
+            return (float) (1 - Math.sqrt(norm) / n);
+        }
+        double meanSquared = cluster.sumSquares / n - norm / ((double) n * n);
+        return (float) Math.sqrt(Math.max(0, meanSquared));
+    }
+
+    /** Splits {@code points} in two with Lloyd iterations, true marks the second group. */
+    private boolean[] twoMeans(float[][] points) {
+        int n = points.length;
+        // Seeds: a random point and the point farthest from it.
+        float[] a = points[random.nextInt(n)].clone();
+        float[] b = a;
+        float farthest = -1;
+        for (float[] point : points) {
+            float d = distance(a, point);
+            if (d > farthest) {
+                farthest = d;
+                b = point;
+            }
+        }
+        b = b.clone();
+
+        boolean[] second = new boolean[n];
+        for (int iteration = 0; iteration < SPLIT_ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                boolean s = distance(b, points[i]) < distance(a, points[i]);
+                changed |= s != second[i];
+                second[i] = s;
+            }
+            if (!changed && iteration > 0) {
+                break;
+            }
+            a = mean(points, second, false);
+            b = mean(points, second, true);
+        }
+        return second;
+    }
+
+    private float[] mean(float[][] points, boolean[] second, boolean group) {
+        float[] mean = new float[dimension];
+        int count = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (second[i] == group) {
+                for (int d = 0; d < dimension; d++) {
+                    mean[d] += points[i][d];
+                }
+                count++;
+            }
+        }
+        for (int d = 0; count > 0 && d < dimension; d++) {
+            mean[d] /= count;
+        }
+        return mean;
+    }
+
+    /** Distance in the galleries' metric. */
+    private float distance(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0, squared = 0;
+        for (int i = 0; i < dimension; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+            double diff = a[i] - b[i];
+            squared += diff * diff;
+        }
+        if (cosine) {
+            double norms = Math.sqrt(normA * normB);
+            return norms > 0 ? (float) (1 - dot / norms) : 1f;
+        }
+        return (float) Math.sqrt(squared);
+    }
+
+    private Cluster newCluster(float[] embedding) {
+        int id = clusters.add(String.valueOf(clusters.nextId()), embedding);
+        Cluster cluster = new Cluster(id, dimension);
+        byId.put(id, cluster);
+        return cluster;
+    }
+
+    private void accumulate(Cluster cluster, float[] embedding, int sign) {
+        double squares = 0;
+        for (int i = 0; i < dimension; i++) {
+            cluster.sum[i] += sign * embedding[i];
+            squares += embedding[i] * embedding[i];
+        }
+        cluster.sumSquares += sign * squares;
+    }
+
+    /** Moves the gallery entry of the cluster to the mean of its members. */
+    private void updateCentroid(Cluster cluster) {
+        // Cosine galleries normalize what they store, the sum points the same way as the mean.
+        double scale = cosine ? 1 : 1.0 / cluster.count();
+        for (int i = 0; i < dimension; i++) {
+            centroid[i] = (float) (cluster.sum[i] * scale);
+        }
+        clusters.update(cluster.id, centroid);
+    }
+
+    /** Rebuilds the running sums from the members already stored. */
+    private void load() {
+        List<Integer> orphans = new ArrayList<>();
+        for (int slot = 0; slot < members.slotCount(); slot++) {
+            if (!members.isLive(slot)) {
+                continue;
+            }
+            int memberId = members.idAt(slot);
+            int clusterId = Integer.parseInt(members.labelAt(slot));
+            Cluster cluster = byId.get(clusterId);
+            if (cluster == null) {
+                if (clusters.label(clusterId) == null) {
+                    orphans.add(memberId);
+                    continue;
+                }
+                cluster = new Cluster(clusterId, dimension);
+                byId.put(clusterId, cluster);
+            }
+            cluster.addMember(memberId);
+            members.vectorAt(slot, member);
+            accumulate(cluster, member, 1);
+        }
+
+        // Centroids without members count as one face at the centroid.
+        for (int slot = 0; slot < clusters.slotCount(); slot++) {
+            if (clusters.isLive(slot) && !byId.containsKey(clusters.idAt(slot))) {
+                Cluster cluster = new Cluster(clusters.idAt(slot), dimension);
+                cluster.prior = 1;
+                clusters.vectorAt(slot, centroid);
+                accumulate(cluster, centroid, 1);
+                byId.put(cluster.id, cluster);
+            }
+        }
+
+        // Members whose cluster is gone, e.g. after a crash between two writes, join the closest
+        // cluster again. They keep their ids, which callers such as the image index refer to.
+        for (int memberId : orphans) {
+            members.embedding(memberId, member);
+            Cluster cluster = closestCluster(member);
+            members.relabel(memberId, String.valueOf(cluster.id));
+            join(cluster, memberId);
+        }
+    }
+}
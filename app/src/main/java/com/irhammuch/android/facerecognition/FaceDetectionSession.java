@@ -0,0 +1,79 @@
+package com.irhammuch.android.facerecognition;
+
+import com.google.mlkit.vision.face.FaceDetection;
+import com.google.mlkit.vision.face.FaceDetector;
+import com.google.mlkit.vision.face.FaceDetectorOptions;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The face detector and the threads of the realtime analyzer, created once per activity and
+ * kept across camera rebinds, e.g. when switching cameras, until {@link #close()}.
+ *
+ * Camera frames are delivered on the analysis executor; detection results are handled on the
+ * inference executor, the one thread allowed to use the interpreter and the saved faces. Tasks
+ * handed to the inference executor after {@link #close()} are dropped, so late detection
+ * callbacks can't fail.
+ */
+public class FaceDetectionSession implements Closeable {
+
+    /** Smallest face looked for, as a share of the image width. */
+    private static final float MIN_FACE_SIZE = 0.15f;
+
+    private final FaceDetector detector;
+    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor inferenceExecutor = new ThreadPoolExecutor(1, 1,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new ThreadPoolExecutor.DiscardPolicy());
+
+    public FaceDetectionSession() {
+        this(defaultOptions());
+    }
+
+    public FaceDetectionSession(FaceDetectorOptions options) {
+        this.detector = FaceDetection.getClient(options);
+    }
+
+    /**
+     * Fast mode with the landmarks faces are aligned on, eye-open probabilities for
+     * {@link FaceQuality}, faces of at least {@link #MIN_FACE_SIZE}, and tracking ids so
+     * recognized identities can be cached per face.
+     */
+    public static FaceDetectorOptions defaultOptions() {
+        return new FaceDetectorOptions.Builder()
+                .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+                .setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_ALL)
+                .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_ALL)
+                .setMinFaceSize(MIN_FACE_SIZE)
+                .enableTracking()
+                .build();
+    }
+
+    public FaceDetector detector() {
+        return detector;
+    }
+
+    /** Thread the camera delivers analysis frames on. */
+    public ExecutorService analysisExecutor() {
+        return analysisExecutor;
+    }
+
+    /** Thread detection results are handled on. */
+    public ExecutorService inferenceExecutor() {
+        return inferenceExecutor;
+    }
+
+    /**
+     * Closes the detector and stops both threads once the tasks already handed to them ran.
+     */
+    @Override
+    public void close() {
+        detector.close();
+        analysisExecutor.shutdown();
+        inferenceExecutor.shutdown();
+    }
+}
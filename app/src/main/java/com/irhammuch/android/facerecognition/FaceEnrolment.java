@@ -0,0 +1,279 @@
+package com.irhammuch.android.facerecognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects a burst of embeddings of one face track to register a person from several poses.
+ *
+ * Embeddings too close to one already collected are skipped, so holding still doesn't fill the
+ * burst with copies of one pose. Once done, {@link #prototypes()} drops the outliers, e.g. a
+ * blurred frame or a crop that slipped onto another face, and reduces the rest to a few
+ * prototypes with k-means, a single centroid for a small or tight burst. Every prototype is
+ * stored under the person's name, a search matching any of them finds the person.
+ */
+public class FaceEnrolment {
+
+    private static final int DEFAULT_MAX_SAMPLES = 24;
+    private static final int DEFAULT_MAX_FRAMES = 90;
+    private static final int DEFAULT_MAX_PROTOTYPES = 3;
+    /** Samples each prototype has to stand for. */
+    private static final int SAMPLES_PER_PROTOTYPE = 5;
+    private static final int KMEANS_ITERATIONS = 10;
+    // Median absolute deviations from the median beyond which a sample is an outlier.
+    private static final float OUTLIER_DEVIATIONS = 3f;
+
+    /** Tracking id of the face being enrolled. */
+    public final int trackingId;
+
+    private final int dimension;
+    private final boolean cosine;
+    private final float threshold;
+    private final float minSpacing;
+    private final int maxSamples;
+    private final int maxFrames;
+    private final int maxPrototypes;
+
+    private final List<float[]> samples = new ArrayList<>();
+    private int frames = 0;
+
+    public FaceEnrolment(FaceGallery gallery, int trackingId) {
+        this(gallery, trackingId, DEFAULT_MAX_SAMPLES, DEFAULT_MAX_FRAMES, DEFAULT_MAX_PROTOTYPES);
+    }
+
+    /**
+     * @param gallery       gallery the person will be stored in, for its metric and threshold
+     * @param maxSamples    embeddings collected before the burst is done
+     * @param maxFrames     frames after which the burst is done with what it has
+     * @param maxPrototypes embeddings stored for the person at most
+     */
+    public FaceEnrolment(FaceGallery gallery, int trackingId, int maxSamples, int maxFrames,
+                         int maxPrototypes) {
+        this.trackingId = trackingId;
+        this.dimension = gallery.dimension();
+        this.cosine = gallery.metric() == FaceGallery.Metric.COSINE;
+        this.threshold = gallery.threshold();
+        this.minSpacing = 0.1f * threshold;
+        this.maxSamples = maxSamples;
+        this.maxFrames = maxFrames;
+        this.maxPrototypes = maxPrototypes;
+    }
+
+    /** Counts a frame the tracked face was looked for in. */
+    public void nextFrame() {
+        frames++;
+    }
+
+    /**
+     * Offers an embedding of the tracked face.
+     *
+     * @return whether it was kept, false for a near duplicate or once the burst is done
+     */
+    public boolean add(float[] embedding) {
+        if (isDone()) {
+            return false;
+        }
+        float[] sample = Arrays.copyOf(embedding, dimension);
+        if (cosine) {
+            normalize(sample);
+        }
+        for (float[] other : samples) {
+            if (distance(sample, other) < minSpacing) {
+                return false;
+            }
+        }
+        samples.add(sample);
+        return true;
+    }
+
+    public int sampleCount() {
+        return samples.size();
+    }
+
+    public int maxSamples() {
+        return maxSamples;
+    }
+
+    public boolean isDone() {
+        return samples.size() >= maxSamples || frames >= maxFrames;
+    }
+
+    /** Embeddings to store for the person, empty when nothing was collected. */
+    public List<float[]> prototypes() {
+        List<float[]> inliers = inliers();
+        int k = Math.max(1, Math.min(maxPrototypes, inliers.size() / SAMPLES_PER_PROTOTYPE));
+        return kMeans(inliers, k);
+    }
+
+    /**
+     * Samples close enough to the medoid: within the gallery threshold, a sample farther away
+     * would not be matched to the others anyway, and within a few median absolute deviations
+     * of the median distance.
+     */
+    List<float[]> inliers() {
+        int n = samples.size();
+        if (n <= 2) {
+            return new ArrayList<>(samples);
+        }
+
+        float[][] distances = new float[n][n];
+        int medoid = 0;
+        float medoidSum = Float.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            float sum = 0;
+            for (int j = 0; j < n; j++) {
+                if (j > i) {
+                    distances[i][j] = distance(samples.get(i), samples.get(j));
+                } else if (j < i) {
+                    distances[i][j] = distances[j][i];
+                }
+                sum += distances[i][j];
+            }
+            if (sum < medoidSum) {
+                medoid = i;
+                medoidSum = sum;
+            }
+        }
+
+        float[] toMedoid = distances[medoid].clone();
+        float median = median(toMedoid.clone());
+        float[] deviations = new float[n];
+        for (int i = 0; i < n; i++) {
+            deviations[i] = Math.abs(toMedoid[i] - median);
+        }
+        // 1.4826 scales the MAD to a standard deviation for normally distributed distances.
+        float limit = median + OUTLIER_DEVIATIONS * 1.4826f * median(deviations);
+        limit = Math.min(Math.max(limit, minSpacing), threshold);
+
+        List<float[]> inliers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (toMedoid[i] <= limit) {
+                inliers.add(samples.get(i));
+            }
+        }
+        return inliers;
+    }
+
+    /** Means of {@code k} clusters of {@code points}, seeded with farthest points. */
+    private List<float[]> kMeans(List<float[]> points, int k) {
+        List<float[]> centers = new ArrayList<>();
+        if (points.isEmpty()) {
+            return centers;
+        }
+        centers.add(mean(points, null, 0));
+        float[] nearest = new float[points.size()];
+        Arrays.fill(nearest, Float.MAX_VALUE);
+        while (centers.size() < k) {
+            float[] last = centers.get(centers.size() - 1);
+            int farthest = 0;
+            for (int i = 0; i < points.size(); i++) {
+                nearest[i] = Math.min(nearest[i], distance(points.get(i), last));
+                if (nearest[i] > nearest[farthest]) {
+                    farthest = i;
+                }
+            }
+            centers.add(points.get(farthest).clone());
+        }
+        if (k == 1) {
+            return centers;
+        }
+
+        int[] assignment = new int[points.size()];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            boolean changed = iteration == 0;
+            for (int i = 0; i < points.size(); i++) {
+                int best = 0;
+                for (int c = 1; c < centers.size(); c++) {
+                    if (distance(points.get(i), centers.get(c))
+                            < distance(points.get(i), centers.get(best))) {
+                        best = c;
+                    }
+                }
+                changed |= assignment[i] != best;
+                assignment[i] = best;
+            }
+            if (!changed) {
+                break;
+            }
+            for (int c = 0; c < centers.size(); c++) {
+                float[] center = mean(points, assignment, c);
+                if (center != null) {
+                    centers.set(c, center);
+                }
+            }
+        }
+
+        // Prototypes nothing was assigned to are left out.
+        List<float[]> prototypes = new ArrayList<>();
+        for (int c = 0; c < centers.size(); c++) {
+            for (int a : assignment) {
+                if (a == c) {
+                    prototypes.add(centers.get(c));
+                    break;
+                }
+            }
+        }
+        return prototypes;
+    }
+
+    /** Mean of the points assigned to {@code cluster}, or of all of them without assignment. */
+    private float[] mean(List<float[]> points, int[] assignment, int cluster) {
+        float[] mean = new float[dimension];
+        int count = 0;
+        for (int i = 0; i < points.size(); i++) {
+            if (assignment == null || assignment[i] == cluster) {
+                float[] point = points.get(i);
+                for (int d = 0; d < dimension; d++) {
+                    mean[d] += point[d];
+                }
+                count++;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        for (int d = 0; d < dimension; d++) {
+            mean[d] /= count;
+        }
+        if (cosine) {
+            normalize(mean);
+        }
+        return mean;
+    }
+
+    /** Distance in the gallery's metric, samples are already normalized in cosine mode. */
+    private float distance(float[] a, float[] b) {
+        float sum = 0;
+        if (cosine) {
+            for (int i = 0; i < dimension; i++) {
+                sum += a[i] * b[i];
+            }
+            return 1f - sum;
+        }
+        for (int i = 0; i < dimension; i++) {
+            float diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private static void normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+    }
+
+    private static float median(float[] values) {
+        Arrays.sort(values);
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+}
@@ -0,0 +1,1041 @@
+package com.irhammuch.android.facerecognition;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Registered faces, stored as one contiguous float array of embeddings with parallel id and
+ * label arrays.
+ *
+ * Every entry gets a stable id when it is added. Removing an entry only marks its slot, the
+ * slots are squeezed out by {@link #compact()} once enough of them pile up, so slot positions
+ * may change but ids don't. Not thread safe.
+ *
+ * In {@link Metric#COSINE} mode embeddings are L2-normalized when stored and queried, so the
+ * scan is a plain max inner product.
+ *
+ * Searches scan every slot until the gallery grows past {@link #setExactScanLimit the exact scan
+ * limit}, from then on they go through the {@link GalleryIndex} set with {@link #setIndex}, if
+ * any, which is built at that point and kept up to date as entries are added.
+ *
+ * With {@link #setQuantized} on, vectors are only kept as int8 codes with a per-vector scale,
+ * a quarter of the bytes of the floats. Exact scans compare the int8 codes of the query and the
+ * entries, then re-rank the closest {@link #setRerankCount few} candidates by the distance from
+ * the full-precision query to their decoded codes.
+ */
+public class FaceGallery {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int REMOVED = -1;
+    private static final int DEFAULT_EXACT_SCAN_LIMIT = 2048;
+    private static final int DEFAULT_RERANK_COUNT = 8;
+
+    /** How embeddings are compared, distances are always "lower is closer". */
+    public enum Metric {
+        /** Euclidean distance between raw embeddings. */
+        EUCLIDEAN(1.000f),
+        /** Cosine distance, 1 - cosine similarity, between L2-normalized embeddings. */
+        COSINE(0.400f);
+
+        /** Distance below which a match is accepted unless changed with setThreshold. */
+        public final float defaultThreshold;
+
+        Metric(float defaultThreshold) {
+            this.defaultThreshold = defaultThreshold;
+        }
+    }
+
+    private final int dimension;
+    private final Metric metric;
+    private float threshold;
+
+    // Normalized copy of the query in COSINE mode.
+    private final float[] query;
+
+    // Null while quantized, the codes stand in for the vectors then.
+    private float[] vectors;
+    private int[] ids;
+    private String[] labels;
+
+    // Slots in use, including removed ones.
+    private int slots = 0;
+    private int removed = 0;
+    private int nextId = 0;
+
+    private GalleryIndex index;
+    private boolean indexed = false;
+    private int exactScanLimit = DEFAULT_EXACT_SCAN_LIMIT;
+    private final int[] indexSlot = new int[1];
+    private final float[] indexDistance = new float[1];
+
+    // Int8 codes of the vectors, code * scales[slot] approximates the stored value. codeNorms
+    // holds the squared length of the scaled code, used by euclidean scans.
+    private boolean quantized = false;
+    private byte[] codes;
+    private float[] scales;
+    private float[] codeNorms;
+    private byte[] queryCode;
+    private int rerankCount = DEFAULT_RERANK_COUNT;
+    private int[] candidateSlots;
+    private float[] candidateScores;
+    // A decoded or normalized vector on its way in or out.
+    private final float[] scratch;
+
+    /** Told about every change to the entries, e.g. to persist them. */
+    public interface Listener {
+        void onAdded(FaceGallery gallery, int id);
+
+        void onUpdated(FaceGallery gallery, int id);
+
+        void onRemoved(FaceGallery gallery, int id);
+
+        void onRelabeled(FaceGallery gallery, int id);
+    }
+
+    private Listener listener;
+
+    /** Reusable result of a search. */
+    public static class Match {
+        public int id = REMOVED;
+        public String label;
+        public float distance = Float.MAX_VALUE;
+
+        public boolean found() {
+            return id != REMOVED;
+        }
+
+        void reset() {
+            id = REMOVED;
+            label = null;
+            distance = Float.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reusable result of a top-k search: ids, labels and distances of the closest entries,
+     * closest first, in parallel arrays.
+     */
+    public static class Matches {
+        public final int[] ids;
+        public final String[] labels;
+        public final float[] distances;
+        int count = 0;
+
+        // Slots and raw scores while searching.
+        final int[] slots;
+        final float[] scores;
+
+        /** Holds up to {@code k} matches. */
+        public Matches(int k) {
+            if (k < 1) {
+                throw new IllegalArgumentException("k must be positive: " + k);
+            }
+            ids = new int[k];
+            labels = new String[k];
+            distances = new float[k];
+            slots = new int[k];
+            scores = new float[k];
+        }
+
+        public int capacity() {
+            return ids.length;
+        }
+
+        /** Number of matches found by the last search. */
+        public int count() {
+            return count;
+        }
+
+        /** Copies match {@code i} into {@code out}. */
+        public void get(int i, Match out) {
+            checkIndex(i);
+            out.id = ids[i];
+            out.label = labels[i];
+            out.distance = distances[i];
+        }
+
+        /**
+         * Match {@code i} as a recognition of {@code embedding}, for handing it on, e.g. for
+         * review. Allocates, unlike the search.
+         */
+        public SimilarityClassifier.Recognition recognition(int i, float[] embedding) {
+            checkIndex(i);
+            return new SimilarityClassifier.Recognition(
+                    String.valueOf(ids[i]), labels[i], distances[i], embedding);
+        }
+
+        private void checkIndex(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException("Match " + i + " of " + count);
+            }
+        }
+
+        void reset() {
+            Arrays.fill(labels, 0, count, null);
+            count = 0;
+        }
+    }
+
+    public FaceGallery() {
+        this(EmbeddingExtractor.OUTPUT_SIZE);
+    }
+
+    public FaceGallery(int dimension) {
+        this(dimension, Metric.EUCLIDEAN);
+    }
+
+    public FaceGallery(int dimension, Metric metric) {
+        this.dimension = dimension;
+        this.metric = metric;
+        this.threshold = metric.defaultThreshold;
+        this.query = new float[dimension];
+        this.scratch = new float[dimension];
+        this.vectors = new float[INITIAL_CAPACITY * dimension];
+        this.ids = new int[INITIAL_CAPACITY];
+        this.labels = new String[INITIAL_CAPACITY];
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    public float threshold() {
+        return threshold;
+    }
+
+    /** Distance, in the gallery's metric, below which a match is accepted. */
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the index used to search large galleries, or null to always scan. The index is built
+     * the first time the gallery holds more than the exact scan limit.
+     */
+    public void setIndex(GalleryIndex index) {
+        this.index = index;
+        this.indexed = false;
+        updateIndex();
+    }
+
+    /** Number of entries up to which searches scan the whole gallery instead of the index. */
+    public void setExactScanLimit(int exactScanLimit) {
+        this.exactScanLimit = exactScanLimit;
+        updateIndex();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Keeps int8 codes instead of the float vectors and scans them before re-ranking. Turning it
+     * on quantizes the entries already stored and drops their floats; turning it off decodes
+     * them, the precision lost to the codes doesn't come back.
+     */
+    public void setQuantized(boolean quantized) {
+        if (quantized == this.quantized) {
+            return;
+        }
+        if (!quantized) {
+            vectors = new float[ids.length * dimension];
+            for (int slot = 0; slot < slots; slot++) {
+                decode(slot, vectors, slot * dimension);
+            }
+            this.quantized = false;
+            codes = null;
+            scales = null;
+            codeNorms = null;
+            queryCode = null;
+            return;
+        }
+        codes = new byte[ids.length * dimension];
+        scales = new float[ids.length];
+        codeNorms = new float[ids.length];
+        queryCode = new byte[dimension];
+        setRerankCount(rerankCount);
+        for (int slot = 0; slot < slots; slot++) {
+            quantize(vectors, slot * dimension, slot);
+        }
+        this.quantized = true;
+        vectors = null;
+    }
+
+    /** Whether searches go through the index rather than scanning every slot. */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /** Number of closest candidates of a quantized scan that are re-ranked with the float query. */
+    public void setRerankCount(int rerankCount) {
+        if (rerankCount < 1) {
+            throw new IllegalArgumentException("rerankCount must be positive: " + rerankCount);
+        }
+        this.rerankCount = rerankCount;
+        candidateSlots = new int[rerankCount];
+        candidateScores = new float[rerankCount];
+    }
+
+    /** Whether {@code match} is close enough to count as that identity. */
+    public boolean isMatch(Match match) {
+        return match.found() && match.distance < threshold;
+    }
+
+    /** Number of live entries. */
+    public int size() {
+        return slots - removed;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Adds a copy of {@code embedding} under {@code label} and returns its id. */
+    public int add(String label, float[] embedding) {
+        int id = nextId;
+        append(id, label, embedding);
+        if (listener != null) {
+            listener.onAdded(this, id);
+        }
+        return id;
+    }
+
+    private void append(int id, String label, float[] embedding) {
+        checkDimension(embedding);
+        if (slots == ids.length) {
+            grow();
+        }
+
+        nextId = Math.max(nextId, id + 1);
+        ids[slots] = id;
+        labels[slots] = label;
+        store(embedding, slots);
+        slots++;
+        if (indexed) {
+            index.add(slots - 1);
+        } else {
+            updateIndex();
+        }
+    }
+
+    /** Replaces the embedding of the first entry labeled {@code label}, or adds one. */
+    public int put(String label, float[] embedding) {
+        int id = find(label);
+        if (id == REMOVED) {
+            return add(label, embedding);
+        }
+        update(id, embedding);
+        return id;
+    }
+
+    /**
+     * Replaces every entry labeled {@code label} with one entry per embedding, e.g. the
+     * prototypes of a person enrolled from several poses.
+     */
+    public void replace(String label, List<float[]> embeddings) {
+        for (float[] embedding : embeddings) {
+            checkDimension(embedding);
+        }
+        removeAll(label);
+        for (float[] embedding : embeddings) {
+            add(label, embedding);
+        }
+    }
+
+    /** Removes every entry labeled {@code label} and returns how many there were. */
+    public int removeAll(String label) {
+        List<Integer> matching = new ArrayList<>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (ids[slot] != REMOVED && labels[slot].equals(label)) {
+                matching.add(ids[slot]);
+            }
+        }
+        // Removing may compact the slots, so ids are collected first.
+        for (int id : matching) {
+            remove(id);
+        }
+        return matching.size();
+    }
+
+    /** Removes every entry. */
+    public void clear() {
+        List<Integer> live = new ArrayList<>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (ids[slot] != REMOVED) {
+                live.add(ids[slot]);
+            }
+        }
+        // Removing may compact the slots, so ids are collected first.
+        for (int id : live) {
+            remove(id);
+        }
+    }
+
+    /** Replaces the embedding stored under {@code id}. */
+    public boolean update(int id, float[] embedding) {
+        checkDimension(embedding);
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        store(embedding, slot);
+        if (indexed) {
+            index.add(slot);
+        }
+        if (listener != null) {
+            listener.onUpdated(this, id);
+        }
+        return true;
+    }
+
+    public boolean remove(int id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        ids[slot] = REMOVED;
+        labels[slot] = null;
+        removed++;
+
+        // Keep scans dense, squeeze removed slots out once they are a quarter of the gallery.
+        if (removed * 4 > slots) {
+            compact();
+        }
+        if (listener != null) {
+            listener.onRemoved(this, id);
+        }
+        return true;
+    }
+
+    /** Changes the label of entry {@code id}. */
+    public boolean relabel(int id, String label) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        labels[slot] = label;
+        if (listener != null) {
+            listener.onRelabeled(this, id);
+        }
+        return true;
+    }
+
+    /** Id of the first entry labeled {@code label}, or -1. */
+    public int find(String label) {
+        for (int slot = 0; slot < slots; slot++) {
+            if (ids[slot] != REMOVED && labels[slot].equals(label)) {
+                return ids[slot];
+            }
+        }
+        return REMOVED;
+    }
+
+    /** Label of entry {@code id}, or null when there is no such entry. */
+    public String label(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? null : labels[slot];
+    }
+
+    /** Copies the embedding of entry {@code id} into {@code out}. */
+    public boolean embedding(int id, float[] out) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        vectorAt(slot, out);
+        return true;
+    }
+
+    /** Distinct labels of the live entries, in insertion order. */
+    public List<String> labels() {
+        List<String> result = new ArrayList<>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (ids[slot] != REMOVED && !result.contains(labels[slot])) {
+                result.add(labels[slot]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the entry closest to {@code query} in the gallery's metric.
+     *
+     * @return false when the gallery is empty, {@code out} is left reset then
+     */
+    public boolean findNearest(float[] query, Match out) {
+        checkDimension(query);
+        out.reset();
+
+        int bestSlot;
+        if (indexed) {
+            float[] normalized = query;
+            if (metric == Metric.COSINE) {
+                normalize(query, 0, this.query);
+                normalized = this.query;
+            }
+            bestSlot = index.search(normalized, 1, indexSlot, indexDistance) > 0 ? indexSlot[0] : -1;
+            out.distance = metric == Metric.COSINE
+                    ? indexDistance[0]
+                    : (float) Math.sqrt(indexDistance[0]);
+        } else if (quantized) {
+            float[] normalized = query;
+            if (metric == Metric.COSINE) {
+                normalize(query, 0, this.query);
+                normalized = this.query;
+            }
+            bestSlot = quantizedScan(normalized, out);
+        } else if (metric == Metric.COSINE) {
+            normalize(query, 0, this.query);
+            bestSlot = maxInnerProduct(this.query, out);
+        } else {
+            bestSlot = minSquaredDistance(query, out);
+        }
+
+        if (bestSlot < 0) {
+            out.reset();
+            return false;
+        }
+        out.id = ids[bestSlot];
+        out.label = labels[bestSlot];
+        return true;
+    }
+
+    /**
+     * Finds the {@link Matches#capacity() k} entries closest to {@code query}, closest first,
+     * the same way {@link #findNearest(float[], Match)} finds the first one. Quantized scans
+     * re-rank at least k candidates.
+     *
+     * @return the number of matches, fewer than k when the gallery is that small
+     */
+    public int findNearest(float[] query, Matches out) {
+        checkDimension(query);
+        out.reset();
+        int k = out.capacity();
+
+        float[] normalized = query;
+        if (metric == Metric.COSINE) {
+            normalize(query, 0, this.query);
+            normalized = this.query;
+        }
+
+        int count = 0;
+        if (indexed) {
+            count = index.search(normalized, k, out.slots, out.scores);
+        } else if (quantized) {
+            int candidates = quantizedCandidates(normalized, Math.max(k, rerankCount));
+            for (int c = 0; c < candidates; c++) {
+                int slot = candidateSlots[c];
+                count = insert(out.slots, out.scores, count, k, slot, rawDistance(normalized, 0, slot));
+            }
+        } else {
+            for (int slot = 0; slot < slots; slot++) {
+                if (ids[slot] != REMOVED) {
+                    count = insert(out.slots, out.scores, count, k, slot, rawDistance(normalized, 0, slot));
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int slot = out.slots[i];
+            out.ids[i] = ids[slot];
+            out.labels[i] = labels[slot];
+            out.distances[i] = metric == Metric.COSINE ? out.scores[i] : (float) Math.sqrt(out.scores[i]);
+        }
+        out.count = count;
+        return count;
+    }
+
+    private int minSquaredDistance(float[] query, Match out) {
+        final float[] vectors = this.vectors;
+        final int dimension = this.dimension;
+        final int unrolled = dimension & ~3;
+        int bestSlot = -1;
+        float best = Float.MAX_VALUE;
+
+        for (int slot = 0, offset = 0; slot < slots; slot++, offset += dimension) {
+            if (ids[slot] == REMOVED) {
+                continue;
+            }
+            // Squared distance, the square root is only taken for the winner.
+            float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            int i = 0;
+            for (; i < unrolled; i += 4) {
+                float diff0 = query[i] - vectors[offset + i];
+                float diff1 = query[i + 1] - vectors[offset + i + 1];
+                float diff2 = query[i + 2] - vectors[offset + i + 2];
+                float diff3 = query[i + 3] - vectors[offset + i + 3];
+                d0 += diff0 * diff0;
+                d1 += diff1 * diff1;
+                d2 += diff2 * diff2;
+                d3 += diff3 * diff3;
+            }
+            for (; i < dimension; i++) {
+                float diff = query[i] - vectors[offset + i];
+                d0 += diff * diff;
+            }
+            float distance = (d0 + d1) + (d2 + d3);
+            if (distance < best) {
+                best = distance;
+                bestSlot = slot;
+            }
+        }
+
+        out.distance = (float) Math.sqrt(best);
+        return bestSlot;
+    }
+
+    private int maxInnerProduct(float[] query, Match out) {
+        final float[] vectors = this.vectors;
+        final int dimension = this.dimension;
+        final int unrolled = dimension & ~3;
+        int bestSlot = -1;
+        float best = -Float.MAX_VALUE;
+
+        for (int slot = 0, offset = 0; slot < slots; slot++, offset += dimension) {
+            if (ids[slot] == REMOVED) {
+                continue;
+            }
+            float p0 = 0, p1 = 0, p2 = 0, p3 = 0;
+            int i = 0;
+            for (; i < unrolled; i += 4) {
+                p0 += query[i] * vectors[offset + i];
+                p1 += query[i + 1] * vectors[offset + i + 1];
+                p2 += query[i + 2] * vectors[offset + i + 2];
+                p3 += query[i + 3] * vectors[offset + i + 3];
+            }
+            for (; i < dimension; i++) {
+                p0 += query[i] * vectors[offset + i];
+            }
+            float similarity = (p0 + p1) + (p2 + p3);
+            if (similarity > best) {
+                best = similarity;
+                bestSlot = slot;
+            }
+        }
+
+        out.distance = 1f - best;
+        return bestSlot;
+    }
+
+    /**
+     * Scans the int8 codes for the {@link #rerankCount} closest candidates, then picks the best
+     * of those by their distance to the float query.
+     */
+    private int quantizedScan(float[] query, Match out) {
+        int candidates = quantizedCandidates(query, rerankCount);
+        int bestSlot = -1;
+        float best = Float.MAX_VALUE;
+        for (int c = 0; c < candidates; c++) {
+            float distance = rawDistance(query, 0, candidateSlots[c]);
+            if (distance < best) {
+                best = distance;
+                bestSlot = candidateSlots[c];
+            }
+        }
+        out.distance = metric == Metric.COSINE ? best : (float) Math.sqrt(best);
+        return bestSlot;
+    }
+
+    /**
+     * Scans the int8 codes for the {@code count} closest candidates, left in
+     * {@link #candidateSlots} sorted by their approximate score.
+     *
+     * @return the number of candidates
+     */
+    private int quantizedCandidates(float[] query, int count) {
+        if (candidateSlots.length < count) {
+            candidateSlots = new int[count];
+            candidateScores = new float[count];
+        }
+        final byte[] codes = this.codes;
+        final byte[] queryCode = this.queryCode;
+        final int dimension = this.dimension;
+        final int unrolled = dimension & ~3;
+        final boolean cosine = metric == Metric.COSINE;
+        final float queryScale = quantize(query, 0, queryCode, 0);
+        final int[] candidateSlots = this.candidateSlots;
+        final float[] candidateScores = this.candidateScores;
+
+        // Candidates sorted by score, lowest first.
+        int candidates = 0;
+        for (int slot = 0, offset = 0; slot < slots; slot++, offset += dimension) {
+            if (ids[slot] == REMOVED) {
+                continue;
+            }
+            int p0 = 0, p1 = 0, p2 = 0, p3 = 0;
+            int i = 0;
+            for (; i < unrolled; i += 4) {
+                p0 += queryCode[i] * codes[offset + i];
+                p1 += queryCode[i + 1] * codes[offset + i + 1];
+                p2 += queryCode[i + 2] * codes[offset + i + 2];
+                p3 += queryCode[i + 3] * codes[offset + i + 3];
+            }
+            for (; i < dimension; i++) {
+                p0 += queryCode[i] * codes[offset + i];
+            }
+            float product = queryScale * scales[slot] * ((p0 + p1) + (p2 + p3));
+            // Terms that are the same for every slot are left out, only the order matters.
+            float score = cosine ? -product : codeNorms[slot] - 2 * product;
+
+            candidates = insert(candidateSlots, candidateScores, candidates, count, slot, score);
+        }
+        return candidates;
+    }
+
+    /**
+     * Adds {@code slot} to the {@code count} lowest scores kept sorted in {@code slots} and
+     * {@code scores}, unless it is not among the {@code capacity} lowest.
+     *
+     * @return the new count
+     */
+    static int insert(int[] slots, float[] scores, int count, int capacity, int slot, float score) {
+        if (count == capacity && score >= scores[count - 1]) {
+            return count;
+        }
+        int at = count < capacity ? count++ : count - 1;
+        for (; at > 0 && scores[at - 1] > score; at--) {
+            slots[at] = slots[at - 1];
+            scores[at] = scores[at - 1];
+        }
+        slots[at] = slot;
+        scores[at] = score;
+        return count;
+    }
+
+    /** Squeezes removed slots out of the arrays, keeping the order of the live entries. */
+    public void compact() {
+        int[] slotMap = indexed ? new int[slots] : null;
+        int target = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (ids[slot] == REMOVED) {
+                if (slotMap != null) {
+                    slotMap[slot] = REMOVED;
+                }
+                continue;
+            }
+            if (slotMap != null) {
+                slotMap[slot] = target;
+            }
+            if (target != slot) {
+                ids[target] = ids[slot];
+                labels[target] = labels[slot];
+                if (quantized) {
+                    System.arraycopy(codes, slot * dimension, codes, target * dimension, dimension);
+                    scales[target] = scales[slot];
+                    codeNorms[target] = codeNorms[slot];
+                } else {
+                    System.arraycopy(vectors, slot * dimension, vectors, target * dimension, dimension);
+                }
+            }
+            target++;
+        }
+        Arrays.fill(labels, target, slots, null);
+        slots = target;
+        removed = 0;
+        if (slotMap != null) {
+            index.compact(slotMap, slots);
+        }
+    }
+
+    /** Builds the index once the gallery outgrows exact scans. */
+    private void updateIndex() {
+        if (index != null && !indexed && size() > exactScanLimit) {
+            indexed = true;
+            index.rebuild();
+        }
+    }
+
+    /**
+     * Replaces every entry with {@code count} stored vectors read straight from {@code vectors},
+     * e.g. a mapped gallery file. Ids must be increasing. {@code codes} and {@code scales} hold
+     * their int8 codes, or are null to quantize again when the gallery is quantized;
+     * {@code vectors} may be null when there are codes, they are decoded then when the gallery is
+     * not quantized.
+     */
+    void restore(int count, int nextId, int[] ids, String[] labels, FloatBuffer vectors,
+                 ByteBuffer codes, FloatBuffer scales) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < count) {
+            capacity *= 2;
+        }
+        this.ids = Arrays.copyOf(ids, capacity);
+        this.labels = Arrays.copyOf(labels, capacity);
+        this.slots = count;
+        this.removed = 0;
+        this.nextId = nextId;
+
+        if (!quantized) {
+            this.vectors = new float[capacity * dimension];
+            if (vectors != null) {
+                vectors.get(this.vectors, 0, count * dimension);
+            } else {
+                for (int slot = 0, offset = 0; slot < count; slot++, offset += dimension) {
+                    float scale = scales.get(slot);
+                    for (int i = 0; i < dimension; i++) {
+                        this.vectors[offset + i] = codes.get(offset + i) * scale;
+                    }
+                }
+            }
+        } else {
+            this.vectors = null;
+            this.codes = new byte[capacity * dimension];
+            this.scales = new float[capacity];
+            this.codeNorms = new float[capacity];
+            if (codes != null && scales != null) {
+                codes.get(this.codes, 0, count * dimension);
+                scales.get(this.scales, 0, count);
+                for (int slot = 0, offset = 0; slot < count; slot++, offset += dimension) {
+                    float norm = 0;
+                    for (int i = 0; i < dimension; i++) {
+                        norm += this.codes[offset + i] * this.codes[offset + i];
+                    }
+                    codeNorms[slot] = norm * this.scales[slot] * this.scales[slot];
+                }
+            } else {
+                for (int slot = 0; slot < count; slot++) {
+                    vectors.get(scratch);
+                    quantize(scratch, 0, slot);
+                }
+            }
+        }
+
+        indexed = false;
+        updateIndex();
+    }
+
+    /** Adds an entry under a known id, without telling the listener. */
+    void restore(int id, String label, float[] embedding) {
+        append(id, label, embedding);
+    }
+
+    /** Slots in use, including removed ones, for indexes. */
+    int slotCount() {
+        return slots;
+    }
+
+    boolean isLive(int slot) {
+        return ids[slot] != REMOVED;
+    }
+
+    int idAt(int slot) {
+        return ids[slot];
+    }
+
+    String labelAt(int slot) {
+        return labels[slot];
+    }
+
+    int nextId() {
+        return nextId;
+    }
+
+    /** Int8 codes of the stored embeddings when quantized, laid out like {@link #vectors()}. */
+    byte[] codes() {
+        return codes;
+    }
+
+    float[] scales() {
+        return scales;
+    }
+
+    /**
+     * Backing array of the stored embeddings, slot {@code s} starts at {@code s * dimension}.
+     * Null while quantized.
+     */
+    float[] vectors() {
+        return vectors;
+    }
+
+    /** Copies the stored vector of {@code slot}, decoded when quantized, into {@code out}. */
+    void vectorAt(int slot, float[] out) {
+        if (quantized) {
+            decode(slot, out, 0);
+        } else {
+            System.arraycopy(vectors, slot * dimension, out, 0, dimension);
+        }
+    }
+
+    /**
+     * Raw scan score between {@code query}, read from {@code queryOffset}, and the vector in
+     * {@code slot}: squared euclidean distance, or 1 - inner product in cosine mode.
+     */
+    float rawDistance(float[] query, int queryOffset, int slot) {
+        if (quantized) {
+            return decodedDistance(query, queryOffset, slot);
+        }
+        final float[] vectors = this.vectors;
+        final int offset = slot * dimension;
+        final int unrolled = dimension & ~3;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        if (metric == Metric.COSINE) {
+            for (; i < unrolled; i += 4) {
+                s0 += query[queryOffset + i] * vectors[offset + i];
+                s1 += query[queryOffset + i + 1] * vectors[offset + i + 1];
+                s2 += query[queryOffset + i + 2] * vectors[offset + i + 2];
+                s3 += query[queryOffset + i + 3] * vectors[offset + i + 3];
+            }
+            for (; i < dimension; i++) {
+                s0 += query[queryOffset + i] * vectors[offset + i];
+            }
+            return 1f - ((s0 + s1) + (s2 + s3));
+        }
+        for (; i < unrolled; i += 4) {
+            float diff0 = query[queryOffset + i] - vectors[offset + i];
+            float diff1 = query[queryOffset + i + 1] - vectors[offset + i + 1];
+            float diff2 = query[queryOffset + i + 2] - vectors[offset + i + 2];
+            float diff3 = query[queryOffset + i + 3] - vectors[offset + i + 3];
+            s0 += diff0 * diff0;
+            s1 += diff1 * diff1;
+            s2 += diff2 * diff2;
+            s3 += diff3 * diff3;
+        }
+        for (; i < dimension; i++) {
+            float diff = query[queryOffset + i] - vectors[offset + i];
+            s0 += diff * diff;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    float rawDistance(int slotA, int slotB) {
+        if (quantized) {
+            decode(slotA, scratch, 0);
+            return decodedDistance(scratch, 0, slotB);
+        }
+        return rawDistance(vectors, slotA * dimension, slotB);
+    }
+
+    /** {@link #rawDistance(float[], int, int)} against the decoded code of {@code slot}. */
+    private float decodedDistance(float[] query, int queryOffset, int slot) {
+        final byte[] codes = this.codes;
+        final int offset = slot * dimension;
+        final float scale = scales[slot];
+        float s0 = 0;
+        if (metric == Metric.COSINE) {
+            for (int i = 0; i < dimension; i++) {
+                s0 += query[queryOffset + i] * codes[offset + i];
+            }
+            return 1f - scale * s0;
+        }
+        for (int i = 0; i < dimension; i++) {
+            float diff = query[queryOffset + i] - scale * codes[offset + i];
+            s0 += diff * diff;
+        }
+        return s0;
+    }
+
+    private void store(float[] embedding, int slot) {
+        float[] target = quantized ? scratch : vectors;
+        int offset = quantized ? 0 : slot * dimension;
+        if (metric == Metric.COSINE) {
+            normalize(embedding, offset, target);
+        } else {
+            System.arraycopy(embedding, 0, target, offset, dimension);
+        }
+        if (quantized) {
+            quantize(scratch, 0, slot);
+        }
+    }
+
+    /** Stores the int8 code of the vector at {@code offset} as the code of {@code slot}. */
+    private void quantize(float[] vector, int offset, int slot) {
+        int codeOffset = slot * dimension;
+        float scale = quantize(vector, offset, codes, codeOffset);
+        float norm = 0;
+        for (int i = 0; i < dimension; i++) {
+            norm += codes[codeOffset + i] * codes[codeOffset + i];
+        }
+        scales[slot] = scale;
+        codeNorms[slot] = norm * scale * scale;
+    }
+
+    private void decode(int slot, float[] out, int outOffset) {
+        int offset = slot * dimension;
+        float scale = scales[slot];
+        for (int i = 0; i < dimension; i++) {
+            out[outOffset + i] = codes[offset + i] * scale;
+        }
+    }
+
+    /**
+     * Writes the int8 code of the vector at {@code offset} into {@code out} from
+     * {@code outOffset} and returns its scale, the largest magnitude maps to 127.
+     */
+    private float quantize(float[] vector, int offset, byte[] out, int outOffset) {
+        float max = 0;
+        for (int i = 0; i < dimension; i++) {
+            max = Math.max(max, Math.abs(vector[offset + i]));
+        }
+        if (max == 0) {
+            Arrays.fill(out, outOffset, outOffset + dimension, (byte) 0);
+            return 0f;
+        }
+        float inverse = 127f / max;
+        for (int i = 0; i < dimension; i++) {
+            out[outOffset + i] = (byte) Math.round(vector[offset + i] * inverse);
+        }
+        return max / 127f;
+    }
+
+    /** Writes {@code embedding} scaled to unit length into {@code out} from {@code offset}. */
+    private void normalize(float[] embedding, int offset, float[] out) {
+        float norm = 0;
+        for (int i = 0; i < dimension; i++) {
+            norm += embedding[i] * embedding[i];
+        }
+        float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        for (int i = 0; i < dimension; i++) {
+            out[offset + i] = embedding[i] * scale;
+        }
+    }
+
+    private int slotOf(int id) {
+        if (id < 0) {
+            return -1;
+        }
+        // Ids are handed out in increasing order and compaction keeps the order.
+        int slot = Arrays.binarySearch(ids, 0, slots, id);
+        if (slot >= 0) {
+            return slot;
+        }
+        // Removed slots break the ordering, fall back to a scan.
+        for (slot = 0; slot < slots; slot++) {
+            if (ids[slot] == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        if (vectors != null) {
+            vectors = Arrays.copyOf(vectors, capacity * dimension);
+        }
+        ids = Arrays.copyOf(ids, capacity);
+        labels = Arrays.copyOf(labels, capacity);
+        if (quantized) {
+            codes = Arrays.copyOf(codes, capacity * dimension);
+            scales = Arrays.copyOf(scales, capacity);
+            codeNorms = Arrays.copyOf(codeNorms, capacity);
+        }
+    }
+
+    private void checkDimension(float[] embedding) {
+        if (embedding.length != dimension) {
+            throw new IllegalArgumentException(
+                    "Embedding has " + embedding.length + " values, gallery expects " + dimension);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.Image;
+
+import androidx.annotation.Nullable;
+
+import com.google.mlkit.vision.face.Face;
+
+/**
+ * Decides before any cropping or inference whether a detected face is worth embedding.
+ *
+ * Faces too small or turned too far away to ever give a usable embedding are dropped. Faces
+ * that may well be fine a moment later, blurred by motion or with both eyes closed, are
+ * deferred: the realtime analyzer retries them on a later frame, a single image has nothing
+ * better and embeds them anyway. Eye-open probabilities are only used when the detector runs
+ * with {@code CLASSIFICATION_MODE_ALL}.
+ *
+ * Blur is measured as the variance of the Laplacian of the face's luma, sampled on a grid of
+ * at most {@link #SHARPNESS_GRID} points a side, about the detail the 112x112 model input keeps.
+ * It is only computed for faces that pass the cheaper checks, into a buffer the instance reuses,
+ * so an instance checks faces on one thread at a time; see {@link #copy()}.
+ */
+public class FaceQuality {
+
+    public enum Decision {
+        /** Good enough, embed it. */
+        EMBED,
+        /** Probably better on a later frame. */
+        DEFER,
+        /** Not worth embedding at all. */
+        DROP
+    }
+
+    /** Luma samples per side the sharpness is measured on. */
+    static final int SHARPNESS_GRID = 56;
+
+    private float minFaceSize = 32;
+    private float maxYaw = 40;
+    private float maxRoll = 45;
+    private float minEyeOpen = 0.2f;
+    private float minSharpness = 15;
+
+    // the grid is never larger
+    private final int[] luma = new int[SHARPNESS_GRID * SHARPNESS_GRID];
+
+    /** A check with the same settings, e.g. for another thread. */
+    public FaceQuality copy() {
+        return new FaceQuality()
+                .setMinFaceSize(minFaceSize)
+                .setMaxYaw(maxYaw)
+                .setMaxRoll(maxRoll)
+                .setMinEyeOpen(minEyeOpen)
+                .setMinSharpness(minSharpness);
+    }
+
+    /** Shorter box side, in source pixels, below which faces are dropped, 32 by default. */
+    public FaceQuality setMinFaceSize(float minFaceSize) {
+        this.minFaceSize = minFaceSize;
+        return this;
+    }
+
+    /** Head turn left or right, in degrees, beyond which faces are dropped, 40 by default. */
+    public FaceQuality setMaxYaw(float maxYaw) {
+        this.maxYaw = maxYaw;
+        return this;
+    }
+
+    /**
+     * Head tilt, in degrees, beyond which faces are dropped, 45 by default; alignment undoes
+     * smaller tilts.
+     */
+    public FaceQuality setMaxRoll(float maxRoll) {
+        this.maxRoll = maxRoll;
+        return this;
+    }
+
+    /** Eye-open probability both eyes have to be under for a face to be deferred, 0.2 by default. */
+    public FaceQuality setMinEyeOpen(float minEyeOpen) {
+        this.minEyeOpen = minEyeOpen;
+        return this;
+    }
+
+    /** Laplacian variance below which faces are deferred as blurred, 15 by default; 0 turns it off. */
+    public FaceQuality setMinSharpness(float minSharpness) {
+        this.minSharpness = minSharpness;
+        return this;
+    }
+
+    /**
+     * Checks a face of a camera frame.
+     *
+     * @param image    frame in YUV_420_888, in sensor orientation
+     * @param rotation degrees the frame has to be rotated clockwise to be upright
+     */
+    public Decision check(Face face, Image image, int rotation) {
+        Rect box = face.getBoundingBox();
+        Decision decision = check(face, Math.min(box.width(), box.height()));
+        if (decision != Decision.EMBED || minSharpness <= 0) {
+            return decision;
+        }
+        int size = gridSize(box);
+        YuvFaceCropper.sampleLuma(image, rotation, box, size, luma);
+        return sharpness(luma, size) < minSharpness ? Decision.DEFER : Decision.EMBED;
+    }
+
+    /**
+     * Checks a face detected in an upright bitmap.
+     *
+     * @param scale source pixels per bitmap pixel, e.g. {@link SampledImage#sampleSize}
+     */
+    public Decision check(Face face, Bitmap bitmap, int scale) {
+        Rect box = face.getBoundingBox();
+        Decision decision = check(face, Math.min(box.width(), box.height()) * scale);
+        if (decision != Decision.EMBED || minSharpness <= 0) {
+            return decision;
+        }
+        int size = gridSize(box);
+        float stepX = (float) box.width() / size;
+        float stepY = (float) box.height() / size;
+        int i = 0;
+        for (int gy = 0; gy < size; gy++) {
+            int y = Math.max(0, Math.min(bitmap.getHeight() - 1, box.top + (int) ((gy + 0.5f) * stepY)));
+            for (int gx = 0; gx < size; gx++) {
+                int x = Math.max(0, Math.min(bitmap.getWidth() - 1, box.left + (int) ((gx + 0.5f) * stepX)));
+                int color = bitmap.getPixel(x, y);
+                luma[i++] = (77 * ((color >> 16) & 0xFF) + 150 * ((color >> 8) & 0xFF) + 29 * (color & 0xFF)) >> 8;
+            }
+        }
+        return sharpness(luma, size) < minSharpness ? Decision.DEFER : Decision.EMBED;
+    }
+
+    private Decision check(Face face, float faceSize) {
+        return check(faceSize, face.getHeadEulerAngleY(), face.getHeadEulerAngleZ(),
+                face.getLeftEyeOpenProbability(), face.getRightEyeOpenProbability());
+    }
+
+    /** The checks that don't need pixels. */
+    Decision check(float faceSize, float yaw, float roll,
+                   @Nullable Float leftEyeOpen, @Nullable Float rightEyeOpen) {
+        if (faceSize < minFaceSize || Math.abs(yaw) > maxYaw || Math.abs(roll) > maxRoll) {
+            return Decision.DROP;
+        }
+        if (leftEyeOpen != null && rightEyeOpen != null
+                && leftEyeOpen < minEyeOpen && rightEyeOpen < minEyeOpen) {
+            return Decision.DEFER;
+        }
+        return Decision.EMBED;
+    }
+
+    /** Grid no finer than the box's pixels, repeated samples would read as blur. */
+    private static int gridSize(Rect box) {
+        return Math.max(3, Math.min(SHARPNESS_GRID, Math.min(box.width(), box.height())));
+    }
+
+    /** Variance of the 4-neighbour Laplacian over the inside of a {@code size} x {@code size} grid. */
+    static float sharpness(int[] luma, int size) {
+        double sum = 0, sumSquares = 0;
+        int count = 0;
+        for (int y = 1; y < size - 1; y++) {
+            for (int x = 1; x < size - 1; x++) {
+                int i = y * size + x;
+                int laplacian = 4 * luma[i] - luma[i - 1] - luma[i + 1] - luma[i - size] - luma[i + size];
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        double mean = sum / count;
+        return (float) (sumSquares / count - mean * mean);
+    }
+}
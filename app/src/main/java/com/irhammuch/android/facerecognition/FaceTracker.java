@@ -0,0 +1,211 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Smooths the recognized identity of every face track seen by the realtime analyzer.
+ *
+ * Tracks are keyed by ML Kit's tracking id. Every recognition of a track is a vote for a name,
+ * or for unknown; the track commits to an identity once {@code commitVotes} votes in a row
+ * agree, and keeps showing it while a different one collects its votes, so single misses don't
+ * make labels flicker. Until a track commits it is embedded on every recognition; afterwards
+ * only every {@code verifyEvery} frames, or right away when its box jumps, which is how a
+ * tracking id passed on to another face shows. Distances to the identity are averaged over the
+ * agreeing votes. Faces without a tracking id commit on their single recognition and are never
+ * cached.
+ */
+public class FaceTracker {
+
+    private final int commitVotes;
+    private final int verifyEvery;
+    private final float minIou;
+    private final float smoothing;
+
+    private final HashMap<Integer, Track> tracks = new HashMap<>();
+    private long frame = 0;
+
+    public static class Track {
+        public final int trackingId;
+        /** Bounding box of the latest detection. */
+        public int left, top, right, bottom;
+        /** Embedding of the last recognition. */
+        public final float[] embedding = new float[EmbeddingExtractor.OUTPUT_SIZE];
+        /** Committed identity, null for unknown. */
+        public String name;
+        /** Smoothed distance to the committed identity. */
+        public float distance;
+
+        private boolean committed = false;
+        private boolean embedded = false;
+        @Nullable
+        private String candidate;
+        private int votes = 0;
+        private float candidateDistance;
+        private long verified;
+        private boolean jumped = false;
+        private long lastSeen;
+
+        Track(int trackingId) {
+            this.trackingId = trackingId;
+        }
+
+        void setBox(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        /** Whether the track committed to an identity, {@link #name} is meaningless before. */
+        public boolean isRecognized() {
+            return committed;
+        }
+    }
+
+    public FaceTracker() {
+        this(3, 45, 0.3f, 0.3f);
+    }
+
+    /**
+     * @param commitVotes agreeing recognitions in a row a track commits to an identity after
+     * @param verifyEvery frames after which a committed track is recognized again
+     * @param minIou      overlap between consecutive boxes of a track below which it is
+     *                    recognized again at once
+     * @param smoothing   weight of the newest distance in its running average
+     */
+    public FaceTracker(int commitVotes, int verifyEvery, float minIou, float smoothing) {
+        this.commitVotes = commitVotes;
+        this.verifyEvery = verifyEvery;
+        this.minIou = minIou;
+        this.smoothing = smoothing;
+    }
+
+    /** Starts a new frame, tracks not passed to {@link #update} before {@link #endFrame} are dropped. */
+    public void beginFrame() {
+        frame++;
+    }
+
+    /** Registers a detection of this frame, see {@link #update(Integer, int, int, int, int)}. */
+    public Track update(@Nullable Integer trackingId, Rect box) {
+        return update(trackingId, box.left, box.top, box.right, box.bottom);
+    }
+
+    /**
+     * Registers a detection of this frame. Faces without a tracking id get a throwaway track
+     * that always needs recognition.
+     */
+    public Track update(@Nullable Integer trackingId, int left, int top, int right, int bottom) {
+        if (trackingId == null) {
+            Track untracked = new Track(-1);
+            untracked.setBox(left, top, right, bottom);
+            return untracked;
+        }
+
+        Track track = tracks.get(trackingId);
+        if (track == null) {
+            track = new Track(trackingId);
+            tracks.put(trackingId, track);
+        } else if (iou(track, left, top, right, bottom) < minIou) {
+            track.jumped = true;
+        }
+        track.setBox(left, top, right, bottom);
+        track.lastSeen = frame;
+        return track;
+    }
+
+    /** Whether the track has to be embedded in this frame. */
+    public boolean needsRecognition(Track track) {
+        return !track.committed
+                || track.votes < commitVotes
+                || track.jumped
+                || frame - track.verified >= verifyEvery;
+    }
+
+    /**
+     * Counts the result of embedding the track in this frame as a vote.
+     *
+     * @param name     matched name, or null when nothing in the gallery matched
+     * @param distance distance to the nearest face in the gallery
+     */
+    public void onRecognized(Track track, float[] embedding, @Nullable String name, float distance) {
+        System.arraycopy(embedding, 0, track.embedding, 0, track.embedding.length);
+        track.embedded = true;
+        track.jumped = false;
+
+        if (track.votes > 0 && equal(name, track.candidate)) {
+            track.votes++;
+            track.candidateDistance += smoothing * (distance - track.candidateDistance);
+        } else {
+            track.candidate = name;
+            track.votes = 1;
+            track.candidateDistance = distance;
+        }
+
+        int needed = track.trackingId < 0 ? 1 : commitVotes;
+        if (track.votes >= needed) {
+            track.name = track.candidate;
+            track.distance = track.candidateDistance;
+            track.committed = true;
+            track.verified = frame;
+        }
+    }
+
+    /** Drops tracks that were not detected in the current frame. */
+    public void endFrame() {
+        Iterator<Track> it = tracks.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().lastSeen != frame) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Makes every track vote again, e.g. after the gallery changed; they keep showing their
+     * identity until a new one is committed.
+     */
+    public void invalidate() {
+        for (Track track : tracks.values()) {
+            track.votes = 0;
+        }
+    }
+
+    /** Embedded track with the largest box in the current frame, or null when there is none. */
+    @Nullable
+    public Track largest() {
+        Track largest = null;
+        long largestArea = -1;
+        for (Track track : tracks.values()) {
+            long area = (long) (track.right - track.left) * (track.bottom - track.top);
+            if (track.lastSeen == frame && track.embedded && area > largestArea) {
+                largest = track;
+                largestArea = area;
+            }
+        }
+        return largest;
+    }
+
+    private static boolean equal(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Overlap of the track's box with the box of a new detection. */
+    private static float iou(Track a, int left, int top, int right, int bottom) {
+        int overlapLeft = Math.max(a.left, left);
+        int overlapTop = Math.max(a.top, top);
+        int overlapRight = Math.min(a.right, right);
+        int overlapBottom = Math.min(a.bottom, bottom);
+        if (overlapRight <= overlapLeft || overlapBottom <= overlapTop) {
+            return 0f;
+        }
+        float intersection = (float) (overlapRight - overlapLeft) * (overlapBottom - overlapTop);
+        float union = (float) (a.right - a.left) * (a.bottom - a.top)
+                + (float) (right - left) * (bottom - top) - intersection;
+        return intersection / union;
+    }
+}
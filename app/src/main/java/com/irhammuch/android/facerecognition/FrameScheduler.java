@@ -0,0 +1,132 @@
+package com.irhammuch.android.facerecognition;
+
+/**
+ * Decides which camera frames the realtime analyzer detects faces in, and on which of those it
+ * also recognizes them, so that latency stays flat when the device can't keep up.
+ *
+ * Only one detection is in flight at a time; frames arriving meanwhile, or sooner than the
+ * detection interval after the last one, are dropped. Recognition, the more expensive step, has
+ * its own longer interval. Both intervals stretch when the measured cost of the step grows: a
+ * detection is never started sooner than its average latency allows, and recognition is kept
+ * under a share of the time between recognitions. Every frame is counted, for logging.
+ *
+ * Times are in milliseconds from any monotonic clock. Methods are synchronized: in the realtime
+ * activity {@link #onFrame} runs on the analysis executor the camera delivers frames on, and
+ * {@link #onDetectionFinished}, {@link #shouldRecognize} and {@link #onRecognitionFinished} on
+ * the inference executor of its {@link FaceDetectionSession}; none run on the main thread.
+ */
+public class FrameScheduler {
+
+    // Weight of the newest measurement in the moving averages.
+    private static final float SMOOTHING = 0.2f;
+    // Headroom over the average detection latency.
+    private static final float DETECTION_HEADROOM = 1.2f;
+    // Share of the time between recognitions recognition may take.
+    private static final float RECOGNITION_BUDGET = 0.5f;
+
+    private final long detectionIntervalMs;
+    private final long recognitionIntervalMs;
+
+    private boolean detecting = false;
+    private long detectionStartMs;
+    private long nextDetectionMs = 0;
+    private long nextRecognitionMs = 0;
+    private float detectionLatencyMs = 0;
+    private float recognitionCostMs = 0;
+
+    private long framesSeen = 0;
+    private long framesDropped = 0;
+    private long framesDetected = 0;
+    private long recognitions = 0;
+
+    /** Detection at most every 33ms, about 30 fps, and recognition every 200ms. */
+    public FrameScheduler() {
+        this(33, 200);
+    }
+
+    /**
+     * @param detectionIntervalMs   shortest time between two detections
+     * @param recognitionIntervalMs shortest time between two recognitions
+     */
+    public FrameScheduler(long detectionIntervalMs, long recognitionIntervalMs) {
+        this.detectionIntervalMs = detectionIntervalMs;
+        this.recognitionIntervalMs = recognitionIntervalMs;
+    }
+
+    /**
+     * Called for every camera frame. Returns whether to detect faces in it, and if so marks a
+     * detection as started; {@link #onDetectionFinished} must follow.
+     */
+    public synchronized boolean onFrame(long nowMs) {
+        framesSeen++;
+        if (detecting || nowMs < nextDetectionMs) {
+            framesDropped++;
+            return false;
+        }
+        detecting = true;
+        detectionStartMs = nowMs;
+        framesDetected++;
+        return true;
+    }
+
+    /** Ends the detection started by {@link #onFrame}, whether it succeeded or not. */
+    public synchronized void onDetectionFinished(long nowMs) {
+        if (!detecting) {
+            return;
+        }
+        detecting = false;
+        detectionLatencyMs = average(detectionLatencyMs, nowMs - detectionStartMs);
+        nextDetectionMs = detectionStartMs
+                + Math.max(detectionIntervalMs, (long) (detectionLatencyMs * DETECTION_HEADROOM));
+    }
+
+    /** Whether the faces of the frame detected now should be recognized. */
+    public synchronized boolean shouldRecognize(long nowMs) {
+        return nowMs >= nextRecognitionMs;
+    }
+
+    /** Records a recognition that started at {@code startMs} and ended at {@code nowMs}. */
+    public synchronized void onRecognitionFinished(long startMs, long nowMs) {
+        recognitions++;
+        recognitionCostMs = average(recognitionCostMs, nowMs - startMs);
+        nextRecognitionMs = startMs
+                + Math.max(recognitionIntervalMs, (long) (recognitionCostMs / RECOGNITION_BUDGET));
+    }
+
+    /** Time between detections currently enforced. */
+    public synchronized long detectionIntervalMs() {
+        return Math.max(detectionIntervalMs, (long) (detectionLatencyMs * DETECTION_HEADROOM));
+    }
+
+    /** Time between recognitions currently enforced. */
+    public synchronized long recognitionIntervalMs() {
+        return Math.max(recognitionIntervalMs, (long) (recognitionCostMs / RECOGNITION_BUDGET));
+    }
+
+    public synchronized long framesSeen() {
+        return framesSeen;
+    }
+
+    public synchronized long framesDropped() {
+        return framesDropped;
+    }
+
+    public synchronized long framesDetected() {
+        return framesDetected;
+    }
+
+    public synchronized long recognitions() {
+        return recognitions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "frames " + framesSeen + ", dropped " + framesDropped
+                + ", detected " + framesDetected + ", recognized " + recognitions
+                + ", intervals " + detectionIntervalMs() + "/" + recognitionIntervalMs() + "ms";
+    }
+
+    private static float average(float average, long sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
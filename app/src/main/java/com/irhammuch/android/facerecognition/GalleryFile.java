@@ -0,0 +1,580 @@
+package com.irhammuch.android.facerecognition;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps a {@link FaceGallery} on disk.
+ *
+ * The file is a snapshot followed by a journal. The snapshot has a fixed header, a labels table
+ * and the stored embeddings as one aligned float block, or as an int8 block with per-vector
+ * scales when the gallery is quantized. It is opened with {@link FileChannel#map} and the blocks are bulk-copied into the
+ * gallery, so loading costs about as much as reading the file. Every change made afterwards is
+ * appended to the journal as a small record and replayed on the next load; once the journal
+ * outgrows the snapshot the file is rewritten.
+ *
+ * Records are written as the changes are made, or with {@link #setDeferred} queued in memory
+ * until {@link #flush()}, so a gallery shared between threads can be changed under a lock that
+ * isn't held for the disk writes. Flushing may run alongside the changes that queue the next
+ * records.
+ *
+ * Files written before faces were aligned on their landmarks, see {@link FaceAlignment}, lack
+ * the aligned flag; {@link #isAligned()} tells callers to have those faces enrolled again.
+ *
+ * All values are little endian.
+ */
+public class GalleryFile implements FaceGallery.Listener, Closeable {
+    private static final String TAG = "GalleryFile";
+
+    private static final int MAGIC = 0x4C414746; // "FGAL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ALIGNMENT = 16;
+    private static final int FLAG_CODES = 1;
+    private static final int FLAG_ALIGNED = 2;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_UPDATE = 2;
+    private static final byte RECORD_REMOVE = 3;
+    private static final byte RECORD_RELABEL = 4;
+
+    /** Journal size, on top of the snapshot size, that triggers a rewrite. */
+    private static final long MIN_JOURNAL_BYTES = 256 * 1024;
+
+    /** Appended to the name of a file that could not be loaded when it is moved aside. */
+    public static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private FileChannel journal;
+    private long snapshotBytes;
+    private long journalBytes;
+    private ByteBuffer record;
+    private float[] embedding;
+    private boolean aligned = true;
+
+    // Held while records are written and the journal is swapped, always taken before this.
+    private final Object flushLock = new Object();
+    private volatile boolean deferred = false;
+    private ByteBuffer pending; // records waiting to be written
+    private ByteBuffer spare; // the other of the two queues, written to while pending fills
+    private boolean rewriteDue = false;
+
+    public GalleryFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads {@code gallery} from {@code file} and journals its changes there. A file that can't
+     * be read is moved aside to {@code <file>.corrupt}, so it can still be recovered, and the
+     * gallery starts empty in a new file. When it can't be moved either the file is left alone
+     * and the gallery isn't saved.
+     */
+    public static GalleryFile open(File file, FaceGallery gallery) {
+        GalleryFile galleryFile = new GalleryFile(file);
+        try {
+            galleryFile.load(gallery);
+        } catch (IOException e) {
+            File aside = new File(file.getPath() + CORRUPT_SUFFIX);
+            aside.delete();
+            if (!file.renameTo(aside)) {
+                Log.e(TAG, "Could not load " + file + " nor move it aside, faces will not be saved", e);
+                return galleryFile;
+            }
+            Log.w(TAG, "Could not load " + file + ", moved it to " + aside + " and starting over", e);
+            try {
+                galleryFile.save(gallery);
+                gallery.setListener(galleryFile);
+            } catch (IOException e2) {
+                Log.e(TAG, "Could not create " + file + ", faces will not be saved", e2);
+            }
+        }
+        return galleryFile;
+    }
+
+    /**
+     * Fills {@code gallery} from the file, if there is one, and starts journaling its changes.
+     *
+     * @throws IOException when the file can't be read or was written for another gallery
+     *                     layout, the gallery is left untouched then
+     */
+    public void load(FaceGallery gallery) throws IOException {
+        close();
+        discardPending();
+        long end = file.exists() ? read(gallery) : -1;
+        if (end < 0) {
+            save(gallery);
+        } else {
+            openJournal(end);
+        }
+        gallery.setListener(this);
+    }
+
+    /** Rewrites the file as a snapshot of {@code gallery}, dropping the journal. */
+    public void save(FaceGallery gallery) throws IOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                write(gallery);
+            }
+        }
+    }
+
+    private void write(FaceGallery gallery) throws IOException {
+        close();
+        // the snapshot holds every change the queued records describe
+        discardPending();
+        gallery.compact();
+
+        int dimension = gallery.dimension();
+        int count = gallery.slotCount();
+        boolean quantized = gallery.isQuantized();
+        if (count == 0) {
+            aligned = true;
+        }
+
+        byte[][] labels = new byte[count][];
+        int labelBytes = 0;
+        for (int slot = 0; slot < count; slot++) {
+            labels[slot] = gallery.labelAt(slot).getBytes(UTF_8);
+            labelBytes += labels[slot].length;
+        }
+
+        long labelsOffset = HEADER_SIZE;
+        // Only one of the float and int8 blocks is written, the other offset is 0.
+        long blockOffset = align(labelsOffset + 8L * count + labelBytes);
+        long vectorsOffset = quantized ? 0 : blockOffset;
+        long codesOffset = quantized ? blockOffset : 0;
+        long end = quantized
+                ? align(codesOffset + 4L * count + (long) count * dimension)
+                : align(vectorsOffset + 4L * count * dimension);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(end);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, end);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(dimension);
+            buffer.putInt(gallery.metric().ordinal());
+            buffer.putInt((quantized ? FLAG_CODES : 0) | (aligned ? FLAG_ALIGNED : 0));
+            buffer.putInt(count);
+            buffer.putInt(gallery.nextId());
+            buffer.putInt(labelBytes);
+            buffer.putLong(labelsOffset);
+            buffer.putLong(vectorsOffset);
+            buffer.putLong(codesOffset);
+            buffer.putLong(end);
+
+            // Labels table: ids, end offsets of the labels in the UTF-8 blob, the blob.
+            buffer.position((int) labelsOffset);
+            for (int slot = 0; slot < count; slot++) {
+                buffer.putInt(gallery.idAt(slot));
+            }
+            int labelEnd = 0;
+            for (int slot = 0; slot < count; slot++) {
+                labelEnd += labels[slot].length;
+                buffer.putInt(labelEnd);
+            }
+            for (byte[] label : labels) {
+                buffer.put(label);
+            }
+
+            if (quantized) {
+                buffer.position((int) codesOffset);
+                buffer.asFloatBuffer().put(gallery.scales(), 0, count);
+                buffer.position((int) (codesOffset + 4L * count));
+                buffer.put(gallery.codes(), 0, count * dimension);
+            } else {
+                buffer.position((int) vectorsOffset);
+                buffer.asFloatBuffer().put(gallery.vectors(), 0, count * dimension);
+            }
+            buffer.force();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+
+        snapshotBytes = end;
+        openJournal(end);
+    }
+
+    /**
+     * Whether the stored embeddings come from crops aligned on the face landmarks. When not,
+     * they match aligned probes poorly and should be enrolled or indexed again; the mark is kept
+     * through rewrites until the gallery is emptied.
+     */
+    public boolean isAligned() {
+        return aligned;
+    }
+
+    /**
+     * Queues journal records until {@link #flush()} instead of writing them as the gallery
+     * changes. The file is then only rewritten by {@link #rewriteIfDue}.
+     */
+    public void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    /** Writes the queued journal records, records queued meanwhile wait for the next flush. */
+    public void flush() {
+        synchronized (flushLock) {
+            ByteBuffer out;
+            FileChannel channel;
+            synchronized (this) {
+                if (pending == null || pending.position() == 0 || journal == null) {
+                    return;
+                }
+                out = pending;
+                pending = spare;
+                spare = null;
+                channel = journal;
+            }
+            out.flip();
+            long written = 0;
+            try {
+                while (out.hasRemaining()) {
+                    written += channel.write(out);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + file + ", changes are no longer saved", e);
+                close();
+                return;
+            }
+            out.clear();
+            synchronized (this) {
+                spare = out;
+                journalBytes += written;
+                rewriteDue = journalBytes > snapshotBytes + MIN_JOURNAL_BYTES;
+            }
+        }
+    }
+
+    /** Whether the journal outgrew the snapshot, see {@link #rewriteIfDue}. */
+    public synchronized boolean isRewriteDue() {
+        return rewriteDue;
+    }
+
+    /**
+     * Rewrites the file once the journal outgrew the snapshot. {@code gallery} must not change
+     * meanwhile, records queued for it are dropped as the snapshot holds their changes.
+     */
+    public void rewriteIfDue(FaceGallery gallery) {
+        if (!isRewriteDue()) {
+            return;
+        }
+        try {
+            save(gallery);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file + ", changes are no longer saved", e);
+            close();
+        }
+    }
+
+    /** Stops journaling, changes made to the gallery afterwards are not saved. */
+    @Override
+    public void close() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (journal != null) {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close " + file, e);
+                    }
+                    journal = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onAdded(FaceGallery gallery, int id) {
+        ByteBuffer out = beginRecord(gallery, RECORD_ADD, id);
+        byte[] label = gallery.label(id).getBytes(UTF_8);
+        if (out.remaining() < 2 + label.length + 4 * gallery.dimension()) {
+            out = record = growRecord(out, 2 + label.length + 4 * gallery.dimension());
+        }
+        out.putShort((short) label.length);
+        out.put(label);
+        putEmbedding(gallery, id, out);
+        append(gallery, out);
+    }
+
+    @Override
+    public void onUpdated(FaceGallery gallery, int id) {
+        ByteBuffer out = beginRecord(gallery, RECORD_UPDATE, id);
+        putEmbedding(gallery, id, out);
+        append(gallery, out);
+    }
+
+    @Override
+    public void onRemoved(FaceGallery gallery, int id) {
+        append(gallery, beginRecord(gallery, RECORD_REMOVE, id));
+        if (!aligned && gallery.isEmpty() && journal != null) {
+            // nothing unaligned is left, rewritten without the mark
+            try {
+                save(gallery);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + file + ", changes are no longer saved", e);
+                close();
+            }
+        }
+    }
+
+    @Override
+    public void onRelabeled(FaceGallery gallery, int id) {
+        ByteBuffer out = beginRecord(gallery, RECORD_RELABEL, id);
+        byte[] label = gallery.label(id).getBytes(UTF_8);
+        if (out.remaining() < 2 + label.length) {
+            out = record = growRecord(out, 2 + label.length);
+        }
+        out.putShort((short) label.length);
+        out.put(label);
+        append(gallery, out);
+    }
+
+    /** Returns the end of the last complete journal record, or -1 for an empty file. */
+    private long read(FaceGallery gallery) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if (length == 0) {
+                return -1;
+            }
+            if (length < HEADER_SIZE) {
+                throw new IOException("Truncated gallery file " + file);
+            }
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a gallery file: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported gallery file version " + version);
+            }
+            int dimension = buffer.getInt();
+            int metric = buffer.getInt();
+            if (dimension != gallery.dimension() || metric != gallery.metric().ordinal()) {
+                FaceGallery.Metric[] metrics = FaceGallery.Metric.values();
+                throw new IOException("Gallery file holds " + dimension + "-d "
+                        + (metric >= 0 && metric < metrics.length ? metrics[metric] : "metric " + metric)
+                        + " embeddings, expected " + gallery.dimension() + "-d " + gallery.metric());
+            }
+            int flags = buffer.getInt();
+            int count = buffer.getInt();
+            boolean aligned = (flags & FLAG_ALIGNED) != 0;
+            int nextId = buffer.getInt();
+            int labelBytes = buffer.getInt();
+            long labelsOffset = buffer.getLong();
+            long vectorsOffset = buffer.getLong();
+            long codesOffset = buffer.getLong();
+            long journalOffset = buffer.getLong();
+            // a corrupt header must not reach the array and buffer reads below
+            if (count < 0 || labelBytes < 0) {
+                throw new IOException("Corrupt header in " + file);
+            }
+            boolean quantized = (flags & FLAG_CODES) != 0;
+            if (journalOffset < HEADER_SIZE || journalOffset > length
+                    || !fits(labelsOffset, 8L * count + labelBytes, length)
+                    || vectorsOffset != 0 && !fits(vectorsOffset, 4L * count * dimension, length)
+                    || quantized && !fits(codesOffset, 4L * count + (long) count * dimension, length)) {
+                throw new IOException("Truncated gallery file " + file);
+            }
+
+            int[] ids = new int[count];
+            String[] labels = new String[count];
+            buffer.position((int) labelsOffset);
+            buffer.asIntBuffer().get(ids);
+            for (int slot = 0; slot < count; slot++) {
+                if (ids[slot] < (slot == 0 ? 0 : ids[slot - 1] + 1) || ids[slot] >= nextId) {
+                    throw new IOException("Corrupt ids in " + file);
+                }
+            }
+            int blob = (int) labelsOffset + 8 * count;
+            int labelStart = 0;
+            for (int slot = 0; slot < count; slot++) {
+                int labelEnd = buffer.getInt((int) labelsOffset + 4 * (count + slot));
+                if (labelEnd < labelStart || labelEnd > labelBytes) {
+                    throw new IOException("Corrupt labels table in " + file);
+                }
+                labels[slot] = decode(buffer, blob + labelStart, labelEnd - labelStart);
+                labelStart = labelEnd;
+            }
+            if (labelStart != labelBytes) {
+                throw new IOException("Corrupt labels table in " + file);
+            }
+
+            // Files of older versions may hold both blocks.
+            FloatBuffer vectors = null;
+            ByteBuffer codes = null;
+            ByteBuffer scales = null;
+            if (vectorsOffset != 0) {
+                buffer.position((int) vectorsOffset);
+                vectors = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            if (quantized) {
+                buffer.position((int) codesOffset);
+                scales = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                buffer.position((int) (codesOffset + 4L * count));
+                codes = buffer.slice();
+            }
+            if (vectors == null && codes == null) {
+                throw new IOException("No embeddings in " + file);
+            }
+            gallery.restore(count, nextId, ids, labels, vectors, codes,
+                    scales != null ? scales.asFloatBuffer() : null);
+
+            snapshotBytes = journalOffset;
+            this.aligned = aligned;
+            return replay(gallery, buffer, (int) journalOffset);
+        }
+    }
+
+    /** Applies the journal records and returns the end of the last complete one. */
+    private long replay(FaceGallery gallery, ByteBuffer buffer, int position) {
+        int dimension = gallery.dimension();
+        float[] embedding = new float[dimension];
+        int limit = buffer.limit();
+
+        while (position + 5 <= limit) {
+            buffer.position(position);
+            byte type = buffer.get();
+            int id = buffer.getInt();
+            if (type == RECORD_REMOVE) {
+                gallery.remove(id);
+            } else if (type == RECORD_UPDATE) {
+                if (buffer.remaining() < 4 * dimension) {
+                    break;
+                }
+                buffer.asFloatBuffer().get(embedding);
+                buffer.position(buffer.position() + 4 * dimension);
+                gallery.update(id, embedding);
+            } else if (type == RECORD_RELABEL) {
+                if (buffer.remaining() < 2) {
+                    break;
+                }
+                int labelLength = buffer.getShort() & 0xFFFF;
+                if (buffer.remaining() < labelLength) {
+                    break;
+                }
+                gallery.relabel(id, decode(buffer, buffer.position(), labelLength));
+                buffer.position(buffer.position() + labelLength);
+            } else if (type == RECORD_ADD) {
+                if (buffer.remaining() < 2) {
+                    break;
+                }
+                int labelLength = buffer.getShort() & 0xFFFF;
+                if (buffer.remaining() < labelLength + 4 * dimension) {
+                    break;
+                }
+                String label = decode(buffer, buffer.position(), labelLength);
+                buffer.position(buffer.position() + labelLength);
+                buffer.asFloatBuffer().get(embedding);
+                buffer.position(buffer.position() + 4 * dimension);
+                gallery.restore(id, label, embedding);
+            } else {
+                Log.w(TAG, "Unknown journal record " + type + " in " + file + ", dropping the rest");
+                break;
+            }
+            position = buffer.position();
+        }
+        return position;
+    }
+
+    private void openJournal(long end) throws IOException {
+        journal = new RandomAccessFile(file, "rw").getChannel();
+        // Drops a record torn by a crash while it was appended.
+        journal.truncate(end);
+        journal.position(end);
+        journalBytes = end - snapshotBytes;
+    }
+
+    private ByteBuffer beginRecord(FaceGallery gallery, byte type, int id) {
+        int size = 5 + 4 * gallery.dimension();
+        if (record == null || record.capacity() < size) {
+            record = ByteBuffer.allocate(size + 256).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        record.clear();
+        record.put(type);
+        record.putInt(id);
+        return record;
+    }
+
+    private static ByteBuffer growRecord(ByteBuffer record, int extra) {
+        ByteBuffer grown = ByteBuffer.allocate(record.position() + extra).order(ByteOrder.LITTLE_ENDIAN);
+        record.flip();
+        grown.put(record);
+        return grown;
+    }
+
+    private void putEmbedding(FaceGallery gallery, int id, ByteBuffer out) {
+        if (embedding == null || embedding.length != gallery.dimension()) {
+            embedding = new float[gallery.dimension()];
+        }
+        gallery.embedding(id, embedding);
+        for (float value : embedding) {
+            out.putFloat(value);
+        }
+    }
+
+    private void append(FaceGallery gallery, ByteBuffer out) {
+        synchronized (this) {
+            if (journal == null) {
+                return;
+            }
+            out.flip();
+            if (pending == null || pending.remaining() < out.remaining()) {
+                int used = pending == null ? 0 : pending.position();
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(4096, 2 * (used + out.remaining())));
+                if (pending != null) {
+                    pending.flip();
+                    grown.put(pending);
+                }
+                pending = grown;
+            }
+            pending.put(out);
+        }
+        if (!deferred) {
+            flush();
+            rewriteIfDue(gallery);
+        }
+    }
+
+    private synchronized void discardPending() {
+        if (pending != null) {
+            pending.clear();
+        }
+        rewriteDue = false;
+    }
+
+    private static String decode(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /** Whether a block of {@code size} bytes at {@code offset} lies after the header and in the file. */
+    private static boolean fits(long offset, long size, long length) {
+        return offset >= HEADER_SIZE && offset <= length && size <= length - offset;
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) & ~(long) (ALIGNMENT - 1);
+    }
+}
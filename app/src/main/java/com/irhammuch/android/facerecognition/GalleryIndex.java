@@ -0,0 +1,30 @@
+package com.irhammuch.android.facerecognition;
+
+/**
+ * Search structure kept next to a {@link FaceGallery} for galleries too large to scan.
+ *
+ * Indexes address gallery slots and get their vectors and distances from the gallery. Distances
+ * are the gallery's raw scan scores: squared euclidean distance, or 1 - inner product in cosine
+ * mode. Removed slots may stay in the structure but must never be returned.
+ */
+public interface GalleryIndex {
+
+    /** Drops everything and indexes every live slot of the gallery. */
+    void rebuild();
+
+    /** Indexes a slot that was just filled, or re-links one whose vector was replaced. */
+    void add(int slot);
+
+    /**
+     * Follows a gallery compaction: {@code slotMap[old]} is the new slot of every old slot, or
+     * -1 for slots that were dropped.
+     */
+    void compact(int[] slotMap, int slotCount);
+
+    /**
+     * Finds up to {@code k} live slots close to {@code query}, closest first.
+     *
+     * @return the number of results written to {@code slots} and {@code distances}
+     */
+    int search(float[] query, int k, int[] slots, float[] distances);
+}
@@ -0,0 +1,404 @@
+package com.irhammuch.android.facerecognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable copy of the entries of a {@link FaceGallery}, searchable from any number of threads
+ * without locking.
+ *
+ * Entries are packed in id order into segments of up to {@link #SEGMENT_SIZE} entries, each
+ * holding its vectors contiguously. A new snapshot made {@link #with} a few changed ids shares
+ * every segment those ids don't fall in with the snapshot it was made from, so publishing an
+ * enrolment copies a segment, not the gallery. Once removals leave the segments less than half
+ * full on average, the snapshot is packed again. Searches scan every entry; the graph index and
+ * int8 codes of the gallery are not carried over.
+ */
+public final class GallerySnapshot {
+
+    /** Entries per segment. */
+    static final int SEGMENT_SIZE = 256;
+
+    private static final Segment[] NO_SEGMENTS = new Segment[0];
+
+    private final int dimension;
+    private final FaceGallery.Metric metric;
+    private final float threshold;
+    // Every id of a segment is below the ids of the segments after it.
+    private final List<Segment> segments;
+    private final int size;
+
+    /** Entries from id {@code lowest} up to the {@code lowest} of the next segment, by id. */
+    private static final class Segment {
+        final int dimension;
+        final int lowest;
+        final int[] ids;
+        final float[] vectors;
+        final String[] labels;
+        int count;
+        // The snapshot being made that may still change it.
+        Object writer;
+
+        Segment(int dimension, int lowest, Object writer) {
+            this.dimension = dimension;
+            this.lowest = lowest;
+            this.ids = new int[SEGMENT_SIZE];
+            this.vectors = new float[SEGMENT_SIZE * dimension];
+            this.labels = new String[SEGMENT_SIZE];
+            this.writer = writer;
+        }
+
+        /** Copy on first write, the previous snapshot may still be searched. */
+        Segment(Segment from, Object writer) {
+            this.dimension = from.dimension;
+            this.lowest = from.lowest;
+            this.ids = from.ids.clone();
+            this.vectors = from.vectors.clone();
+            this.labels = from.labels.clone();
+            this.count = from.count;
+            this.writer = writer;
+        }
+
+        void set(int row, String label, float[] vector, int offset) {
+            labels[row] = label;
+            System.arraycopy(vector, offset, vectors, row * dimension, dimension);
+        }
+
+        void insert(int row, int id, String label, float[] vector, int offset) {
+            System.arraycopy(ids, row, ids, row + 1, count - row);
+            System.arraycopy(labels, row, labels, row + 1, count - row);
+            System.arraycopy(vectors, row * dimension, vectors, (row + 1) * dimension, (count - row) * dimension);
+            ids[row] = id;
+            set(row, label, vector, offset);
+            count++;
+        }
+
+        void remove(int row) {
+            System.arraycopy(ids, row + 1, ids, row, count - row - 1);
+            System.arraycopy(labels, row + 1, labels, row, count - row - 1);
+            System.arraycopy(vectors, (row + 1) * dimension, vectors, row * dimension, (count - row - 1) * dimension);
+            count--;
+            labels[count] = null;
+        }
+
+        /** Moves the upper half of the entries into a new segment. */
+        Segment split(Object writer) {
+            int half = count / 2;
+            Segment upper = new Segment(dimension, ids[half], writer);
+            for (int row = half; row < count; row++) {
+                upper.insert(upper.count, ids[row], labels[row], vectors, row * dimension);
+                labels[row] = null;
+            }
+            count = half;
+            return upper;
+        }
+    }
+
+    private GallerySnapshot(int dimension, FaceGallery.Metric metric, float threshold,
+                            Segment[] segments, int size) {
+        this.dimension = dimension;
+        this.metric = metric;
+        this.threshold = threshold;
+        this.segments = Arrays.asList(segments);
+        this.size = size;
+    }
+
+    /** Copies every entry of {@code gallery}. */
+    static GallerySnapshot of(FaceGallery gallery) {
+        List<Integer> ids = new ArrayList<>();
+        for (int slot = 0; slot < gallery.slotCount(); slot++) {
+            if (gallery.isLive(slot)) {
+                ids.add(gallery.idAt(slot));
+            }
+        }
+        return new GallerySnapshot(gallery.dimension(), gallery.metric(), gallery.threshold(),
+                NO_SEGMENTS, 0).with(gallery, ids);
+    }
+
+    /**
+     * Snapshot of {@code gallery} after the entries of {@code changedIds} were added, updated,
+     * relabeled or removed since this one.
+     */
+    GallerySnapshot with(FaceGallery gallery, Collection<Integer> changedIds) {
+        // segments made or copied for this snapshot are changed in place
+        Object writer = new Object();
+        List<Segment> segments = new ArrayList<>(this.segments);
+        int size = this.size;
+
+        float[] vector = new float[dimension];
+        for (int id : changedIds) {
+            String label = gallery.label(id);
+            boolean live = label != null && gallery.embedding(id, vector);
+            int index = segmentOf(segments, id);
+            Segment segment = index < 0 ? null : segments.get(index);
+            int row = segment == null ? -1 : Arrays.binarySearch(segment.ids, 0, segment.count, id);
+            if (row < 0 && !live) {
+                continue;
+            }
+            if (segment == null) {
+                segment = new Segment(dimension, id, writer);
+                segments.add(segment);
+                index = 0;
+            } else if (segment.writer != writer) {
+                segment = new Segment(segment, writer);
+                segments.set(index, segment);
+            }
+
+            if (row >= 0) {
+                if (live) {
+                    segment.set(row, label, vector, 0);
+                } else {
+                    segment.remove(row);
+                    size--;
+                }
+                continue;
+            }
+            if (segment.count == SEGMENT_SIZE) {
+                if (index == segments.size() - 1 && id > segment.ids[segment.count - 1]) {
+                    // ids are handed out in order, so new entries start a new segment
+                    segment = new Segment(dimension, id, writer);
+                    segments.add(segment);
+                } else {
+                    Segment upper = segment.split(writer);
+                    segments.add(index + 1, upper);
+                    if (id >= upper.lowest) {
+                        segment = upper;
+                    }
+                }
+            }
+            segment.insert(-Arrays.binarySearch(segment.ids, 0, segment.count, id) - 1, id, label, vector, 0);
+            size++;
+        }
+
+        // empty segments are dropped, their ids fall to the segment before
+        for (int index = segments.size() - 1; index >= 0; index--) {
+            if (segments.get(index).count == 0) {
+                segments.remove(index);
+            }
+        }
+        if (size < segments.size() * SEGMENT_SIZE / 2) {
+            segments = pack(segments, writer);
+        }
+        for (Segment segment : segments) {
+            if (segment.writer == writer) {
+                segment.writer = null;
+            }
+        }
+        return new GallerySnapshot(dimension, metric, gallery.threshold(),
+                segments.toArray(NO_SEGMENTS), size);
+    }
+
+    /** Copies the entries of {@code segments} into as few segments as they fit. */
+    private List<Segment> pack(List<Segment> segments, Object writer) {
+        List<Segment> packed = new ArrayList<>();
+        Segment into = null;
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.count; row++) {
+                if (into == null || into.count == SEGMENT_SIZE) {
+                    into = new Segment(dimension, segment.ids[row], writer);
+                    packed.add(into);
+                }
+                into.insert(into.count, segment.ids[row], segment.labels[row], segment.vectors, row * dimension);
+            }
+        }
+        return packed;
+    }
+
+    /** Index of the segment {@code id} belongs in, or -1 when there are none. */
+    private static int segmentOf(List<Segment> segments, int id) {
+        if (segments.isEmpty()) {
+            return -1;
+        }
+        int low = 1;
+        int high = segments.size() - 1;
+        // the first segment also takes ids below its lowest
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).lowest <= id) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /** Entries the segments have room for, e.g. to check they are packed. */
+    int capacity() {
+        return segments.size() * SEGMENT_SIZE;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public FaceGallery.Metric metric() {
+        return metric;
+    }
+
+    public float threshold() {
+        return threshold;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Whether {@code match} is close enough to count as that identity. */
+    public boolean isMatch(FaceGallery.Match match) {
+        return match.found() && match.distance < threshold;
+    }
+
+    /** Label of entry {@code id}, or null when there is no such entry. */
+    public String label(int id) {
+        int index = segmentOf(segments, id);
+        if (index < 0) {
+            return null;
+        }
+        Segment segment = segments.get(index);
+        int row = Arrays.binarySearch(segment.ids, 0, segment.count, id);
+        return row < 0 ? null : segment.labels[row];
+    }
+
+    /** Adds the ids of the entries labeled {@code label} to {@code out}. */
+    void idsOf(String label, Collection<Integer> out) {
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.count; row++) {
+                if (label.equals(segment.labels[row])) {
+                    out.add(segment.ids[row]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the entry closest to {@code query}, like {@link FaceGallery#findNearest(float[],
+     * FaceGallery.Match)}.
+     *
+     * @return false when the snapshot is empty, {@code out} is left reset then
+     */
+    public boolean findNearest(float[] query, FaceGallery.Match out) {
+        checkDimension(query);
+        out.reset();
+        boolean cosine = metric == FaceGallery.Metric.COSINE;
+
+        Segment bestSegment = null;
+        int bestRow = -1;
+        float best = Float.MAX_VALUE;
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.count; row++) {
+                float score = score(query, segment.vectors, row * dimension, cosine);
+                if (score < best) {
+                    best = score;
+                    bestSegment = segment;
+                    bestRow = row;
+                }
+            }
+        }
+        if (bestSegment == null) {
+            return false;
+        }
+        out.id = bestSegment.ids[bestRow];
+        out.label = bestSegment.labels[bestRow];
+        out.distance = distance(best, cosine ? norm(query) : 0);
+        return true;
+    }
+
+    /**
+     * Finds the {@link FaceGallery.Matches#capacity() k} entries closest to {@code query},
+     * closest first.
+     *
+     * @return the number of matches
+     */
+    public int findNearest(float[] query, FaceGallery.Matches out) {
+        checkDimension(query);
+        out.reset();
+        boolean cosine = metric == FaceGallery.Metric.COSINE;
+        int k = out.capacity();
+
+        // out.slots holds ids here, there are no slots
+        int count = 0;
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.count; row++) {
+                float score = score(query, segment.vectors, row * dimension, cosine);
+                count = FaceGallery.insert(out.slots, out.scores, count, k, segment.ids[row], score);
+            }
+        }
+
+        float queryNorm = cosine ? norm(query) : 0;
+        for (int i = 0; i < count; i++) {
+            out.ids[i] = out.slots[i];
+            out.labels[i] = label(out.slots[i]);
+            out.distances[i] = distance(out.scores[i], queryNorm);
+        }
+        out.count = count;
+        return count;
+    }
+
+    /**
+     * Squared euclidean distance, or the negated inner product in cosine mode, where stored
+     * vectors are normalized and the query isn't yet.
+     */
+    private float score(float[] query, float[] vectors, int offset, boolean cosine) {
+        final int dimension = this.dimension;
+        final int unrolled = dimension & ~3;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        if (cosine) {
+            for (; i < unrolled; i += 4) {
+                s0 += query[i] * vectors[offset + i];
+                s1 += query[i + 1] * vectors[offset + i + 1];
+                s2 += query[i + 2] * vectors[offset + i + 2];
+                s3 += query[i + 3] * vectors[offset + i + 3];
+            }
+            for (; i < dimension; i++) {
+                s0 += query[i] * vectors[offset + i];
+            }
+            return -((s0 + s1) + (s2 + s3));
+        }
+        for (; i < unrolled; i += 4) {
+            float diff0 = query[i] - vectors[offset + i];
+            float diff1 = query[i + 1] - vectors[offset + i + 1];
+            float diff2 = query[i + 2] - vectors[offset + i + 2];
+            float diff3 = query[i + 3] - vectors[offset + i + 3];
+            s0 += diff0 * diff0;
+            s1 += diff1 * diff1;
+            s2 += diff2 * diff2;
+            s3 += diff3 * diff3;
+        }
+        for (; i < dimension; i++) {
+            float diff = query[i] - vectors[offset + i];
+            s0 += diff * diff;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Distance in the gallery's terms of a {@link #score}. */
+    private float distance(float score, float queryNorm) {
+        if (metric == FaceGallery.Metric.COSINE) {
+            return queryNorm > 0 ? 1f + score / queryNorm : 1f;
+        }
+        return (float) Math.sqrt(score);
+    }
+
+    private static float norm(float[] vector) {
+        float sum = 0;
+        for (float value : vector) {
+            sum += value * value;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private void checkDimension(float[] embedding) {
+        if (embedding.length != dimension) {
+            throw new IllegalArgumentException(
+                    "Embedding has " + embedding.length + " values, gallery expects " + dimension);
+        }
+    }
+}
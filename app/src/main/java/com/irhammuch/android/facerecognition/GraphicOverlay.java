@@ -13,6 +13,8 @@ import android.view.View;
 
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
 
 public class GraphicOverlay extends View {
     private static final String TAG = "MainActivity";
@@ -20,8 +22,9 @@ public class GraphicOverlay extends View {
     private float scaleX = 1.0f;
     private float scaleY = 1.0f;
     private final Paint textPaint = new Paint();
-    private String name = null;
-    private RectF rectF = null;
+    private final List<String> names = new ArrayList<>();
+    private final List<RectF> rects = new ArrayList<>();
+    private int count = 0;
     private final Paint labelPaint = new Paint();
 
     public GraphicOverlay(Context context, @Nullable AttributeSet attrs) {
@@ -32,7 +35,13 @@ public class GraphicOverlay extends View {
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        if(name != null && !name.trim().isEmpty() && rectF != null && !name.equals("unknown")) {
+        for (int i = 0; i < count; i++) {
+            drawFace(canvas, rects.get(i), names.get(i));
+        }
+    }
+
+    private void drawFace(Canvas canvas, RectF rectF, String name) {
+        if(name != null && !name.trim().isEmpty() && !name.equals("unknown")) {
             labelPaint.setColor(Color.BLUE);
             labelPaint.setStyle(Paint.Style.FILL);
             canvas.drawRect(
@@ -51,23 +60,30 @@ public class GraphicOverlay extends View {
             rectPaint.setColor(Color.RED);
         }
 
-        if(rectF != null) {
-            rectPaint.setStrokeWidth(8.0f);
-            rectPaint.setStyle(Paint.Style.STROKE);
-            float cornerRadius = 10.0f;
-            canvas.drawRoundRect(rectF, cornerRadius, cornerRadius, rectPaint);
-        }
+        rectPaint.setStrokeWidth(8.0f);
+        rectPaint.setStyle(Paint.Style.STROKE);
+        float cornerRadius = 10.0f;
+        canvas.drawRoundRect(rectF, cornerRadius, cornerRadius, rectPaint);
     }
 
-    public void draw(Rect rect, float scaleX, float scaleY, String name) {
-        RectF adjustedRect = adjustBoundingRect(rect);
-        this.rectF = adjustedRect;
+    /** Draws one box per face, {@code names.get(i)} labels {@code rects.get(i)}. */
+    public void draw(List<Rect> rects, float scaleX, float scaleY, List<String> names) {
         this.scaleX = scaleX;
         this.scaleY = scaleY;
-        this.name = name;
+        this.count = rects.size();
+        this.names.clear();
+        this.names.addAll(names);
+
+        // RectFs are kept and reused across frames
+        for (int i = 0; i < count; i++) {
+            if (i == this.rects.size()) {
+                this.rects.add(new RectF());
+            }
+            adjustBoundingRect(rects.get(i), this.rects.get(i));
+            logInfo(rects.get(i), scaleX, scaleY, this.rects.get(i));
+        }
         postInvalidate();
         requestLayout();
-        logInfo(rect, scaleX, scaleY, adjustedRect);
     }
 
     private float translateX(float x){
@@ -78,17 +94,14 @@ public class GraphicOverlay extends View {
         return y * scaleY;
     }
 
-    private RectF adjustBoundingRect(Rect rect) {
-        if(rect != null) {
-            float padding = 10.0f;
-            return new RectF(
-                    translateX((float) rect.left) - padding,
-                    translateY((float) rect.top) - padding,
-                    translateX((float) rect.right) + padding,
-                    translateY((float)rect.bottom) + padding
-            );
-        }
-        return null;
+    private void adjustBoundingRect(Rect rect, RectF out) {
+        float padding = 10.0f;
+        out.set(
+                translateX((float) rect.left) - padding,
+                translateY((float) rect.top) - padding,
+                translateX((float) rect.right) + padding,
+                translateY((float)rect.bottom) + padding
+        );
     }
 
     private void logInfo(Rect rect, float scaleX, float scaleY, RectF rectF) {
@@ -0,0 +1,480 @@
+package com.irhammuch.android.facerecognition;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph over the slots of a {@link FaceGallery}.
+ *
+ * Every slot is a node with a random top level; each level links a node to its closest
+ * neighbours found while inserting it. Searches descend greedily through the upper levels and
+ * run a best-first search of width {@code efSearch} on the bottom one, trading recall for
+ * latency: larger {@code m}, {@code efConstruction} and {@code efSearch} find the true nearest
+ * face more often at a higher cost. Removed slots stay in the graph as waypoints until the
+ * gallery compacts, then the nodes that linked to them are re-linked to the survivors behind
+ * them. Not thread safe, like the gallery.
+ */
+public class HnswIndex implements GalleryIndex {
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_EF_SEARCH = 64;
+
+    private final FaceGallery gallery;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private int efSearch;
+
+    // links[node][level] = {count, neighbour...}, null for slots that are not indexed.
+    private int[][][] links = new int[16][][];
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Search scratch, reused between calls.
+    private int[] visited = new int[16];
+    private int visitEpoch = 0;
+    private final Heap candidates = new Heap(false);
+    private final Heap results = new Heap(true);
+    private final Heap selection = new Heap(false);
+    private int[] selected = new int[0];
+    private int[] pending = new int[16];
+    private final float[] point;
+
+    public HnswIndex(FaceGallery gallery) {
+        this(gallery, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+    }
+
+    /**
+     * @param m              links per node on the upper levels, twice that on the bottom one
+     * @param efConstruction search width used to pick the links of a new node
+     * @param efSearch       search width used by queries
+     */
+    public HnswIndex(FaceGallery gallery, int m, int efConstruction, int efSearch) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2: " + m);
+        }
+        this.gallery = gallery;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.point = new float[gallery.dimension()];
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public void rebuild() {
+        Arrays.fill(links, null);
+        entryPoint = -1;
+        maxLevel = -1;
+        for (int slot = 0; slot < gallery.slotCount(); slot++) {
+            if (gallery.isLive(slot)) {
+                add(slot);
+            }
+        }
+    }
+
+    @Override
+    public void add(int slot) {
+        ensureCapacity(slot + 1);
+
+        int level;
+        if (links[slot] != null) {
+            // The vector changed, keep the node's level and pick new links. The old ones are
+            // still walked while searching so the graph stays reachable through this node.
+            level = links[slot].length - 1;
+        } else {
+            level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            links[slot] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                links[slot][l] = new int[1 + (l == 0 ? maxM0 : m)];
+            }
+        }
+
+        if (entryPoint < 0) {
+            entryPoint = slot;
+            maxLevel = level;
+            return;
+        }
+
+        gallery.vectorAt(slot, point);
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedy(point, 0, ep, l);
+        }
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLayer(point, 0, ep, efConstruction, l, false);
+            ep = closestResult();
+            int count = selectNeighbours(slot, l == 0 ? maxM0 : m);
+            links[slot][l][0] = 0;
+            for (int i = 0; i < count; i++) {
+                link(slot, selected[i], l);
+                link(selected[i], slot, l);
+            }
+        }
+
+        if (level > maxLevel) {
+            entryPoint = slot;
+            maxLevel = level;
+        }
+    }
+
+    @Override
+    public void compact(int[] slotMap, int slotCount) {
+        int[][][] compacted = new int[Math.max(16, slotCount)][][];
+        int newEntryPoint = -1;
+        int newMaxLevel = -1;
+
+        for (int old = 0; old < slotMap.length && old < links.length; old++) {
+            int target = slotMap[old];
+            if (target < 0 || links[old] == null) {
+                continue;
+            }
+            int[][] node = new int[links[old].length][];
+            for (int level = 0; level < node.length; level++) {
+                node[level] = relink(old, target, level, slotMap);
+            }
+            compacted[target] = node;
+            if (node.length - 1 > newMaxLevel) {
+                newMaxLevel = node.length - 1;
+                newEntryPoint = target;
+            }
+        }
+
+        links = compacted;
+        entryPoint = newEntryPoint;
+        maxLevel = newMaxLevel;
+    }
+
+    /**
+     * Links of the surviving node {@code old} on {@code level}, as new slots. When some of its
+     * neighbours are dropped, the survivors reachable through them become candidates too and the
+     * links are picked again, so nothing that was only reachable through a removed waypoint is
+     * cut off. Runs before {@link #links} is replaced, the gallery vectors are already compacted.
+     */
+    private int[] relink(int old, int target, int level, int[] slotMap) {
+        int[] neighbours = links[old][level];
+        int[] relinked = new int[neighbours.length];
+        boolean dropped = false;
+        int kept = 0;
+        for (int i = 1; i <= neighbours[0]; i++) {
+            int mapped = slotMap[neighbours[i]];
+            if (mapped >= 0) {
+                relinked[++kept] = mapped;
+            } else {
+                dropped = true;
+            }
+        }
+        if (!dropped) {
+            relinked[0] = kept;
+            return relinked;
+        }
+
+        // Walks the dropped nodes, collecting the survivors they link to.
+        int epoch = nextVisitEpoch();
+        visited[old] = epoch;
+        selection.clear();
+        int pendingCount = visit(old, level, slotMap, target, epoch, 0);
+        while (pendingCount > 0) {
+            pendingCount = visit(pending[--pendingCount], level, slotMap, target, epoch, pendingCount);
+        }
+        kept = pickDiverse(selection, neighbours.length - 1);
+        System.arraycopy(selected, 0, relinked, 1, kept);
+        relinked[0] = kept;
+        return relinked;
+    }
+
+    /**
+     * Pushes the unvisited neighbours of {@code node} on {@code level}: survivors to
+     * {@link #selection} by their distance to {@code target}, dropped ones to {@link #pending}.
+     *
+     * @return the new number of pending nodes
+     */
+    private int visit(int node, int level, int[] slotMap, int target, int epoch, int pendingCount) {
+        int[] neighbours = links[node][level];
+        for (int i = 1; i <= neighbours[0]; i++) {
+            int neighbour = neighbours[i];
+            if (visited[neighbour] == epoch) {
+                continue;
+            }
+            visited[neighbour] = epoch;
+            int mapped = slotMap[neighbour];
+            if (mapped >= 0) {
+                selection.push(mapped, gallery.rawDistance(target, mapped));
+            } else {
+                if (pendingCount == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingCount * 2);
+                }
+                pending[pendingCount++] = neighbour;
+            }
+        }
+        return pendingCount;
+    }
+
+    @Override
+    public int search(float[] query, int k, int[] slots, float[] distances) {
+        if (entryPoint < 0 || k <= 0) {
+            return 0;
+        }
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedy(query, 0, ep, l);
+        }
+        searchLayer(query, 0, ep, Math.max(efSearch, k), 0, true);
+
+        // Results is a max-heap, drop the farthest until k are left and fill back to front.
+        while (results.size > k) {
+            results.pop();
+        }
+        int count = results.size;
+        for (int i = count - 1; i >= 0; i--) {
+            slots[i] = results.topNode();
+            distances[i] = results.topDistance();
+            results.pop();
+        }
+        return count;
+    }
+
+    /** Walks from {@code ep} to the closest node on {@code level} it can reach greedily. */
+    private int greedy(float[] query, int offset, int ep, int level) {
+        int current = ep;
+        float currentDistance = gallery.rawDistance(query, offset, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int candidate = neighbours[i];
+                float distance = gallery.rawDistance(query, offset, candidate);
+                if (distance < currentDistance) {
+                    current = candidate;
+                    currentDistance = distance;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search on one level, leaves the {@code ef} closest nodes found in
+     * {@link #results}. With {@code liveOnly} removed slots are walked through but not returned.
+     */
+    private void searchLayer(float[] query, int offset, int ep, int ef, int level, boolean liveOnly) {
+        int epoch = nextVisitEpoch();
+        candidates.clear();
+        results.clear();
+
+        float distance = gallery.rawDistance(query, offset, ep);
+        visited[ep] = epoch;
+        candidates.push(ep, distance);
+        if (!liveOnly || gallery.isLive(ep)) {
+            results.push(ep, distance);
+        }
+
+        while (candidates.size > 0) {
+            int current = candidates.topNode();
+            if (results.size >= ef && candidates.topDistance() > results.topDistance()) {
+                break;
+            }
+            candidates.pop();
+
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int candidate = neighbours[i];
+                if (visited[candidate] == epoch) {
+                    continue;
+                }
+                visited[candidate] = epoch;
+
+                distance = gallery.rawDistance(query, offset, candidate);
+                if (results.size < ef || distance < results.topDistance()) {
+                    candidates.push(candidate, distance);
+                    if (!liveOnly || gallery.isLive(candidate)) {
+                        results.push(candidate, distance);
+                        if (results.size > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int closestResult() {
+        int best = results.nodes[0];
+        float bestDistance = results.distances[0];
+        for (int i = 1; i < results.size; i++) {
+            if (results.distances[i] < bestDistance) {
+                best = results.nodes[i];
+                bestDistance = results.distances[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks at most {@code max} of the current results as links for {@code node}, preferring
+     * candidates that are closer to it than to any already picked one so the links spread in
+     * different directions. Leaves them in {@link #selected}.
+     */
+    private int selectNeighbours(int node, int max) {
+        selection.clear();
+        for (int i = 0; i < results.size; i++) {
+            if (results.nodes[i] != node) {
+                selection.push(results.nodes[i], results.distances[i]);
+            }
+        }
+        return pickDiverse(selection, max);
+    }
+
+    private int pickDiverse(Heap sorted, int max) {
+        if (selected.length < max) {
+            selected = new int[max];
+        }
+        int count = 0;
+        while (sorted.size > 0 && count < max) {
+            int candidate = sorted.topNode();
+            float distance = sorted.topDistance();
+            sorted.pop();
+
+            boolean keep = true;
+            for (int i = 0; i < count; i++) {
+                if (gallery.rawDistance(candidate, selected[i]) < distance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+            }
+        }
+        return count;
+    }
+
+    /** Adds {@code to} to the links of {@code from}, pruning them when the list is full. */
+    private void link(int from, int to, int level) {
+        int[] neighbours = links[from][level];
+        int count = neighbours[0];
+        for (int i = 1; i <= count; i++) {
+            if (neighbours[i] == to) {
+                return;
+            }
+        }
+        if (count < neighbours.length - 1) {
+            neighbours[++count] = to;
+            neighbours[0] = count;
+            return;
+        }
+
+        // Full: re-pick the links among the old ones plus the new node.
+        selection.clear();
+        for (int i = 1; i <= count; i++) {
+            selection.push(neighbours[i], gallery.rawDistance(from, neighbours[i]));
+        }
+        selection.push(to, gallery.rawDistance(from, to));
+        int kept = pickDiverse(selection, neighbours.length - 1);
+        System.arraycopy(selected, 0, neighbours, 1, kept);
+        neighbours[0] = kept;
+    }
+
+    private int nextVisitEpoch() {
+        if (visited.length < links.length) {
+            visited = new int[links.length];
+            visitEpoch = 0;
+        }
+        if (++visitEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitEpoch = 1;
+        }
+        return visitEpoch;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > links.length) {
+            links = Arrays.copyOf(links, Math.max(capacity, links.length * 2));
+        }
+    }
+
+    /** Binary heap of (node, distance) pairs, a max-heap or a min-heap on distance. */
+    private static final class Heap {
+        final boolean max;
+        int[] nodes = new int[64];
+        float[] distances = new float[64];
+        int size = 0;
+
+        Heap(boolean max) {
+            this.max = max;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int topNode() {
+            return nodes[0];
+        }
+
+        float topDistance() {
+            return distances[0];
+        }
+
+        void push(int node, float distance) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!before(distance, distances[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        void pop() {
+            int node = nodes[--size];
+            float distance = distances[size];
+            int i = 0;
+            int half = size >> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && before(distances[child + 1], distances[child])) {
+                    child++;
+                }
+                if (!before(distances[child], distance)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What the last scans found in every MediaStore image, kept as JSON so that later scans only
+ * process images added or changed since and drop the ones that are gone.
+ *
+ * Entries are replaced, never modified, so a {@link #snapshot()} can be saved on another thread
+ * while the index keeps changing.
+ */
+public class ImageIndex {
+    private static final String TAG = "ImageIndex";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** One image, keyed by its MediaStore id. */
+    public static class Entry {
+        public long id;
+        public String path;
+        public long size;
+        public long dateModified;
+        /** MediaStore generation the image was last modified in, 0 before Android 11. */
+        public long generation;
+        /** Face boxes in full resolution upright pixels, {left, top, right, bottom} each. */
+        public int[][] boxes;
+        /** Member id of every face in the {@link FaceClusterer}. */
+        public int[] faceIds;
+
+        public Entry() {
+        }
+
+        public Entry(long id, String path, long size, long dateModified, long generation) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.dateModified = dateModified;
+            this.generation = generation;
+        }
+
+        /** Whether {@code other} describes the same version of the same file. */
+        public boolean isSameFile(Entry other) {
+            return id == other.id
+                    && size == other.size
+                    && dateModified == other.dateModified
+                    && generation == other.generation
+                    && path != null && path.equals(other.path);
+        }
+
+        public void setFaces(List<Rect> faceBoxes, int[] ids) {
+            boxes = new int[faceBoxes.size()][];
+            for (int i = 0; i < boxes.length; i++) {
+                Rect box = faceBoxes.get(i);
+                boxes[i] = new int[]{box.left, box.top, box.right, box.bottom};
+            }
+            faceIds = ids.clone();
+        }
+
+        public Rect box(int face) {
+            int[] box = boxes[face];
+            return new Rect(box[0], box[1], box[2], box[3]);
+        }
+    }
+
+    // MediaStore version the generations were read in, they don't carry over to another one.
+    private String mediaStoreVersion;
+    private HashMap<Long, Entry> entries = new HashMap<>();
+
+    /** Reads the index saved in {@code file}, or returns an empty one. */
+    public static ImageIndex load(File file) {
+        if (!file.exists()) {
+            return new ImageIndex();
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            ImageIndex index = new Gson().fromJson(reader, ImageIndex.class);
+            if (index != null && index.entries != null) {
+                return index;
+            }
+        } catch (IOException | JsonParseException e) {
+            Log.w(TAG, "Could not read " + file + ", indexing every image again", e);
+        }
+        return new ImageIndex();
+    }
+
+    /** Writes the index to {@code file}, replacing it only once the write succeeded. */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8)) {
+            new Gson().toJson(this, writer);
+        } catch (JsonParseException e) {
+            throw new IOException(e);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /** Copy sharing the entries, to save while this index keeps changing. */
+    public ImageIndex snapshot() {
+        ImageIndex snapshot = new ImageIndex();
+        snapshot.mediaStoreVersion = mediaStoreVersion;
+        snapshot.entries = new HashMap<>(entries);
+        return snapshot;
+    }
+
+    /** Forgets every entry when the MediaStore was rebuilt since the last scan. */
+    public void checkMediaStoreVersion(@Nullable String version) {
+        if (version != null && !version.equals(mediaStoreVersion)) {
+            if (mediaStoreVersion != null) {
+                entries.clear();
+            }
+            mediaStoreVersion = version;
+        }
+    }
+
+    @Nullable
+    public Entry get(long id) {
+        return entries.get(id);
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.id, entry);
+    }
+
+    /** Drops the entries whose id is not in {@code ids} and returns them. */
+    public List<Entry> retain(Set<Long> ids) {
+        List<Entry> removed = new ArrayList<>();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (!ids.contains(entry.id)) {
+                entries.remove(entry.id);
+                removed.add(entry);
+            }
+        }
+        return removed;
+    }
+
+    /** Forgets every entry, e.g. to index every image again. */
+    public void clear() {
+        entries.clear();
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
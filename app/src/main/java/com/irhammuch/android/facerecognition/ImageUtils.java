@@ -11,28 +11,16 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.YuvImage;
 import android.media.Image;
-import android.util.Pair;
 
 import com.google.mlkit.vision.common.InputImage;
 
-import org.tensorflow.lite.Interpreter;
-
 import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
-import java.util.HashMap;
-import java.util.Map;
 
 public class ImageUtils {
 
     public static boolean flipX = false;
 
-    private static final float IMAGE_MEAN = 128.0f;
-    private static final float IMAGE_STD = 128.0f;
-    private static final int INPUT_SIZE = 112;
-    private static final int OUTPUT_SIZE=192;
-
     /** Bitmap Converter */
     public static Bitmap croppedFace(Bitmap bmp, int rotation, Rect boundingBox) {
         //Convert media image to Bitmap
@@ -54,88 +42,35 @@ public class ImageUtils {
         return getResizedBitmap(cropped_face);
     }
 
-    public static String recognizeImage(final Bitmap bitmap, Interpreter tfLite, HashMap<String, SimilarityClassifier.Recognition> registered) {
-        // Create ByteBuffer to store normalized image
-        ByteBuffer imgData = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * 4);
-
-        imgData.order(ByteOrder.nativeOrder());
-
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
-
-        //get pixel values from Bitmap to normalize
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        imgData.rewind();
-
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                int pixelValue = intValues[i * INPUT_SIZE + j];
-                imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-            }
-        }
-        //imgData is input to our model
-        Object[] inputArray = {imgData};
-
-        Map<Integer, Object> outputMap = new HashMap<>();
-
-        float[][] embeddings = new float[1][OUTPUT_SIZE]; //output of model will be stored in this variable
-
-        outputMap.put(0, embeddings);
-
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap); //Run model
-
-        float distance;
-
-        //Compare new face with saved Faces.
-        String name = null;
-
-        if (registered.size() > 0) {
-
-            final Pair<String, Float> nearest = findNearest(embeddings[0], registered);//Find closest matching face
-
-            if (nearest != null) {
-
-                distance = nearest.second;
-                if(distance<1.000f) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
-                    name = nearest.first;
-            }
-        }
-
-        if (name == null) {
-            name = String.valueOf(registered.size());
-
-            SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition("0", "1", -1f);
-            result.setExtra(embeddings);
-
-            registered.put(name, result);
-        }
-
-        return name;
+    /**
+     * Crops {@code boundingBox} out of an upright bitmap and scales it to the model input in one
+     * draw. Unlike {@link #croppedFace} the source is left untouched, so every face of an image
+     * can be cut from the same decode.
+     */
+    public static Bitmap cropFace(Bitmap source, Rect boundingBox) {
+        return cropFace(source, FaceAlignment.fromBox(boundingBox, false));
     }
 
-    //Compare Faces by distance between face embeddings
-    private static Pair<String, Float> findNearest(float[] emb, HashMap<String, SimilarityClassifier.Recognition> registered) {
-
-        Pair<String, Float> ret = null;
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet()) {
+    /** Warps the face out of an upright bitmap into the model input in one draw. */
+    public static Bitmap cropFace(Bitmap source, FaceAlignment alignment) {
+        int size = EmbeddingExtractor.INPUT_SIZE;
+        Bitmap face = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(face);
+        canvas.drawColor(Color.WHITE);
+        canvas.drawBitmap(source, alignment.toMatrix(), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return face;
+    }
 
-            final String name = entry.getKey();
-            final float[] knownEmb = ((float[][]) entry.getValue().getExtra())[0];
+    public static String recognizeImage(final Bitmap bitmap, EmbeddingExtractor extractor, FaceClusterer clusterer) {
+        //output of model, reused by the extractor on the next call
+        float[] embedding = extractor.extract(bitmap);
 
-            float distance = 0;
-            for (int i = 0; i < emb.length; i++) {
-                float diff = emb[i] - knownEmb[i];
-                distance += diff*diff;
-            }
-            distance = (float) Math.sqrt(distance);
-            if (ret == null || distance < ret.second) {
-                ret = new Pair<>(name, distance);
-            }
-        }
+        return recognizeEmbedding(embedding, clusterer);
+    }
 
-        return ret;
+    /** Name of the identity {@code embedding} was clustered into, a new one if no face matched. */
+    public static String recognizeEmbedding(final float[] embedding, FaceClusterer clusterer) {
+        return clusterer.nameOf(clusterer.assign(embedding));
     }
 
     public static Bitmap rotateBitmap(Bitmap bitmap, int rotationDegrees, boolean flipX) {
@@ -0,0 +1,312 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes a list of image files in four stages that run concurrently: decode, face detection
+ * and cropping, batched embedding and clustering into identities.
+ *
+ * Stages are connected by bounded queues, a stage that gets ahead blocks until the next one
+ * catches up, so at most a few decoded images are held at any time. Images are decoded
+ * subsampled, see {@link SampledImage}, and released as soon as their faces are cropped.
+ * Decode, detection and embedding run on as many workers as configured; assignment always runs
+ * on a single thread, which is the only one touching the clusterer while the pipeline runs.
+ * Results and progress are posted to the main thread.
+ */
+public class IndexingPipeline {
+    private static final String TAG = "IndexingPipeline";
+
+    /** Called on the main thread. */
+    public interface Listener {
+        /** An image went through every stage. */
+        void onImageIndexed(Result result);
+
+        void onProgress(int done, int total);
+
+        void onFinished();
+    }
+
+    /** What was found in one image, face i is at index i of every list. */
+    public static class Result {
+        public final String path;
+        /** Face boxes in full resolution upright pixels. */
+        public final List<Rect> boxes;
+        /** Member ids of the faces in the clusterer, and names of the identities they joined. */
+        public final int[] ids;
+        public final List<String> names;
+        /** 112x112 crops of the faces. */
+        public final List<Bitmap> faces;
+
+        Result(String path, List<Rect> boxes, int[] ids, List<String> names, List<Bitmap> faces) {
+            this.path = path;
+            this.boxes = boxes;
+            this.ids = ids;
+            this.names = names;
+            this.faces = faces;
+        }
+    }
+
+    /** Marks the end of a stage's input. */
+    private static final Job END = new Job(null);
+
+    private final FaceDetector faceDetector;
+    private final EmbeddingExtractor extractor;
+    private final FaceClusterer clusterer;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final int decodeWorkers;
+    private final int detectWorkers;
+    private final int embedWorkers;
+    private final BlockingQueue<Job> detectQueue;
+    private final BlockingQueue<Job> embedQueue;
+    private final BlockingQueue<Job> assignQueue;
+
+    private FaceQuality quality = new FaceQuality();
+    private ExecutorService executor;
+    private volatile boolean cancelled = false;
+
+    private static final class Job {
+        final String path;
+        SampledImage image; // released once the faces are cropped
+        final List<Rect> boxes = new ArrayList<>();
+        final List<Bitmap> faces = new ArrayList<>();
+        final List<float[]> embeddings = new ArrayList<>();
+
+        Job(String path) {
+            this.path = path;
+        }
+    }
+
+    public IndexingPipeline(FaceDetector faceDetector, EmbeddingExtractor extractor,
+                            FaceClusterer clusterer, Listener listener) {
+        this(faceDetector, extractor, clusterer, listener,
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 2), 2, 1, 4);
+    }
+
+    /**
+     * @param decodeWorkers threads decoding image files
+     * @param detectWorkers threads waiting on the face detector and cropping the faces
+     * @param embedWorkers  threads running the model, they share the extractor's interpreter
+     *                      so more than one only overlaps the input normalization
+     * @param queueCapacity images each stage may have waiting for the next one
+     */
+    public IndexingPipeline(FaceDetector faceDetector, EmbeddingExtractor extractor,
+                            FaceClusterer clusterer, Listener listener, int decodeWorkers,
+                            int detectWorkers, int embedWorkers, int queueCapacity) {
+        this.faceDetector = faceDetector;
+        this.extractor = extractor;
+        this.clusterer = clusterer;
+        this.listener = listener;
+        this.decodeWorkers = decodeWorkers;
+        this.detectWorkers = detectWorkers;
+        this.embedWorkers = embedWorkers;
+        this.detectQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.embedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.assignQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Faces it drops are neither embedded nor reported; deferred ones are embedded, an image
+     * has no better frame of them.
+     */
+    public IndexingPipeline setQuality(FaceQuality quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    /** Starts indexing {@code paths}. A pipeline can only be started once. */
+    public void start(final List<String> paths) {
+        if (executor != null) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        executor = Executors.newFixedThreadPool(decodeWorkers + detectWorkers + embedWorkers + 1);
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger decoding = new AtomicInteger(decodeWorkers);
+        final AtomicInteger detecting = new AtomicInteger(detectWorkers);
+        final AtomicInteger embedding = new AtomicInteger(embedWorkers);
+
+        for (int i = 0; i < decodeWorkers; i++) {
+            executor.execute(() -> run(() -> {
+                for (int index = next.getAndIncrement(); index < paths.size() && !cancelled;
+                     index = next.getAndIncrement()) {
+                    Job job = new Job(paths.get(index));
+                    job.image = SampledImage.decode(job.path, SampledImage.DEFAULT_DETECTION_SIZE);
+                    detectQueue.put(job);
+                }
+                endStage(decoding, detectQueue, detectWorkers);
+            }));
+        }
+        for (int i = 0; i < detectWorkers; i++) {
+            // its sample buffer is not shared between workers
+            final FaceQuality quality = this.quality.copy();
+            executor.execute(() -> run(() -> {
+                for (Job job = detectQueue.take(); job != END; job = detectQueue.take()) {
+                    detect(job, quality);
+                    // Images without faces skip the embedding stage.
+                    (job.faces.isEmpty() ? assignQueue : embedQueue).put(job);
+                }
+                endStage(detecting, embedQueue, embedWorkers);
+            }));
+        }
+        for (int i = 0; i < embedWorkers; i++) {
+            executor.execute(() -> run(() -> {
+                embedAll();
+                endStage(embedding, assignQueue, 1);
+            }));
+        }
+        executor.execute(() -> run(() -> assignAll(paths.size())));
+    }
+
+    /** Stops every stage, listener calls that are still pending are dropped. */
+    public void cancel() {
+        cancelled = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Blocks until every stage has returned after {@link #cancel}, e.g. before closing what the
+     * assign stage writes to.
+     *
+     * @return false when the timeout passed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor == null || executor.awaitTermination(timeout, unit);
+    }
+
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    private void run(Stage stage) {
+        try {
+            stage.run();
+        } catch (InterruptedException e) {
+            // cancelled
+        }
+    }
+
+    /** Tells the next stage its input ended once the last worker of this one is done. */
+    private static void endStage(AtomicInteger workers, BlockingQueue<Job> next, int nextWorkers)
+            throws InterruptedException {
+        if (workers.decrementAndGet() == 0) {
+            for (int i = 0; i < nextWorkers; i++) {
+                next.put(END);
+            }
+        }
+    }
+
+    private void detect(Job job, FaceQuality quality) throws InterruptedException {
+        if (job.image == null) {
+            return;
+        }
+        try {
+            List<Face> faces = Tasks.await(faceDetector.process(InputImage.fromBitmap(job.image.bitmap, 0)));
+            int scale = job.image.sampleSize;
+            for (Face face : faces) {
+                if (quality.check(face, job.image.bitmap, scale) == FaceQuality.Decision.DROP) {
+                    continue;
+                }
+                Rect box = face.getBoundingBox();
+                job.faces.add(job.image.cropFace(FaceAlignment.of(face, false)));
+                job.boxes.add(new Rect(box.left * scale, box.top * scale,
+                        box.right * scale, box.bottom * scale));
+            }
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Face detection failed on " + job.path, e.getCause());
+        } finally {
+            job.image.recycle();
+            job.image = null;
+        }
+    }
+
+    /**
+     * Takes images off the embed queue and embeds their faces, batching the faces of every image
+     * that is already waiting into one invocation.
+     */
+    private void embedAll() throws InterruptedException {
+        List<Job> batch = new ArrayList<>();
+        List<Bitmap> faces = new ArrayList<>();
+        float[][] out = new float[0][];
+        boolean ended = false;
+
+        while (!ended) {
+            Job job = embedQueue.take();
+            while (job != null && job != END) {
+                batch.add(job);
+                faces.addAll(job.faces);
+
+                job = faces.size() < extractor.getMaxBatchSize() ? embedQueue.poll() : null;
+            }
+            ended = job == END;
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            if (out.length < faces.size()) {
+                out = new float[faces.size()][EmbeddingExtractor.OUTPUT_SIZE];
+            }
+            extractor.extractBatch(faces, out);
+
+            int face = 0;
+            for (Job done : batch) {
+                for (int i = 0; i < done.faces.size(); i++) {
+                    done.embeddings.add(out[face++].clone());
+                }
+                assignQueue.put(done);
+            }
+            batch.clear();
+            faces.clear();
+        }
+    }
+
+    private void assignAll(final int total) throws InterruptedException {
+        int done = 0;
+        for (Job job = assignQueue.take(); job != END; job = assignQueue.take()) {
+            int[] ids = new int[job.embeddings.size()];
+            List<String> names = new ArrayList<>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = clusterer.assign(job.embeddings.get(i));
+                names.add(clusterer.nameOf(ids[i]));
+            }
+
+            final Result result = new Result(job.path, job.boxes, ids, names, job.faces);
+            final int progress = ++done;
+            post(() -> {
+                listener.onImageIndexed(result);
+                listener.onProgress(progress, total);
+            });
+        }
+        post(listener::onFinished);
+    }
+
+    private void post(final Runnable runnable) {
+        mainHandler.post(() -> {
+            if (!cancelled) {
+                runnable.run();
+            }
+        });
+    }
+}
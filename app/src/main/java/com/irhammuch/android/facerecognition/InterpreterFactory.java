@@ -0,0 +1,274 @@
+package com.irhammuch.android.facerecognition;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import org.tensorflow.lite.gpu.CompatibilityList;
+import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.nnapi.NnApiDelegate;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates interpreters on the fastest backend that works on the device.
+ *
+ * Every configured backend is tried in order: an interpreter is created with it and validated
+ * with a few warm-up inferences on zeroed input. A backend that is unavailable, e.g. the GPU
+ * delegate on a device or host without a supported GPU or without its native library, or that
+ * fails to run the model is skipped. With {@link #setSelectFastest} on, the backend with the lowest warm-up latency is
+ * kept; otherwise the first one that works. {@link Backend#CPU} always works, so it is the
+ * fallback of last resort.
+ *
+ * Trying every backend compiles GPU shaders and NNAPI models that are then thrown away, callers
+ * that remember the chosen backend pass it to {@link #create(ByteBuffer, Backend)} on later
+ * launches and only that one is created, unless it no longer validates.
+ */
+public class InterpreterFactory {
+    private static final String TAG = "InterpreterFactory";
+
+    private static final int WARM_UP_RUNS = 3;
+
+    public enum Backend {
+        /** GPU delegate, when the device is on its compatibility list. */
+        GPU,
+        /** NNAPI delegate, Android 9 and later. */
+        NNAPI,
+        /** CPU with the XNNPACK delegate. */
+        XNNPACK,
+        /** Plain CPU kernels. */
+        CPU
+    }
+
+    /** An interpreter with the delegate it runs on, closed together. */
+    public static class Loaded implements Closeable {
+        public final Interpreter interpreter;
+        public final Backend backend;
+        /** Average latency of the warm-up inferences. */
+        public final long warmUpNanos;
+        private final AutoCloseable delegate;
+
+        Loaded(Interpreter interpreter, Backend backend, long warmUpNanos, AutoCloseable delegate) {
+            this.interpreter = interpreter;
+            this.backend = backend;
+            this.warmUpNanos = warmUpNanos;
+            this.delegate = delegate;
+        }
+
+        /** Closes the interpreter, then its delegate. */
+        @Override
+        public void close() {
+            interpreter.close();
+            if (delegate != null) {
+                try {
+                    delegate.close();
+                } catch (Exception e) {
+                    Log.w(TAG, "Could not close the " + backend + " delegate", e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return backend + " (" + warmUpNanos / 1000 + "us warm-up)";
+        }
+    }
+
+    private List<Backend> backends = Arrays.asList(Backend.values());
+    private int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private boolean selectFastest = true;
+
+    /** Backends to try, in order; CPU is added at the end when missing. */
+    public InterpreterFactory setBackends(Backend... backends) {
+        List<Backend> list = new ArrayList<>(Arrays.asList(backends));
+        if (!list.contains(Backend.CPU)) {
+            list.add(Backend.CPU);
+        }
+        this.backends = list;
+        return this;
+    }
+
+    /** Threads of the CPU backends, half the cores up to 4 by default. */
+    public InterpreterFactory setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    /** Whether to keep the fastest working backend instead of the first one, on by default. */
+    public InterpreterFactory setSelectFastest(boolean selectFastest) {
+        this.selectFastest = selectFastest;
+        return this;
+    }
+
+    /**
+     * Creates an interpreter for {@code model} on the chosen backend.
+     *
+     * @throws IllegalArgumentException when the model can't be run at all
+     */
+    public Loaded create(ByteBuffer model) {
+        return select(model, null);
+    }
+
+    /**
+     * Creates an interpreter for {@code model} on {@code preferred}, e.g. the backend chosen on
+     * an earlier launch, when it still validates; otherwise on the backend {@link #create(ByteBuffer)}
+     * chooses among the others.
+     *
+     * @throws IllegalArgumentException when the model can't be run at all
+     */
+    public Loaded create(ByteBuffer model, @Nullable Backend preferred) {
+        if (preferred == null) {
+            return select(model, null);
+        }
+        try {
+            Loaded loaded = tryCreate(model, preferred);
+            if (loaded != null) {
+                Log.i(TAG, "Chose " + loaded + ", as before");
+                return loaded;
+            }
+        } catch (RuntimeException | LinkageError e) {
+            Log.i(TAG, preferred + " no longer runs the model: " + e.getMessage());
+        }
+        return select(model, preferred);
+    }
+
+    private Loaded select(ByteBuffer model, @Nullable Backend skipped) {
+        Loaded best = null;
+        Throwable lastError = null;
+        for (Backend backend : backends) {
+            if (backend == skipped && backend != Backend.CPU) {
+                continue;
+            }
+            Loaded candidate;
+            try {
+                candidate = tryCreate(model, backend);
+            } catch (RuntimeException | LinkageError e) {
+                // unsupported ops, delegate init failures, missing delegate libraries and the like
+                Log.i(TAG, backend + " can't run the model: " + e.getMessage());
+                lastError = e;
+                continue;
+            }
+            if (candidate == null) {
+                continue;
+            }
+            Log.i(TAG, "Backend " + candidate);
+            if (best == null || candidate.warmUpNanos < best.warmUpNanos) {
+                if (best != null) {
+                    best.close();
+                }
+                best = candidate;
+            } else {
+                candidate.close();
+            }
+            if (!selectFastest) {
+                break;
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("No backend can run the model", lastError);
+        }
+        Log.i(TAG, "Chose " + best);
+        return best;
+    }
+
+    /**
+     * Interpreter on {@code backend}, or null when the backend isn't available. Package-private
+     * so host tests can stand in for the native code.
+     */
+    Loaded tryCreate(ByteBuffer model, Backend backend) {
+        Interpreter.Options options = new Interpreter.Options();
+        AutoCloseable delegate = null;
+        switch (backend) {
+            case GPU:
+                CompatibilityList compatibility = new CompatibilityList();
+                try {
+                    if (!compatibility.isDelegateSupportedOnThisDevice()) {
+                        return null;
+                    }
+                    GpuDelegate gpu = new GpuDelegate(compatibility.getBestOptionsForThisDevice());
+                    options.addDelegate(gpu);
+                    delegate = gpu;
+                } finally {
+                    compatibility.close();
+                }
+                break;
+            case NNAPI:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                    return null;
+                }
+                NnApiDelegate nnApi = new NnApiDelegate();
+                options.addDelegate(nnApi);
+                delegate = nnApi;
+                break;
+            case XNNPACK:
+                options.setNumThreads(numThreads).setUseXNNPACK(true);
+                break;
+            default:
+                options.setNumThreads(numThreads).setUseXNNPACK(false);
+                break;
+        }
+
+        Interpreter interpreter = null;
+        try {
+            // the buffer is read from its position, a previous attempt may have moved it
+            model.rewind();
+            interpreter = new Interpreter(model, options);
+            long nanos = warmUp(interpreter);
+            return new Loaded(interpreter, backend, nanos, delegate);
+        } catch (RuntimeException | LinkageError e) {
+            if (interpreter != null) {
+                interpreter.close();
+            }
+            closeQuietly(delegate);
+            throw e;
+        }
+    }
+
+    /** Runs the model a few times on zeroed input and returns the average latency. */
+    private static long warmUp(Interpreter interpreter) {
+        Object[] inputs = new Object[interpreter.getInputTensorCount()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = buffer(interpreter.getInputTensor(i));
+        }
+        Map<Integer, Object> outputs = new HashMap<>();
+        for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+            outputs.put(i, buffer(interpreter.getOutputTensor(i)));
+        }
+
+        // the first run includes delegate preparation, it is not timed
+        interpreter.runForMultipleInputsOutputs(inputs, outputs);
+        long start = System.nanoTime();
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            for (Object output : outputs.values()) {
+                ((ByteBuffer) output).rewind();
+            }
+            interpreter.runForMultipleInputsOutputs(inputs, outputs);
+        }
+        return (System.nanoTime() - start) / WARM_UP_RUNS;
+    }
+
+    private static ByteBuffer buffer(Tensor tensor) {
+        return ByteBuffer.allocateDirect(tensor.numBytes()).order(ByteOrder.nativeOrder());
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // already failing
+        }
+    }
+}
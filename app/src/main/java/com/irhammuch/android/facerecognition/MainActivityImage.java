@@ -1,24 +1,26 @@
 package com.irhammuch.android.facerecognition;
 
-import android.app.Activity;
-import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.GradientDrawable;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
+import android.util.LruCache;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -26,25 +28,24 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import com.dexafree.materialList.card.Card;
 import com.dexafree.materialList.card.CardProvider;
 import com.dexafree.materialList.view.MaterialListView;
-import com.google.mlkit.vision.common.InputImage;
-import com.google.mlkit.vision.face.Face;
 import com.google.mlkit.vision.face.FaceDetection;
 import com.google.mlkit.vision.face.FaceDetector;
 import com.google.mlkit.vision.face.FaceDetectorOptions;
 import com.squareup.picasso.RequestCreator;
 
-import org.tensorflow.lite.Interpreter;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class MainActivityImage extends AppCompatActivity {
@@ -59,14 +60,55 @@ public class MainActivityImage extends AppCompatActivity {
     private HashMap<String, MaterialListView> materialListViews = new HashMap<>();
     private Button mStartBtn;
 
-    private Interpreter tfLite;
+    private static final int REFRESH_EVERY = 50; // images between list refreshes while indexing
+    private static final int SAVE_EVERY = 500; // images between image index saves while indexing
+    private static final long RESCAN_DELAY_MS = 2000; // waits for a burst of MediaStore changes to settle
+    private static final long PIPELINE_SHUTDOWN_TIMEOUT_MS = 5000; // stages finish the image in hand
+
+    private ModelLoader.Model model; // null until loaded, closed in onDestroy
+    private EmbeddingExtractor embeddingExtractor; // null until the model is loaded
 
     private FaceDetector faceDetector;
 
-    private final HashMap<String, SimilarityClassifier.Recognition> registered = new HashMap<>(); //saved Faces
+    private final FaceGallery registered = new FaceGallery(); //saved Faces, one per identity
+    private GalleryFile galleryFile; // opened and closed on the background executor
+    private final FaceGallery members = new FaceGallery(); // every face found, labeled with its identity
+    private GalleryFile membersFile;
+    private FaceClusterer clusterer; // null until the galleries are loaded
+
+    private IndexingPipeline pipeline;
 
-    private final HashMap<String, InputImage> inputImages = new HashMap<>();
+    private static final int THUMBNAIL_SIZE = 256; // short side of the image cards, in pixels
+
+    // card thumbnails, bounded by their pixel bytes instead of their number
+    private final LruCache<String, Bitmap> thumbnails = new LruCache<String, Bitmap>(
+            (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8)) {
+        @Override
+        protected int sizeOf(String path, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+
+    private ImageIndex imageIndex; // what earlier scans found, keyed by MediaStore id
+    private final HashMap<String, ImageIndex.Entry> pendingEntries = new HashMap<>(); // images in the pipeline, by path
+    private boolean rescanPending = false;
+    private boolean askingToReindex = false; // no scans until answered
+
+    // index saves and avatar crops of images that are not rescanned
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+
+    // new photos are picked up shortly after they are added
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable rescan = this::start;
+    private final ContentObserver mediaObserver = new ContentObserver(handler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            handler.removeCallbacks(rescan);
+            handler.postDelayed(rescan, RESCAN_DELAY_MS);
+        }
+    };
 
+    // Only touched on the UI thread, the pipeline posts its results.
     private final HashMap<String, List<String>> imageTags = new HashMap<>(); // image tags.
 
     private final TreeMap<Integer, Bitmap> avatars = new TreeMap<>(); // avatars.
@@ -77,6 +119,7 @@ public class MainActivityImage extends AppCompatActivity {
         setContentView(R.layout.activity_main_image);
 
         loadModel();
+        loadGalleries();
 
         faceDetector = FaceDetection.getClient(new FaceDetectorOptions.Builder()
                 .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE)
@@ -88,7 +131,45 @@ public class MainActivityImage extends AppCompatActivity {
         setupUI();
 
         mStartBtn.setVisibility(View.GONE);
-        start();
+        getContentResolver().registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, mediaObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mediaObserver);
+        handler.removeCallbacks(rescan);
+        final IndexingPipeline cancelled = pipeline;
+        if (cancelled != null) {
+            cancelled.cancel();
+        }
+        if (imageIndex != null) {
+            saveImageIndex();
+        }
+        final ModelLoader.Model loaded = model;
+        backgroundExecutor.execute(() -> {
+            // the assign stage may still be journaling into the gallery files, and the embed
+            // stage running the model
+            boolean stopped = true;
+            if (cancelled != null) {
+                try {
+                    stopped = cancelled.awaitTermination(PIPELINE_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    stopped = false;
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!stopped) {
+                // the model may still be running, it is left to the process
+                logger.warning("Indexing did not stop, closing the galleries anyway");
+            } else if (loaded != null) {
+                loaded.close();
+            }
+            faceDetector.close();
+            galleryFile.close();
+            membersFile.close();
+        });
+        backgroundExecutor.shutdown();
     }
 
     protected void setupUI() {
@@ -110,10 +191,86 @@ public class MainActivityImage extends AppCompatActivity {
         });
     }
 
+    /**
+     * Opens the galleries and the image index on the background executor, copying the mapped
+     * files and building the graph index of a large gallery would hold up the main thread.
+     * Scans start once they are loaded.
+     */
+    private void loadGalleries() {
+        final File dir = getFilesDir();
+        backgroundExecutor.execute(() -> {
+            // switches from exact scans to the graph index once the gallery gets large
+            registered.setIndex(new HnswIndex(registered));
+            // int8 scans with float re-ranking for the auto-enrolled gallery below that size
+            registered.setQuantized(true);
+            galleryFile = GalleryFile.open(new File(dir, "image.gallery"), registered);
+            membersFile = GalleryFile.open(new File(dir, "members.gallery"), members);
+            final FaceClusterer loadedClusterer = new FaceClusterer(registered, members);
+            final ImageIndex loadedIndex = ImageIndex.load(new File(dir, "images.json"));
+            final boolean aligned = (galleryFile.isAligned() || registered.isEmpty())
+                    && (membersFile.isAligned() || members.isEmpty());
+            handler.post(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                clusterer = loadedClusterer;
+                imageIndex = loadedIndex;
+                if (aligned) {
+                    start();
+                } else {
+                    askToReindex();
+                }
+            });
+        });
+    }
+
+    /** Faces indexed before crops were aligned match poorly, offers to index every image again. */
+    private void askToReindex() {
+        askingToReindex = true;
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.reindex_title)
+                .setMessage(R.string.reindex_message)
+                .setCancelable(false)
+                .setPositiveButton(R.string.reindex, (dialog, which) -> {
+                    askingToReindex = false;
+                    // no scan ran yet, nothing else touches the galleries
+                    registered.clear();
+                    members.clear();
+                    clusterer = new FaceClusterer(registered, members);
+                    imageIndex.clear();
+                    start();
+                })
+                .setNegativeButton(R.string.later, (dialog, which) -> {
+                    askingToReindex = false;
+                    start();
+                })
+                .show();
+    }
+
     private void start() {
-        final String[] columns = {MediaStore.Images.Media.DATA, MediaStore.Images.Media._ID};
+        if (clusterer == null || askingToReindex) {
+            // scans once the galleries are loaded, or the question is answered
+            return;
+        }
+        if (pipeline != null) {
+            // picked up once the running scan finishes
+            rescanPending = true;
+            return;
+        }
+        rescanPending = false;
+
+        boolean hasGeneration = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.R;
+        final String[] columns = hasGeneration
+                ? new String[]{MediaStore.Images.Media.DATA, MediaStore.Images.Media._ID, MediaStore.Images.Media.SIZE,
+                        MediaStore.Images.Media.DATE_MODIFIED, MediaStore.Images.Media.GENERATION_MODIFIED}
+                : new String[]{MediaStore.Images.Media.DATA, MediaStore.Images.Media._ID, MediaStore.Images.Media.SIZE,
+                        MediaStore.Images.Media.DATE_MODIFIED};
         final String orderBy = MediaStore.Images.Media._ID;
 
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
+            imageIndex.checkMediaStoreVersion(MediaStore.getVersion(this));
+        }
+
         // Stores all the images from the gallery in Cursor.
         Cursor cursor = getContentResolver().query(
                 MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
@@ -128,78 +285,176 @@ public class MainActivityImage extends AppCompatActivity {
 
         System.out.println("Count: " + count);
 
-        // Create an array to store path to all the images.
+        int dataColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
+        int idColumn = cursor.getColumnIndex(MediaStore.Images.Media._ID);
+        int sizeColumn = cursor.getColumnIndex(MediaStore.Images.Media.SIZE);
+        int dateColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATE_MODIFIED);
+        int generationColumn = hasGeneration ? cursor.getColumnIndex(MediaStore.Images.Media.GENERATION_MODIFIED) : -1;
+
+        // Only images that are new or changed since the last scan go through the pipeline.
         ArrayList<String> arrPath = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        pendingEntries.clear();
 
         for (int i = 0; i < count; i++) {
             cursor.moveToPosition(i);
-            int dataColumnIndex = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
-            // Store the path of the image.
-            arrPath.add(0, cursor.getString(dataColumnIndex));
+            ImageIndex.Entry entry = new ImageIndex.Entry(
+                    cursor.getLong(idColumn),
+                    cursor.getString(dataColumn),
+                    cursor.getLong(sizeColumn),
+                    cursor.getLong(dateColumn),
+                    generationColumn >= 0 ? cursor.getLong(generationColumn) : 0);
+
+            ImageIndex.Entry indexed = imageIndex.get(entry.id);
+            if (indexed != null && indexed.isSameFile(entry)) {
+                ids.add(entry.id);
+                if (!imageTags.containsKey(indexed.path)) {
+                    showIndexed(indexed);
+                }
+                continue;
+            }
+            pendingEntries.put(entry.path, entry);
+            arrPath.add(0, entry.path);
         }
-
-        for (String each: arrPath) {
-            logger.info("Path: " + each);
-
-            try {
-                analyze(each);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        cursor.close();
+
+        // Deleted and changed images leave the index, their faces leave their identities.
+        for (ImageIndex.Entry removed : imageIndex.retain(ids)) {
+            imageTags.remove(removed.path);
+            thumbnails.remove(removed.path);
+            for (int face : removed.faceIds) {
+                clusterer.removeMember(face);
             }
         }
-    }
+        loadMissingAvatars();
+        updateListView();
 
-    private Boolean analyze(@NonNull String image_path) throws InterruptedException {
-        InputImage image = null;
-        try {
-            image = inputImages.get(image_path);
-            if (image == null) {
-                image = InputImage.fromFilePath(getApplicationContext(), Uri.fromFile(new File(image_path)));
-                inputImages.put(image_path, image);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        logger.info(arrPath.size() + " of " + count + " images to index");
+        if (arrPath.isEmpty()) {
+            saveImageIndex();
+            return;
+        }
+        if (embeddingExtractor == null) {
+            // the model is still loading, it scans again once ready
+            return;
         }
 
-        assert image != null;
+        // decoding, detection and embedding run off the UI thread, results come back here
+        pipeline = new IndexingPipeline(faceDetector, embeddingExtractor, clusterer, new IndexingPipeline.Listener() {
+            @Override
+            public void onImageIndexed(IndexingPipeline.Result result) {
+                onIndexed(result);
+            }
 
-        return faceDetector.process(image)
-                .addOnSuccessListener(faces -> onSuccessListener(faces, image_path))
-                .addOnFailureListener(e -> e.printStackTrace())
-                .addOnCompleteListener(task -> updateListView()).isComplete();
+            @Override
+            public void onProgress(int done, int total) {
+                setTitle(done + " / " + total);
+                if (done % REFRESH_EVERY == 0) {
+                    updateListView();
+                }
+                if (done % SAVE_EVERY == 0) {
+                    saveImageIndex();
+                }
+            }
+
+            @Override
+            public void onFinished() {
+                pipeline = null;
+                saveImageIndex();
+                loadMissingAvatars(); // identities split off while indexing
+                updateListView();
+                if (rescanPending) {
+                    start();
+                }
+            }
+        });
+        pipeline.start(arrPath);
     }
 
-    private void onSuccessListener(List<Face> faces, String image_path) {
-        logger.info("Find " + faces.size() + " faces.");
+    private void onIndexed(IndexingPipeline.Result result) {
+        logger.info("Find " + result.faces.size() + " faces in " + result.path);
 
-        if (faces.size() == 0) {
-            imageTags.put(image_path, null);
+        ImageIndex.Entry entry = pendingEntries.remove(result.path);
+        if (entry != null) {
+            entry.setFaces(result.boxes, result.ids);
+            imageIndex.put(entry);
         }
 
-        for (Face face: faces) {
-            Rect boundingBox = face.getBoundingBox();
-
-            Bitmap bitmap = ImageUtils.croppedFace(
-                    BitmapFactory.decodeFile(image_path),
-                    inputImages.get(image_path).getRotationDegrees(),
-                    boundingBox
-            );
+        if (result.names.isEmpty()) {
+            imageTags.put(result.path, null);
+            return;
+        }
+        imageTags.put(result.path, new ArrayList<>(result.names));
 
-            String name = ImageUtils.recognizeImage(bitmap, tfLite, registered);
+        for (int i = 0; i < result.names.size(); i++) {
+            Integer name = Integer.valueOf(result.names.get(i));
+            if (avatars.get(name) == null) {
+                avatars.put(name, result.faces.get(i));
+            }
+        }
+    }
 
-            List<String> tags = null;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-                tags = imageTags.getOrDefault(image_path, new ArrayList<>());
+    /** Shows an image that was indexed in an earlier scan, no pipeline is running. */
+    private void showIndexed(ImageIndex.Entry entry) {
+        List<String> names = new ArrayList<>();
+        for (int id : entry.faceIds) {
+            String name = clusterer.nameOf(id);
+            if (name != null) {
+                names.add(name);
             }
-            tags.add(name);
-            imageTags.put(image_path, tags);
+        }
+        imageTags.put(entry.path, names.isEmpty() ? null : names);
+    }
 
-            if (avatars.get(Integer.valueOf(name)) == null) {
-                avatars.put(Integer.valueOf(name), bitmap);
+    /** Crops an avatar for every identity only seen in images indexed by earlier scans. */
+    private void loadMissingAvatars() {
+        Set<Integer> queued = new HashSet<>();
+        for (ImageIndex.Entry entry : imageIndex.entries()) {
+            if (pendingEntries.containsKey(entry.path)) {
+                continue; // changed since, its boxes are stale
+            }
+            for (int face = 0; face < entry.faceIds.length; face++) {
+                String name = clusterer.nameOf(entry.faceIds[face]);
+                if (name == null) {
+                    continue;
+                }
+                Integer avatar = Integer.valueOf(name);
+                if (avatars.get(avatar) == null && queued.add(avatar)) {
+                    loadAvatar(avatar, entry.path, entry.box(face));
+                }
             }
         }
+    }
 
-        logger.info("Done of " + image_path);
+    private void loadAvatar(final Integer avatar, final String path, final Rect box) {
+        backgroundExecutor.execute(() -> {
+            SampledImage image = SampledImage.decode(path, SampledImage.DEFAULT_DETECTION_SIZE);
+            if (image == null) {
+                return;
+            }
+            int scale = image.sampleSize;
+            final Bitmap face = image.cropFace(
+                    new Rect(box.left / scale, box.top / scale, box.right / scale, box.bottom / scale));
+            image.recycle();
+            runOnUiThread(() -> {
+                if (avatars.get(avatar) == null) {
+                    avatars.put(avatar, face);
+                    updateListView();
+                }
+            });
+        });
+    }
+
+    private void saveImageIndex() {
+        final ImageIndex snapshot = imageIndex.snapshot();
+        final File file = new File(getFilesDir(), "images.json");
+        backgroundExecutor.execute(() -> {
+            try {
+                snapshot.save(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
     }
 
     private void updateListView() {
@@ -207,7 +462,25 @@ public class MainActivityImage extends AppCompatActivity {
             each.getAdapter().clearAll();
         }
 
-        for (String tag: registered.keySet()) {
+        // merges and splits move faces between identities, tags are resolved again once the
+        // pipeline, the only other thread using the clusterer, is done
+        if (pipeline == null) {
+            for (ImageIndex.Entry entry : imageIndex.entries()) {
+                showIndexed(entry);
+            }
+        }
+        Set<Integer> identities = new HashSet<>();
+        for (List<String> tags : imageTags.values()) {
+            if (tags != null) {
+                for (String tag : tags) {
+                    identities.add(Integer.valueOf(tag));
+                }
+            }
+        }
+        avatars.keySet().retainAll(identities);
+
+        for (Integer identity: identities) {
+            String tag = String.valueOf(identity);
             if (materialListViews.get(tag) == null) {
                 materialListViews.put(tag, createMaterialListView());
                 mLinearLayout.addView(materialListViews.get(tag));
@@ -266,11 +539,13 @@ public class MainActivityImage extends AppCompatActivity {
     }
 
     private Card createCard(String tag, Map.Entry<String, List<String>> entry) {
-        BitmapFactory.Options opts = new BitmapFactory.Options();
-        opts.inSampleSize = 6;
-        Bitmap bitmap = BitmapFactory.decodeFile(
-                entry.getKey(), opts
-        );
+        Bitmap bitmap = thumbnails.get(entry.getKey());
+        if (bitmap == null) {
+            bitmap = SampledImage.decodeThumbnail(entry.getKey(), THUMBNAIL_SIZE);
+            if (bitmap != null) {
+                thumbnails.put(entry.getKey(), bitmap);
+            }
+        }
 
         return new Card.Builder(this)
                 .withProvider(new CardProvider())
@@ -291,23 +566,29 @@ public class MainActivityImage extends AppCompatActivity {
     }
 
     /** Model loader */
-    @SuppressWarnings("deprecation")
     private void loadModel() {
-        try {
-            //model name
-            String modelFile = "mobile_face_net.tflite";
-            tfLite = new Interpreter(loadModelFile(MainActivityImage.this, modelFile));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
+        // the pipeline embeds on its own worker threads, which rules out the GPU delegate
+        // that is bound to the thread creating it
+        new ModelLoader(this, new InterpreterFactory()
+                .setBackends(InterpreterFactory.Backend.NNAPI, InterpreterFactory.Backend.XNNPACK))
+                .loadAsync(backgroundExecutor, new ModelLoader.Listener() {
+                    @Override
+                    public void onModelLoaded(ModelLoader.Model loaded) {
+                        if (isDestroyed()) {
+                            loaded.close();
+                            return;
+                        }
+                        logger.info("Model ready on " + loaded.loaded);
+                        model = loaded;
+                        embeddingExtractor = loaded.extractor;
+                        start();
+                    }
 
-    private MappedByteBuffer loadModelFile(Activity activity, String MODEL_FILE) throws IOException {
-        AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(MODEL_FILE);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+                    @Override
+                    public void onModelFailed(Throwable error) {
+                        logger.log(Level.SEVERE, "Could not load the model", error);
+                        Toast.makeText(MainActivityImage.this, "Could not load the model", Toast.LENGTH_LONG).show();
+                    }
+                });
     }
 }
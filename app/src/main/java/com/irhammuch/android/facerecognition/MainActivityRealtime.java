@@ -2,24 +2,13 @@ package com.irhammuch.android.facerecognition;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
-import android.app.Activity;
 import android.content.pm.PackageManager;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.RectF;
-import android.graphics.YuvImage;
-import android.media.Image;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.util.Log;
-import android.util.Pair;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -42,26 +31,15 @@ import androidx.core.content.ContextCompat;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.face.Face;
-import com.google.mlkit.vision.face.FaceDetection;
 import com.google.mlkit.vision.face.FaceDetector;
 
-import org.tensorflow.lite.Interpreter;
-
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.ReadOnlyBufferException;
-import java.nio.channels.FileChannel;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MainActivityRealtime extends AppCompatActivity {
     private static final String TAG = "MainActivity";
@@ -77,16 +55,43 @@ public class MainActivityRealtime extends AppCompatActivity {
     private ImageView previewImg;
     private TextView detectionTextView;
 
-    private final HashMap<String, SimilarityClassifier.Recognition> registered = new HashMap<>(); //saved Faces
-    private Interpreter tfLite;
-    private boolean flipX = false;
-    private boolean start = true;
-    private float[][] embeddings;
-
-    private static final float IMAGE_MEAN = 128.0f;
-    private static final float IMAGE_STD = 128.0f;
-    private static final int INPUT_SIZE = 112;
-    private static final int OUTPUT_SIZE=192;
+    private volatile boolean flipX = false;
+    private volatile boolean start = true;
+    // detector and analysis threads, kept across camera switches until onDestroy
+    private FaceDetectionSession session;
+    private FaceDetector faceDetector;
+
+    // Saved faces: enrolments are written on their own thread and published as snapshots the
+    // inference thread searches without waiting for them, nor for their disk writes.
+    private final FaceGallery registered = new FaceGallery(); //saved Faces
+    private volatile ConcurrentGallery gallery; // null until loaded on the enrolment executor
+    private GalleryFile galleryFile; // only used on the enrolment executor
+    private final ExecutorService enrolmentExecutor = Executors.newSingleThreadExecutor();
+
+    // Detection results are handled on the session's inference thread, which owns the
+    // interpreter and the tracker: the fields below are only touched from tasks run on it, the
+    // UI thread hands work over with execute() and gets results back with runOnUiThread().
+    // Work handed over after onDestroy is dropped.
+    private ExecutorService inferenceExecutor;
+    private final FaceGallery.Match nearest = new FaceGallery.Match();
+    private Future<ModelLoader.Model> model; // loaded and warmed up on the inference thread
+    private EmbeddingExtractor embeddingExtractor; // null until the model is ready
+    private final int[] previewPixels = new int[INPUT_SIZE * INPUT_SIZE];
+    // filled in turns, the one not on screen gets the next crop
+    private final Bitmap[] previewBitmaps = new Bitmap[2];
+    private volatile Bitmap shownPreview; // set on the UI thread
+    private final FaceTracker faceTracker = new FaceTracker();
+    // skips faces that are tiny, turned away or blurred before cropping them
+    private final FaceQuality quality = new FaceQuality();
+    private final List<FaceTracker.Track> tracks = new ArrayList<>();
+    private final List<FaceTracker.Track> pendingTracks = new ArrayList<>();
+    private float[][] batchEmbeddings;
+    private FaceEnrolment enrolment; // burst being collected for the face to register, if any
+    // drops frames while a detection is running and spaces out recognitions under load
+    private final FrameScheduler scheduler = new FrameScheduler();
+    private static final int LOG_STATS_EVERY = 300; // frames between scheduler stats logs
+
+    private static final int INPUT_SIZE = EmbeddingExtractor.INPUT_SIZE;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -96,6 +101,9 @@ public class MainActivityRealtime extends AppCompatActivity {
         previewView.setScaleType(PreviewView.ScaleType.FIT_CENTER);
         graphicOverlay = findViewById(R.id.graphic_overlay);
         previewImg = findViewById(R.id.preview_img);
+        for (int i = 0; i < previewBitmaps.length; i++) {
+            previewBitmaps[i] = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+        }
         detectionTextView = findViewById(R.id.detection_text);
 
         ImageButton addBtn = findViewById(R.id.add_btn);
@@ -104,6 +112,12 @@ public class MainActivityRealtime extends AppCompatActivity {
         ImageButton switchCamBtn = findViewById(R.id.switch_camera);
         switchCamBtn.setOnClickListener((view -> switchCamera()));
 
+        loadGallery();
+
+        session = new FaceDetectionSession();
+        faceDetector = session.detector();
+        inferenceExecutor = session.inferenceExecutor();
+        // GPU delegates must run on the thread that created them
         loadModel();
     }
 
@@ -113,6 +127,16 @@ public class MainActivityRealtime extends AppCompatActivity {
         startCamera();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        inferenceExecutor.execute(this::closeModel);
+        session.close();
+        // after the enrolments still being written
+        enrolmentExecutor.execute(() -> galleryFile.close());
+        enrolmentExecutor.shutdown();
+    }
+
     /** Permissions Handler */
     private void getPermissions() {
         ActivityCompat.requestPermissions(this, new String[]{CAMERA_PERMISSION}, PERMISSION_CODE);
@@ -200,14 +224,14 @@ public class MainActivityRealtime extends AppCompatActivity {
             cameraProvider.unbind(analysisUseCase);
         }
 
-        Executor cameraExecutor = Executors.newSingleThreadExecutor();
-
         ImageAnalysis.Builder builder = new ImageAnalysis.Builder();
         builder.setTargetAspectRatio(AspectRatio.RATIO_4_3);
         builder.setTargetRotation(getRotation());
+        // frames that arrive while the analyzer is busy replace each other instead of queueing
+        builder.setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST);
 
         analysisUseCase = builder.build();
-        analysisUseCase.setAnalyzer(cameraExecutor, this::analyze);
+        analysisUseCase.setAnalyzer(session.analysisExecutor(), this::analyze);
 
         try {
             cameraProvider
@@ -237,55 +261,199 @@ public class MainActivityRealtime extends AppCompatActivity {
     /** Face detection processor */
     @SuppressLint("UnsafeOptInUsageError")
     private void analyze(@NonNull ImageProxy image) {
-        if (image.getImage() == null) return;
+        if (image.getImage() == null || !scheduler.onFrame(SystemClock.elapsedRealtime())) {
+            // busy or too soon, let the camera reuse the buffer for a newer frame
+            image.close();
+            return;
+        }
+        if (scheduler.framesSeen() % LOG_STATS_EVERY == 0) {
+            Log.d(TAG, "Analysis " + scheduler);
+        }
 
         InputImage inputImage = InputImage.fromMediaImage(
                 image.getImage(),
                 image.getImageInfo().getRotationDegrees()
         );
 
-        FaceDetector faceDetector = FaceDetection.getClient();
-
+        // the frame stays open until its faces are cropped on the inference thread
         faceDetector.process(inputImage)
-                .addOnSuccessListener(faces -> onSuccessListener(faces, inputImage))
-                .addOnFailureListener(e -> Log.e(TAG, "Barcode process failure", e))
-                .addOnCompleteListener(task -> image.close());
+                .addOnCompleteListener(inferenceExecutor, task -> {
+                    if (task.isSuccessful()) {
+                        onSuccessListener(task.getResult(), inputImage);
+                    } else {
+                        Log.e(TAG, "Face detection failure", task.getException());
+                    }
+                    image.close();
+                    scheduler.onDetectionFinished(SystemClock.elapsedRealtime());
+                });
     }
 
+    /** Tracks and recognizes the faces of a frame, on the inference thread. */
     private void onSuccessListener(List<Face> faces, InputImage inputImage) {
-        System.out.println("Faces: " + Arrays.toString(faces.toArray()));
+        tracks.clear();
+        pendingTracks.clear();
+        faceTracker.beginFrame();
+        // between recognitions boxes still follow the faces, with their cached names
+        long recognitionStart = SystemClock.elapsedRealtime();
+        boolean recognize = start && gallery != null && modelReady()
+                && scheduler.shouldRecognize(recognitionStart);
+
+        for (Face face : faces) {
+            // get bounding box of face;
+            Rect boundingBox = face.getBoundingBox();
+            FaceTracker.Track track = faceTracker.update(face.getTrackingId(), boundingBox);
+            tracks.add(track);
+
+            // committed tracks are only embedded again to verify them now and then
+            // the face being enrolled is embedded on every frame
+            // faces the quality check rejects keep their cached name and are retried on later frames
+            if (recognize && pendingTracks.size() < embeddingExtractor.getMaxBatchSize()
+                    && (faceTracker.needsRecognition(track) || isEnrolling(track))
+                    && quality.check(face, inputImage.getMediaImage(), inputImage.getRotationDegrees())
+                            == FaceQuality.Decision.EMBED) {
+                // align face straight from the YUV planes into the model input
+                YuvFaceCropper.crop(
+                        inputImage.getMediaImage(),
+                        inputImage.getRotationDegrees(),
+                        FaceAlignment.of(face, flipX),
+                        embeddingExtractor.batchInput(pendingTracks.size()),
+                        embeddingExtractor.format(),
+                        pendingTracks.isEmpty() ? previewPixels : null);
+                pendingTracks.add(track);
+            }
+        }
+        faceTracker.endFrame();
+
+        Bitmap preview = null;
+        if (!pendingTracks.isEmpty()) {
+            preview = previewBitmaps[0] != shownPreview ? previewBitmaps[0] : previewBitmaps[1];
+            preview.setPixels(previewPixels, 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
+            recognizeFaces();
+            scheduler.onRecognitionFinished(recognitionStart, SystemClock.elapsedRealtime());
+        }
+        if (enrolment != null) {
+            updateEnrolment();
+        }
 
-        Rect boundingBox = null;
-        String name = null;
-        float scaleX = (float) previewView.getWidth() / (float) inputImage.getHeight();
-        float scaleY = (float) previewView.getHeight() / (float) inputImage.getWidth();
+        // copies, the tracks keep changing while the UI thread draws
+        final List<Rect> boxes = new ArrayList<>(tracks.size());
+        final List<String> names = new ArrayList<>(tracks.size());
+        StringBuilder text = new StringBuilder();
+        for (FaceTracker.Track track : tracks) {
+            String name = displayName(track);
+            boxes.add(new Rect(track.left, track.top, track.right, track.bottom));
+            names.add(name);
+            if (name != null) {
+                if (text.length() > 0) text.append(", ");
+                text.append(name);
+            }
+        }
 
-        if(faces.size() > 0) {
-            detectionTextView.setText(R.string.face_detected);
-            // get first face detected
-            Face face = faces.get(0);
+        final CharSequence detectionText;
+        if (enrolment != null) {
+            detectionText = getString(R.string.enrolment_turn_head, enrolment.sampleCount(), enrolment.maxSamples());
+        } else if (faces.isEmpty()) {
+            detectionText = getString(R.string.no_face_detected);
+        } else if (text.length() == 0) {
+            detectionText = getString(R.string.face_detected);
+        } else {
+            detectionText = text;
+        }
 
-            // get bounding box of face;
-            boundingBox = face.getBoundingBox();
+        final Bitmap previewFace = preview;
+        final int imageWidth = inputImage.getWidth();
+        final int imageHeight = inputImage.getHeight();
+        runOnUiThread(() -> showResults(boxes, names, detectionText, previewFace, imageWidth, imageHeight));
+    }
 
-            // convert img to bitmap & crop img
-            Bitmap bitmap = mediaImgToBmp(
-                    inputImage.getMediaImage(),
-                    inputImage.getRotationDegrees(),
-                    boundingBox);
+    private void showResults(List<Rect> boxes, List<String> names, CharSequence text,
+                             Bitmap preview, int imageWidth, int imageHeight) {
+        float scaleX = (float) previewView.getWidth() / (float) imageHeight;
+        float scaleY = (float) previewView.getHeight() / (float) imageWidth;
 
-            if(start) name = recognizeImage(bitmap);
-            if(name != null) detectionTextView.setText(name);
-        }
-        else {
-            detectionTextView.setText(R.string.no_face_detected);
+        if (preview != null) {
+            // set image to preview
+            shownPreview = preview;
+            previewImg.setImageBitmap(preview);
         }
+        detectionTextView.setText(text);
+        graphicOverlay.draw(boxes, scaleX, scaleY, names);
+    }
 
-        graphicOverlay.draw(boundingBox, scaleX, scaleY, name);
+    private String displayName(FaceTracker.Track track) {
+        if (!track.isRecognized()) return null;
+        if (track.name != null) return track.name;
+        ConcurrentGallery gallery = this.gallery;
+        return gallery == null || gallery.snapshot().isEmpty() ? null : "unknown";
     }
 
     /** Recognize Processor */
     private void addFace() {
+        inferenceExecutor.execute(this::startEnrolment);
+    }
+
+    private void startEnrolment() {
+        if (enrolment != null) {
+            return;
+        }
+        // register the biggest face currently in view, from a burst of poses
+        FaceTracker.Track track = faceTracker.largest();
+        if (track == null) {
+            runOnUiThread(() -> Toast.makeText(this, R.string.no_face_detected, Toast.LENGTH_SHORT).show());
+            return;
+        }
+        // the gallery is only read for its settings, which don't change
+        enrolment = new FaceEnrolment(registered, track.trackingId);
+        enrolment.add(track.embedding);
+    }
+
+    private boolean isEnrolling(FaceTracker.Track track) {
+        return enrolment != null && track.trackingId == enrolment.trackingId;
+    }
+
+    /** Ends the enrolment once the burst is complete or the face left the frame. */
+    private void updateEnrolment() {
+        enrolment.nextFrame();
+        boolean inView = false;
+        for (FaceTracker.Track track : tracks) {
+            inView |= isEnrolling(track);
+        }
+        if (!inView || enrolment.isDone()) {
+            final List<float[]> prototypes = enrolment.prototypes();
+            enrolment = null;
+            runOnUiThread(() -> askName(prototypes));
+        }
+    }
+
+    /**
+     * Opens the saved faces on the enrolment executor, their writer, so copying the mapped file
+     * doesn't hold up the main thread. Recognition waits for them like for the model.
+     */
+    private void loadGallery() {
+        final File file = new File(getFilesDir(), "realtime.gallery");
+        enrolmentExecutor.execute(() -> {
+            galleryFile = GalleryFile.open(file, registered);
+            gallery = new ConcurrentGallery(registered, galleryFile);
+            if (!galleryFile.isAligned() && !registered.isEmpty()) {
+                runOnUiThread(this::askToEnrolAgain);
+            }
+        });
+    }
+
+    /** Faces registered before crops were aligned match poorly, offers to start over. */
+    private void askToEnrolAgain() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.enrol_again_title)
+                .setMessage(R.string.enrol_again_message)
+                .setPositiveButton(R.string.clear_faces, (dialog, which) -> enrolmentExecutor.execute(() -> {
+                    gallery.clear();
+                    inferenceExecutor.execute(faceTracker::invalidate);
+                }))
+                .setNegativeButton(R.string.later, null)
+                .show();
+    }
+
+    private void askName(final List<float[]> prototypes) {
         start=false;
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Enter Name");
@@ -301,12 +469,13 @@ public class MainActivityRealtime extends AppCompatActivity {
         builder.setPositiveButton("ADD", (dialog, which) -> {
             //Toast.makeText(context, input.getText().toString(), Toast.LENGTH_SHORT).show();
 
-            //Create and Initialize new object with Face embeddings and Name.
-            SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
-                    "0", "", -1f);
-            result.setExtra(embeddings);
-
-            registered.put( input.getText().toString(),result);
+            //Store the prototypes under the Name, replacing an earlier registration.
+            final String name = input.getText().toString();
+            enrolmentExecutor.execute(() -> {
+                gallery.replace(name, prototypes);
+                // cached identities may be stale now
+                inferenceExecutor.execute(faceTracker::invalidate);
+            });
             start = true;
 
         });
@@ -318,278 +487,74 @@ public class MainActivityRealtime extends AppCompatActivity {
         builder.show();
     }
 
-    public String recognizeImage(final Bitmap bitmap) {
-        // set image to preview
-        previewImg.setImageBitmap(bitmap);
-
-        //Create ByteBuffer to store normalized image
-
-        ByteBuffer imgData = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * 4);
+    private void recognizeFaces() {
+        int count = pendingTracks.size();
 
-        imgData.order(ByteOrder.nativeOrder());
+        //embed all pending faces in one invocation
+        embeddingExtractor.runBatch(count, batchEmbeddings);
+        GallerySnapshot faces = gallery.snapshot();
 
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
+        for (int i = 0; i < count; i++) {
+            String name = null;
+            float distance = Float.MAX_VALUE;
 
-        //get pixel values from Bitmap to normalize
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        imgData.rewind();
-
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                int pixelValue = intValues[i * INPUT_SIZE + j];
-                imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+            //Compare new face with saved Faces.
+            if (gallery.findNearest(batchEmbeddings[i], nearest)) { //Find closest matching face
+                distance = nearest.distance;
+                if(faces.isMatch(nearest)) //If distance between Closest found face is above the gallery threshold ,then output UNKNOWN face.
+                    name = nearest.label;
             }
-        }
-        //imgData is input to our model
-        Object[] inputArray = {imgData};
-
-        Map<Integer, Object> outputMap = new HashMap<>();
-
-
-        embeddings = new float[1][OUTPUT_SIZE]; //output of model will be stored in this variable
-
-        outputMap.put(0, embeddings);
-
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap); //Run model
 
-
-
-        float distance;
-
-        //Compare new face with saved Faces.
-        if (registered.size() > 0) {
-
-            final Pair<String, Float> nearest = findNearest(embeddings[0]);//Find closest matching face
-
-            if (nearest != null) {
-
-                final String name = nearest.first;
-                distance = nearest.second;
-                if(distance<1.000f) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
-                    return name;
-                else
-                    return "unknown";
+            faceTracker.onRecognized(pendingTracks.get(i), batchEmbeddings[i], name, distance);
+            if (isEnrolling(pendingTracks.get(i))) {
+                enrolment.add(batchEmbeddings[i]);
             }
         }
-
-        return null;
     }
 
-    //Compare Faces by distance between face embeddings
-    private Pair<String, Float> findNearest(float[] emb) {
-
-        Pair<String, Float> ret = null;
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet()) {
-
-            final String name = entry.getKey();
-            final float[] knownEmb = ((float[][]) entry.getValue().getExtra())[0];
-
-            float distance = 0;
-            for (int i = 0; i < emb.length; i++) {
-                float diff = emb[i] - knownEmb[i];
-                distance += diff*diff;
-            }
-            distance = (float) Math.sqrt(distance);
-            if (ret == null || distance < ret.second) {
-                ret = new Pair<>(name, distance);
-            }
-        }
-
-        return ret;
-
-    }
-
-    /** Bitmap Converter */
-    private Bitmap mediaImgToBmp(Image image, int rotation, Rect boundingBox) {
-        //Convert media image to Bitmap
-        Bitmap frame_bmp = toBitmap(image);
-
-        //Adjust orientation of Face
-        Bitmap frame_bmp1 = rotateBitmap(frame_bmp, rotation, flipX);
-
-        //Crop out bounding box from whole Bitmap(image)
-        float padding = 0.0f;
-        RectF adjustedBoundingBox = new RectF(
-                boundingBox.left - padding,
-                boundingBox.top - padding,
-                boundingBox.right + padding,
-                boundingBox.bottom + padding);
-        Bitmap cropped_face = getCropBitmapByCPU(frame_bmp1, adjustedBoundingBox);
-
-        //Resize bitmap to 112,112
-        return getResizedBitmap(cropped_face);
-    }
-
-    private Bitmap getResizedBitmap(Bitmap bm) {
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        float scaleWidth = ((float) 112) / width;
-        float scaleHeight = ((float) 112) / height;
-        // CREATE A MATRIX FOR THE MANIPULATION
-        Matrix matrix = new Matrix();
-        // RESIZE THE BIT MAP
-        matrix.postScale(scaleWidth, scaleHeight);
-
-        // "RECREATE" THE NEW BITMAP
-        Bitmap resizedBitmap = Bitmap.createBitmap(
-                bm, 0, 0, width, height, matrix, false);
-        bm.recycle();
-        return resizedBitmap;
+    /** Model loader */
+    private void loadModel() {
+        // fastest of GPU, NNAPI and XNNPACK that runs the model, plain CPU otherwise;
+        // the int8 model when it ships and agrees with the float one
+        model = new ModelLoader(this, new InterpreterFactory())
+                .loadAsync(inferenceExecutor, new ModelLoader.Listener() {
+                    @Override
+                    public void onModelLoaded(ModelLoader.Model loaded) {
+                        Log.i(TAG, "Model ready on " + loaded.loaded);
+                    }
+
+                    @Override
+                    public void onModelFailed(Throwable error) {
+                        Log.e(TAG, "Could not load the model", error);
+                        Toast.makeText(MainActivityRealtime.this, "Could not load the model", Toast.LENGTH_LONG).show();
+                    }
+                });
     }
 
-    private static Bitmap getCropBitmapByCPU(Bitmap source, RectF cropRectF) {
-        Bitmap resultBitmap = Bitmap.createBitmap((int) cropRectF.width(),
-                (int) cropRectF.height(), Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(resultBitmap);
-
-        // draw background
-        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-        paint.setColor(Color.WHITE);
-        canvas.drawRect(//from  w w  w. ja v  a  2s. c  om
-                new RectF(0, 0, cropRectF.width(), cropRectF.height()),
-                paint);
-
-        Matrix matrix = new Matrix();
-        matrix.postTranslate(-cropRectF.left, -cropRectF.top);
-
-        canvas.drawBitmap(source, matrix, paint);
-
-        if (source != null && !source.isRecycled()) {
-            source.recycle();
+    /** Whether the model is ready, picks up its extractor the first time. Inference thread. */
+    private boolean modelReady() {
+        if (embeddingExtractor != null) {
+            return true;
         }
-
-        return resultBitmap;
-    }
-
-    private static Bitmap rotateBitmap(
-            Bitmap bitmap, int rotationDegrees, boolean flipX) {
-        Matrix matrix = new Matrix();
-
-        // Rotate the image back to straight.
-        matrix.postRotate(rotationDegrees);
-
-        // Mirror the image along the X or Y axis.
-        matrix.postScale(flipX ? -1.0f : 1.0f, 1.0f);
-        Bitmap rotatedBitmap =
-                Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-
-        // Recycle the old bitmap if it has changed.
-        if (rotatedBitmap != bitmap) {
-            bitmap.recycle();
+        if (!model.isDone()) {
+            return false;
         }
-        return rotatedBitmap;
-    }
-
-    private static byte[] YUV_420_888toNV21(Image image) {
-
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width*height;
-        int uvSize = width*height/4;
-
-        byte[] nv21 = new byte[ySize + uvSize*2];
-
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
-
-        int rowStride = image.getPlanes()[0].getRowStride();
-        assert(image.getPlanes()[0].getPixelStride() == 1);
-
-        int pos = 0;
-
-        if (rowStride == width) { // likely
-            yBuffer.get(nv21, 0, ySize);
-            pos += ySize;
-        }
-        else {
-            long yBufferPos = -rowStride; // not an actual position
-            for (; pos<ySize; pos+=width) {
-                yBufferPos += rowStride;
-                yBuffer.position((int) yBufferPos);
-                yBuffer.get(nv21, pos, width);
-            }
-        }
-
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
-
-        assert(rowStride == image.getPlanes()[1].getRowStride());
-        assert(pixelStride == image.getPlanes()[1].getPixelStride());
-
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
-            byte savePixel = vBuffer.get(1);
-            try {
-                vBuffer.put(1, (byte)~savePixel);
-                if (uBuffer.get(0) == (byte)~savePixel) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.position(0);
-                    uBuffer.position(0);
-                    vBuffer.get(nv21, ySize, 1);
-                    uBuffer.get(nv21, ySize + 1, uBuffer.remaining());
-
-                    return nv21; // shortcut
-                }
-            }
-            catch (ReadOnlyBufferException ex) {
-                // unfortunately, we cannot check if vBuffer and uBuffer overlap
-            }
-
-            // unfortunately, the check failed. We must save U and V pixel by pixel
-            vBuffer.put(1, savePixel);
-        }
-
-        // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
-        // but performance gain would be less significant
-
-        for (int row=0; row<height/2; row++) {
-            for (int col=0; col<width/2; col++) {
-                int vuPos = col*pixelStride + row*rowStride;
-                nv21[pos++] = vBuffer.get(vuPos);
-                nv21[pos++] = uBuffer.get(vuPos);
-            }
+        try {
+            embeddingExtractor = model.get().extractor;
+            batchEmbeddings = new float[embeddingExtractor.getMaxBatchSize()][EmbeddingExtractor.OUTPUT_SIZE];
+            return true;
+        } catch (ExecutionException | InterruptedException e) {
+            return false; // reported by the listener
         }
-
-        return nv21;
     }
 
-    private Bitmap toBitmap(Image image) {
-
-        byte[] nv21=YUV_420_888toNV21(image);
-
-
-        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 75, out);
-
-        byte[] imageBytes = out.toByteArray();
-
-        return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
-    }
-
-    /** Model loader */
-    @SuppressWarnings("deprecation")
-    private void loadModel() {
+    private void closeModel() {
         try {
-            //model name
-            String modelFile = "mobile_face_net.tflite";
-            tfLite = new Interpreter(loadModelFile(MainActivityRealtime.this, modelFile));
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (model.isDone()) {
+                model.get().close();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            // never loaded
         }
     }
-
-    private MappedByteBuffer loadModelFile(Activity activity, String MODEL_FILE) throws IOException {
-        AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(MODEL_FILE);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+/**
+ * Checks that a quantized embedding model agrees with the float model before it replaces it.
+ *
+ * Both models embed the same fixture faces; the candidate passes when the cosine similarity of
+ * its embeddings to the reference ones is high enough on average and on the worst fixture.
+ * Galleries hold embeddings of the model they were enrolled with, so a candidate that drifts
+ * would silently break matching against them.
+ */
+public class ModelAccuracyGuard {
+
+    public static final float DEFAULT_MIN_MEAN_COSINE = 0.99f;
+    public static final float DEFAULT_MIN_WORST_COSINE = 0.97f;
+
+    /** Agreement of two models over a fixture set. */
+    public static class Report {
+        public final int count;
+        public final float meanCosine;
+        public final float worstCosine;
+
+        Report(int count, float meanCosine, float worstCosine) {
+            this.count = count;
+            this.meanCosine = meanCosine;
+            this.worstCosine = worstCosine;
+        }
+
+        /** False as well when there were no fixtures to compare on. */
+        public boolean passes(float minMeanCosine, float minWorstCosine) {
+            return count > 0 && meanCosine >= minMeanCosine && worstCosine >= minWorstCosine;
+        }
+
+        public boolean passes() {
+            return passes(DEFAULT_MIN_MEAN_COSINE, DEFAULT_MIN_WORST_COSINE);
+        }
+
+        @Override
+        public String toString() {
+            return count + " fixtures, mean cosine " + meanCosine + ", worst " + worstCosine;
+        }
+    }
+
+    private ModelAccuracyGuard() {
+    }
+
+    /** Embeds every fixture face, 112x112, with both extractors and compares the results. */
+    public static Report compare(EmbeddingExtractor reference, EmbeddingExtractor candidate,
+                                 List<Bitmap> fixtures) {
+        float[][] expected = new float[fixtures.size()][EmbeddingExtractor.OUTPUT_SIZE];
+        float[][] actual = new float[fixtures.size()][EmbeddingExtractor.OUTPUT_SIZE];
+        if (!fixtures.isEmpty()) {
+            reference.extractBatch(fixtures, expected);
+            candidate.extractBatch(fixtures, actual);
+        }
+        return compare(expected, actual);
+    }
+
+    /** Compares embedding i of {@code reference} with embedding i of {@code candidate}. */
+    public static Report compare(float[][] reference, float[][] candidate) {
+        if (reference.length != candidate.length) {
+            throw new IllegalArgumentException("Different fixture counts");
+        }
+        double sum = 0;
+        float worst = Float.MAX_VALUE;
+        for (int i = 0; i < reference.length; i++) {
+            float cosine = cosine(reference[i], candidate[i]);
+            sum += cosine;
+            worst = Math.min(worst, cosine);
+        }
+        int count = reference.length;
+        return new Report(count, count == 0 ? 0 : (float) (sum / count), count == 0 ? 0 : worst);
+    }
+
+    static float cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        double norms = Math.sqrt(normA * normB);
+        return norms > 0 ? (float) (dot / norms) : 0f;
+    }
+}
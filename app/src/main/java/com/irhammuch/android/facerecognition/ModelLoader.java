@@ -0,0 +1,279 @@
+package com.irhammuch.android.facerecognition;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * Loads the embedding model from the assets, preferring the quantized variant when it agrees
+ * with the float one.
+ *
+ * The quantized model, {@link #QUANTIZED_MODEL}, is only used when it ships next to the float
+ * model and passes the {@link ModelAccuracyGuard} on the fixture faces in
+ * {@link #FIXTURES_DIR}; without fixtures there is nothing to check it against and the float
+ * model is kept. The verdict is saved with the size and CRC of both models, later launches only
+ * create the chosen model and check again once an update ships different ones.
+ *
+ * The backend {@link InterpreterFactory} picks for a model is saved the same way, with the model's
+ * size and CRC and the build fingerprint of the device; later launches only create that backend
+ * and select again when it fails, the model changes or the system is updated.
+ *
+ * {@link #loadAsync} loads off the calling thread and warms the model up with a few blank
+ * inferences, so the first detected face doesn't pay for tensor allocation; its future
+ * completes once the model is ready.
+ */
+public class ModelLoader {
+    private static final String TAG = "ModelLoader";
+
+    public static final String FLOAT_MODEL = "mobile_face_net.tflite";
+    public static final String QUANTIZED_MODEL = "mobile_face_net_int8.tflite";
+    /** Asset directory of 112x112 face crops the quantized model is checked on. */
+    public static final String FIXTURES_DIR = "model_check";
+
+    private static final int DEFAULT_WARM_UP_RUNS = 2;
+
+    private static final String PREFS = "model_loader";
+    private static final String KEY_CHECKED_MODELS = "checked_models";
+    private static final String KEY_QUANTIZED_PASSED = "quantized_passed";
+    private static final String KEY_BACKEND = "backend_"; // followed by the model name
+
+    private final AssetManager assets;
+    private final SharedPreferences prefs;
+    private final InterpreterFactory factory;
+    private int warmUpRuns = DEFAULT_WARM_UP_RUNS;
+    private int warmUpBatch = 1;
+
+    /** A loaded and warmed up model. */
+    public static class Model implements Closeable {
+        public final InterpreterFactory.Loaded loaded;
+        public final EmbeddingExtractor extractor;
+
+        Model(InterpreterFactory.Loaded loaded, EmbeddingExtractor extractor) {
+            this.loaded = loaded;
+            this.extractor = extractor;
+        }
+
+        @Override
+        public void close() {
+            loaded.close();
+        }
+    }
+
+    /** Told on the main thread how {@link #loadAsync} went. */
+    public interface Listener {
+        void onModelLoaded(Model model);
+
+        void onModelFailed(Throwable error);
+    }
+
+    public ModelLoader(Context context, InterpreterFactory factory) {
+        this.assets = context.getAssets();
+        this.prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        this.factory = factory;
+    }
+
+    /**
+     * Blank inferences run by {@link #loadAsync} at every batch size the extractor uses for up
+     * to {@code batch} crops, see {@link EmbeddingExtractor#warmUp}; two at batch size 1 by
+     * default, 0 runs turns the warm-up off.
+     */
+    public ModelLoader setWarmUp(int runs, int batch) {
+        this.warmUpRuns = runs;
+        this.warmUpBatch = batch;
+        return this;
+    }
+
+    /**
+     * Loads and warms up the model on {@code executor}. The extractor is warmed up for that
+     * executor's thread, the one that should run it; GPU delegates must even stay on it.
+     *
+     * @param listener called on the main thread once loading finished, may be null
+     */
+    public Future<Model> loadAsync(Executor executor, @Nullable final Listener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        FutureTask<Model> task = new FutureTask<Model>(() -> {
+            InterpreterFactory.Loaded loaded = load();
+            EmbeddingExtractor extractor = new EmbeddingExtractor(loaded.interpreter);
+            long start = SystemClock.elapsedRealtime();
+            extractor.warmUp(warmUpRuns, warmUpBatch);
+            Log.i(TAG, "Warmed up in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            return new Model(loaded, extractor);
+        }) {
+            @Override
+            protected void done() {
+                if (listener == null || isCancelled()) {
+                    return;
+                }
+                try {
+                    final Model model = get();
+                    mainHandler.post(() -> listener.onModelLoaded(model));
+                } catch (ExecutionException e) {
+                    mainHandler.post(() -> listener.onModelFailed(e.getCause()));
+                } catch (InterruptedException e) {
+                    // can't happen, the task is done
+                }
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    /** Creates the interpreter of the model to use. */
+    public InterpreterFactory.Loaded load() throws IOException {
+        MappedByteBuffer floatBuffer = map(FLOAT_MODEL);
+        String floatPrint = fingerprint(floatBuffer);
+        if (!exists("", QUANTIZED_MODEL)) {
+            return create(FLOAT_MODEL, floatBuffer, floatPrint);
+        }
+        MappedByteBuffer quantizedBuffer = map(QUANTIZED_MODEL);
+        String quantizedPrint = fingerprint(quantizedBuffer);
+
+        String models = floatPrint + " " + quantizedPrint;
+        if (models.equals(prefs.getString(KEY_CHECKED_MODELS, null))) {
+            if (!prefs.getBoolean(KEY_QUANTIZED_PASSED, false)) {
+                Log.i(TAG, "Keeping " + FLOAT_MODEL + ", " + QUANTIZED_MODEL + " was checked before");
+                return create(FLOAT_MODEL, floatBuffer, floatPrint);
+            }
+            try {
+                InterpreterFactory.Loaded quantized = create(QUANTIZED_MODEL, quantizedBuffer, quantizedPrint);
+                Log.i(TAG, "Using " + QUANTIZED_MODEL + ", it was checked before");
+                return quantized;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Could not load " + QUANTIZED_MODEL, e);
+                return create(FLOAT_MODEL, floatBuffer, floatPrint);
+            }
+        }
+
+        InterpreterFactory.Loaded floatModel = create(FLOAT_MODEL, floatBuffer, floatPrint);
+        InterpreterFactory.Loaded quantized;
+        try {
+            quantized = create(QUANTIZED_MODEL, quantizedBuffer, quantizedPrint);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Could not load " + QUANTIZED_MODEL, e);
+            return floatModel;
+        }
+
+        List<Bitmap> fixtures = loadFixtures();
+        ModelAccuracyGuard.Report report = ModelAccuracyGuard.compare(
+                new EmbeddingExtractor(floatModel.interpreter),
+                new EmbeddingExtractor(quantized.interpreter),
+                fixtures);
+        for (Bitmap fixture : fixtures) {
+            fixture.recycle();
+        }
+        prefs.edit()
+                .putString(KEY_CHECKED_MODELS, models)
+                .putBoolean(KEY_QUANTIZED_PASSED, report.passes())
+                .apply();
+
+        if (report.passes()) {
+            Log.i(TAG, "Using " + QUANTIZED_MODEL + ": " + report);
+            floatModel.close();
+            return quantized;
+        }
+        Log.w(TAG, "Keeping " + FLOAT_MODEL + ", " + QUANTIZED_MODEL + " disagrees: " + report);
+        quantized.close();
+        return floatModel;
+    }
+
+    /**
+     * Creates {@code model} on the backend saved for it, when it is the same model on the same
+     * system build, and saves the backend chosen otherwise.
+     */
+    private InterpreterFactory.Loaded create(String name, ByteBuffer model, String fingerprint) {
+        String key = KEY_BACKEND + name;
+        String prefix = fingerprint + " " + Build.FINGERPRINT + " ";
+        String saved = prefs.getString(key, null);
+        InterpreterFactory.Backend preferred = null;
+        if (saved != null && saved.startsWith(prefix)) {
+            try {
+                preferred = InterpreterFactory.Backend.valueOf(saved.substring(prefix.length()));
+            } catch (IllegalArgumentException e) {
+                // a backend of another version, selected again
+            }
+        }
+        InterpreterFactory.Loaded loaded = factory.create(model, preferred);
+        if (loaded.backend != preferred) {
+            prefs.edit().putString(key, prefix + loaded.backend.name()).apply();
+        }
+        return loaded;
+    }
+
+    private boolean exists(String dir, String name) throws IOException {
+        String[] names = assets.list(dir);
+        return names != null && Arrays.asList(names).contains(name);
+    }
+
+    private List<Bitmap> loadFixtures() throws IOException {
+        List<Bitmap> fixtures = new ArrayList<>();
+        String[] names = assets.list(FIXTURES_DIR);
+        if (names == null) {
+            return fixtures;
+        }
+        for (String name : names) {
+            Bitmap bitmap;
+            try (InputStream in = assets.open(FIXTURES_DIR + "/" + name)) {
+                bitmap = BitmapFactory.decodeStream(in);
+            }
+            if (bitmap == null) {
+                continue;
+            }
+            if (bitmap.getWidth() != EmbeddingExtractor.INPUT_SIZE
+                    || bitmap.getHeight() != EmbeddingExtractor.INPUT_SIZE) {
+                bitmap = ImageUtils.getResizedBitmap(bitmap);
+            }
+            fixtures.add(bitmap);
+        }
+        return fixtures;
+    }
+
+    /** Size and CRC32 of a model, which tell apart the models shipped by different versions. */
+    private static String fingerprint(ByteBuffer model) {
+        ByteBuffer view = model.duplicate();
+        view.rewind();
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        while (view.hasRemaining()) {
+            int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return view.capacity() + ":" + Long.toHexString(crc.getValue());
+    }
+
+    private MappedByteBuffer map(String name) throws IOException {
+        AssetFileDescriptor fileDescriptor = assets.openFd(name);
+        try (FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = inputStream.getChannel();
+            long startOffset = fileDescriptor.getStartOffset();
+            long declaredLength = fileDescriptor.getDeclaredLength();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        }
+    }
+}
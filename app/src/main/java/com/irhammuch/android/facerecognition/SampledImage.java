@@ -0,0 +1,207 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * An image file decoded upright at a reduced resolution for face detection, that can cut faces
+ * at the resolution the model needs.
+ *
+ * The file is subsampled with {@code inSampleSize} so its long side stays just above the
+ * requested size, which keeps a 48MP photo to a few MB. Faces that are at least
+ * {@link EmbeddingExtractor#INPUT_SIZE} pixels in that decode are cropped from it; smaller ones
+ * are decoded again from the file with {@link BitmapRegionDecoder}, only their region and only
+ * as finely as the model input requires.
+ */
+public class SampledImage {
+    private static final String TAG = "SampledImage";
+
+    /** Long side, in pixels, images are decoded at for face detection by default. */
+    public static final int DEFAULT_DETECTION_SIZE = 1280;
+
+    public final String path;
+    /** Upright subsampled image. */
+    public final Bitmap bitmap;
+    /** Factor between the file and {@link #bitmap}. */
+    public final int sampleSize;
+    /** Clockwise rotation from the file's pixels to upright. */
+    public final int rotation;
+    // Size of the file's pixels, before rotation.
+    private final int width;
+    private final int height;
+
+    private BitmapRegionDecoder regionDecoder;
+    private boolean regionDecoderFailed = false;
+
+    private SampledImage(String path, Bitmap bitmap, int sampleSize, int rotation, int width, int height) {
+        this.path = path;
+        this.bitmap = bitmap;
+        this.sampleSize = sampleSize;
+        this.rotation = rotation;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Decodes {@code path} with its long side at least {@code detectionSize}, or full size when
+     * it is smaller.
+     *
+     * @return null when the file can't be decoded
+     */
+    @Nullable
+    public static SampledImage decode(String path, int detectionSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Could not decode " + path);
+            return null;
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(Math.max(width, height), detectionSize);
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null) {
+            Log.w(TAG, "Could not decode " + path);
+            return null;
+        }
+
+        int rotation = rotationOf(path);
+        if (rotation != 0) {
+            bitmap = ImageUtils.rotateBitmap(bitmap, rotation, false);
+        }
+        return new SampledImage(path, bitmap, options.inSampleSize, rotation, width, height);
+    }
+
+    /** Decodes {@code path} with its short side at least {@code size}, e.g. for thumbnails. */
+    @Nullable
+    public static Bitmap decodeThumbnail(String path, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(Math.min(options.outWidth, options.outHeight), size);
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /** Largest power of two that keeps {@code length / sampleSize} at least {@code target}. */
+    private static int sampleSize(int length, int target) {
+        int sampleSize = 1;
+        while (length / (sampleSize * 2) >= target) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /** Cuts the face in {@code box}, in {@link #bitmap} coordinates, at the model input size. */
+    public Bitmap cropFace(Rect box) {
+        return cropFace(FaceAlignment.fromBox(box, false));
+    }
+
+    /** Cuts the face aligned by {@code alignment}, in {@link #bitmap} coordinates. */
+    public Bitmap cropFace(FaceAlignment alignment) {
+        Rect box = alignment.sourceBounds();
+        int faceSize = Math.min(box.width(), box.height());
+        if (sampleSize > 1 && faceSize < EmbeddingExtractor.INPUT_SIZE && !regionDecoderFailed) {
+            Bitmap face = cropFaceFromFile(box, alignment);
+            if (face != null) {
+                return face;
+            }
+        }
+        return ImageUtils.cropFace(bitmap, alignment);
+    }
+
+    /** Releases the decode, faces can't be cropped afterwards. */
+    public void recycle() {
+        bitmap.recycle();
+        if (regionDecoder != null) {
+            regionDecoder.recycle();
+            regionDecoder = null;
+        }
+    }
+
+    @Nullable
+    private Bitmap cropFaceFromFile(Rect box, FaceAlignment alignment) {
+        if (regionDecoder == null) {
+            try {
+                regionDecoder = BitmapRegionDecoder.newInstance(path, false);
+            } catch (IOException e) {
+                // e.g. a format without region decoding
+                regionDecoderFailed = true;
+                return null;
+            }
+        }
+
+        // The face box in full resolution upright pixels, and its part inside the image.
+        int uprightWidth = rotation % 180 == 0 ? width : height;
+        int uprightHeight = rotation % 180 == 0 ? height : width;
+        Rect face = new Rect(box.left * sampleSize, box.top * sampleSize,
+                box.right * sampleSize, box.bottom * sampleSize);
+        Rect visible = new Rect(Math.max(0, face.left), Math.max(0, face.top),
+                Math.min(uprightWidth, face.right), Math.min(uprightHeight, face.bottom));
+        if (visible.width() <= 0 || visible.height() <= 0) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(Math.min(face.width(), face.height()), EmbeddingExtractor.INPUT_SIZE);
+        Bitmap region = regionDecoder.decodeRegion(toFile(visible), options);
+        if (region == null) {
+            return null;
+        }
+        if (rotation != 0) {
+            region = ImageUtils.rotateBitmap(region, rotation, false);
+        }
+
+        // Out of frame parts of the crop are left white, like in the full decode.
+        float regionSample = options.inSampleSize;
+        Bitmap cropped = ImageUtils.cropFace(region, alignment.transformed(sampleSize / regionSample,
+                -visible.left / regionSample, -visible.top / regionSample));
+        region.recycle();
+        return cropped;
+    }
+
+    /** Maps a rectangle in upright full resolution pixels to the file's pixels. */
+    private Rect toFile(Rect upright) {
+        switch (rotation) {
+            case 90:
+                return new Rect(upright.top, height - upright.right, upright.bottom, height - upright.left);
+            case 180:
+                return new Rect(width - upright.right, height - upright.bottom,
+                        width - upright.left, height - upright.top);
+            case 270:
+                return new Rect(width - upright.bottom, upright.left, width - upright.top, upright.right);
+            default:
+                return new Rect(upright);
+        }
+    }
+
+    private static int rotationOf(String path) {
+        try {
+            int orientation = new ExifInterface(path).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
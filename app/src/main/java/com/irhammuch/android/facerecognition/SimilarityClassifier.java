@@ -15,6 +15,8 @@ limitations under the License.
 
 package com.irhammuch.android.facerecognition;
 
+import androidx.annotation.Nullable;
+
 public interface SimilarityClassifier {
     /** An immutable result returned by a Classifier describing what was recognized. */
     class Recognition {
@@ -26,24 +28,35 @@ public interface SimilarityClassifier {
         /** Display name for the recognition. */
         private final String title;
 
-
-        private final Float distance;
-        private Object extra;
+        /** Distance between the embedding and the recognized face, lower is closer. */
+        private final float distance;
+        /** Embedding that was recognized, not copied. */
+        @Nullable
+        private final float[] embedding;
 
         public Recognition(
-                final String id, final String title, final Float distance) {
+                final String id, final String title, final float distance, @Nullable final float[] embedding) {
             this.id = id;
             this.title = title;
             this.distance = distance;
-            this.extra = null;
+            this.embedding = embedding;
+        }
 
+        public String getId() {
+            return id;
         }
 
-        public void setExtra(Object extra) {
-            this.extra = extra;
+        public String getTitle() {
+            return title;
         }
-        public Object getExtra() {
-            return this.extra;
+
+        public float getDistance() {
+            return distance;
+        }
+
+        @Nullable
+        public float[] getEmbedding() {
+            return embedding;
         }
 
         @Override
@@ -57,9 +70,7 @@ public interface SimilarityClassifier {
                 resultString += title + " ";
             }
 
-            if (distance != null) {
-                resultString += String.format("(%.1f%%) ", distance * 100.0f);
-            }
+            resultString += String.format("(%.1f%%) ", distance * 100.0f);
 
             return resultString.trim();
         }
@@ -0,0 +1,139 @@
+package com.irhammuch.android.facerecognition;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How face crops are written into the model input and embeddings read from its output, for
+ * float32 models and for int8 / uint8 quantized ones.
+ *
+ * Pixels are normalized to (value - 128) / 128 as before; a quantized input then maps that
+ * through the input tensor's scale and zero point, precomputed for every channel value. A
+ * quantized output is dequantized with the output tensor's scale and zero point. Models with
+ * float16 weights keep float32 inputs and outputs and take the float32 path.
+ */
+public class TensorFormat {
+
+    private static final float IMAGE_MEAN = 128.0f;
+    private static final float IMAGE_STD = 128.0f;
+
+    /** Element types of the tensors this class reads and writes. */
+    public enum Type {
+        FLOAT32(4), INT8(1), UINT8(1);
+
+        public final int bytes;
+
+        Type(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    public static final TensorFormat FLOAT = new TensorFormat(Type.FLOAT32, 0, 0, Type.FLOAT32, 0, 0);
+
+    public final Type inputType;
+    public final Type outputType;
+    private final float outputScale;
+    private final int outputZeroPoint;
+
+    // Encoded input value of every channel value, for quantized inputs.
+    private final byte[] quantizedPixels = new byte[256];
+    private final float[] floatPixels = new float[256];
+
+    TensorFormat(Type inputType, float inputScale, int inputZeroPoint,
+                 Type outputType, float outputScale, int outputZeroPoint) {
+        if (inputType != Type.FLOAT32 && inputScale <= 0) {
+            throw new IllegalArgumentException("Quantized input without a scale");
+        }
+        if (outputType != Type.FLOAT32 && outputScale <= 0) {
+            throw new IllegalArgumentException("Quantized output without a scale");
+        }
+        this.inputType = inputType;
+        this.outputType = outputType;
+        this.outputScale = outputScale;
+        this.outputZeroPoint = outputZeroPoint;
+
+        int min = inputType == Type.INT8 ? -128 : 0;
+        int max = inputType == Type.INT8 ? 127 : 255;
+        for (int value = 0; value < 256; value++) {
+            floatPixels[value] = (value - IMAGE_MEAN) / IMAGE_STD;
+            if (inputType != Type.FLOAT32) {
+                int quantized = Math.round(floatPixels[value] / inputScale) + inputZeroPoint;
+                quantizedPixels[value] = (byte) Math.max(min, Math.min(max, quantized));
+            }
+        }
+    }
+
+    /** Reads the formats of the first input and output tensor of {@code interpreter}. */
+    public static TensorFormat of(Interpreter interpreter) {
+        Tensor input = interpreter.getInputTensor(0);
+        Tensor output = interpreter.getOutputTensor(0);
+        return new TensorFormat(
+                typeOf(input), input.quantizationParams().getScale(), input.quantizationParams().getZeroPoint(),
+                typeOf(output), output.quantizationParams().getScale(), output.quantizationParams().getZeroPoint());
+    }
+
+    private static Type typeOf(Tensor tensor) {
+        DataType type = tensor.dataType();
+        switch (type) {
+            case FLOAT32:
+                return Type.FLOAT32;
+            case INT8:
+                return Type.INT8;
+            case UINT8:
+                return Type.UINT8;
+            default:
+                throw new IllegalArgumentException("Unsupported tensor type " + type);
+        }
+    }
+
+    public boolean isQuantized() {
+        return inputType != Type.FLOAT32 || outputType != Type.FLOAT32;
+    }
+
+    /** Bytes of one 112x112 RGB crop in the input. */
+    public int cropBytes() {
+        return EmbeddingExtractor.INPUT_SIZE * EmbeddingExtractor.INPUT_SIZE * 3 * inputType.bytes;
+    }
+
+    /** Writes one pixel, channels 0..255, at the position of {@code input}. */
+    public void putPixel(ByteBuffer input, int r, int g, int b) {
+        if (inputType == Type.FLOAT32) {
+            input.putFloat(floatPixels[r]);
+            input.putFloat(floatPixels[g]);
+            input.putFloat(floatPixels[b]);
+        } else {
+            input.put(quantizedPixels[r]);
+            input.put(quantizedPixels[g]);
+            input.put(quantizedPixels[b]);
+        }
+    }
+
+    /** Output array for {@code n} embeddings, to pass to the interpreter. */
+    public Object newOutput(int n) {
+        return outputType == Type.FLOAT32
+                ? new float[n][EmbeddingExtractor.OUTPUT_SIZE]
+                : new byte[n][EmbeddingExtractor.OUTPUT_SIZE];
+    }
+
+    /** Copies embedding {@code row} of an array from {@link #newOutput} into {@code out}. */
+    public void readOutput(Object output, int row, float[] out) {
+        if (outputType == Type.FLOAT32) {
+            System.arraycopy(((float[][]) output)[row], 0, out, 0, EmbeddingExtractor.OUTPUT_SIZE);
+            return;
+        }
+        byte[] values = ((byte[][]) output)[row];
+        boolean signed = outputType == Type.INT8;
+        for (int i = 0; i < EmbeddingExtractor.OUTPUT_SIZE; i++) {
+            int value = signed ? values[i] : values[i] & 0xFF;
+            out[i] = (value - outputZeroPoint) * outputScale;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return inputType + " -> " + outputType;
+    }
+}
@@ -0,0 +1,156 @@
+package com.irhammuch.android.facerecognition;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Samples a face straight out of a YUV_420_888 camera frame into the model input buffer.
+ *
+ * Replaces the NV21 -> JPEG -> Bitmap -> rotate -> crop -> resize chain: only the 112x112
+ * output pixels are visited, each one is looked up through the {@link FaceAlignment}, read from
+ * the Y/U/V planes (honouring row and pixel strides), converted to RGB and written in the
+ * model's input format in a single pass.
+ */
+public class YuvFaceCropper {
+
+    private static final int INPUT_SIZE = 112;
+
+    // Background used where the crop leaves the frame, same as getCropBitmapByCPU.
+    private static final int BACKGROUND = 0xFF;
+
+    /**
+     * Crops the face out of {@code image} and writes it into {@code imgData}.
+     *
+     * @param image     camera frame in YUV_420_888, in sensor orientation
+     * @param rotation  degrees the frame has to be rotated clockwise to be upright
+     * @param alignment the face in upright coordinates, as returned by ML Kit, mirrored for the
+     *                  front camera
+     * @param imgData   destination, receives INPUT_SIZE * INPUT_SIZE * 3 values from its position
+     * @param format    encoding of the values, see {@link EmbeddingExtractor#format()}
+     * @param argb      optional INPUT_SIZE * INPUT_SIZE array that receives the crop as ARGB pixels
+     */
+    public static void crop(Image image, int rotation, FaceAlignment alignment,
+                            ByteBuffer imgData, TensorFormat format, @Nullable int[] argb) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean swap = rotation == 90 || rotation == 270;
+        int uprightWidth = swap ? height : width;
+        int uprightHeight = swap ? width : height;
+
+        int i = 0;
+        for (int oy = 0; oy < INPUT_SIZE; ++oy) {
+            float cy = oy + 0.5f;
+            for (int ox = 0; ox < INPUT_SIZE; ++ox) {
+                float cx = ox + 0.5f;
+                int ux = pixel(alignment.sourceX(cx, cy));
+                int uy = pixel(alignment.sourceY(cx, cy));
+
+                int r, g, b;
+                if (ux < 0 || uy < 0 || ux >= uprightWidth || uy >= uprightHeight) {
+                    r = g = b = BACKGROUND;
+                } else {
+                    // Map the upright coordinate back onto the sensor frame.
+                    int sx = sensorX(ux, uy, rotation, width);
+                    int sy = sensorY(ux, uy, rotation, height);
+
+                    int y = yBuffer.get(sy * yRowStride + sx * yPixelStride) & 0xFF;
+                    int uvIndex = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+                    int u = (uBuffer.get(uvIndex) & 0xFF) - 128;
+                    int v = (vBuffer.get(uvIndex) & 0xFF) - 128;
+
+                    // Full range BT.601, the same conversion the JPEG round-trip applied.
+                    r = clamp(y + ((1436 * v) >> 10));
+                    g = clamp(y - ((352 * u + 731 * v) >> 10));
+                    b = clamp(y + ((1815 * u) >> 10));
+                }
+
+                format.putPixel(imgData, r, g, b);
+
+                if (argb != null) {
+                    argb[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Samples the luma of {@code box}, in upright coordinates, on a {@code size} x {@code size}
+     * grid into {@code luma}. Parts of the box off the frame repeat its edge.
+     */
+    public static void sampleLuma(Image image, int rotation, Rect box, int size, int[] luma) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer yBuffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean swap = rotation == 90 || rotation == 270;
+        int uprightWidth = swap ? height : width;
+        int uprightHeight = swap ? width : height;
+
+        float stepX = (float) box.width() / size;
+        float stepY = (float) box.height() / size;
+        int i = 0;
+        for (int gy = 0; gy < size; gy++) {
+            int uy = Math.max(0, Math.min(uprightHeight - 1, box.top + (int) ((gy + 0.5f) * stepY)));
+            for (int gx = 0; gx < size; gx++) {
+                int ux = Math.max(0, Math.min(uprightWidth - 1, box.left + (int) ((gx + 0.5f) * stepX)));
+                int sx = sensorX(ux, uy, rotation, width);
+                int sy = sensorY(ux, uy, rotation, height);
+                luma[i++] = yBuffer.get(sy * rowStride + sx * pixelStride) & 0xFF;
+            }
+        }
+    }
+
+    /** Sensor column of the upright pixel (ux, uy). */
+    private static int sensorX(int ux, int uy, int rotation, int width) {
+        switch (rotation) {
+            case 90:
+                return uy;
+            case 180:
+                return width - 1 - ux;
+            case 270:
+                return width - 1 - uy;
+            default:
+                return ux;
+        }
+    }
+
+    /** Sensor row of the upright pixel (ux, uy). */
+    private static int sensorY(int ux, int uy, int rotation, int height) {
+        switch (rotation) {
+            case 90:
+                return height - 1 - ux;
+            case 180:
+                return height - 1 - uy;
+            case 270:
+                return ux;
+            default:
+                return uy;
+        }
+    }
+
+    /** Pixel holding a source coordinate, negative ones all off the frame. */
+    private static int pixel(float coordinate) {
+        return coordinate < 0 ? -1 : (int) coordinate;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,225 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentGalleryTest {
+
+    private static float[] vector(float... values) {
+        return values;
+    }
+
+    private static float[] random(Random random, int dimension) {
+        float[] embedding = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            embedding[d] = (float) random.nextGaussian();
+        }
+        return embedding;
+    }
+
+    @Test
+    public void snapshot_findsSameNearestAsGallery() {
+        for (FaceGallery.Metric metric : FaceGallery.Metric.values()) {
+            Random random = new Random(11);
+            FaceGallery gallery = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE, metric);
+            // spans several segments, with a few holes
+            for (int i = 0; i < 700; i++) {
+                gallery.add(String.valueOf(i), random(random, EmbeddingExtractor.OUTPUT_SIZE));
+            }
+            for (int id = 250; id < 260; id++) {
+                gallery.remove(id);
+            }
+            GallerySnapshot snapshot = new ConcurrentGallery(gallery).snapshot();
+            assertEquals(690, snapshot.size());
+
+            FaceGallery.Match expected = new FaceGallery.Match();
+            FaceGallery.Match actual = new FaceGallery.Match();
+            FaceGallery.Matches top = new FaceGallery.Matches(5);
+            for (int q = 0; q < 50; q++) {
+                float[] query = random(random, EmbeddingExtractor.OUTPUT_SIZE);
+                gallery.findNearest(query, expected);
+                assertTrue(snapshot.findNearest(query, actual));
+                assertEquals(expected.id, actual.id);
+                assertEquals(expected.label, actual.label);
+                assertEquals(expected.distance, actual.distance, 1e-4f);
+
+                assertEquals(5, snapshot.findNearest(query, top));
+                assertEquals(expected.id, top.ids[0]);
+            }
+        }
+    }
+
+    @Test
+    public void replace_publishesWithoutChangingOlderSnapshots() {
+        FaceGallery gallery = new FaceGallery(2);
+        gallery.add("a", vector(0, 0));
+        gallery.add("b", vector(5, 5));
+        ConcurrentGallery shared = new ConcurrentGallery(gallery);
+        GallerySnapshot before = shared.snapshot();
+
+        shared.replace("a", Arrays.asList(vector(9, 0), vector(0, 9)));
+        GallerySnapshot after = shared.snapshot();
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        before.findNearest(vector(0, 0), match);
+        assertEquals("a", match.label);
+        assertEquals(0f, match.distance, 0f);
+        assertEquals(2, before.size());
+
+        after.findNearest(vector(0, 0), match);
+        assertEquals("b", match.label);
+        assertEquals(3, after.size());
+        // the wrapped gallery got the same changes, e.g. for its journal
+        assertEquals(3, gallery.size());
+
+        assertEquals(2, shared.removeAll("a"));
+        assertEquals(1, shared.snapshot().size());
+        assertTrue(shared.remove(1));
+        assertTrue(shared.snapshot().isEmpty());
+        assertFalse(shared.snapshot().findNearest(vector(0, 0), match));
+    }
+
+    @Test
+    public void searchesRunWhileEnrolling() throws InterruptedException {
+        final int dimension = 16;
+        final ConcurrentGallery shared = new ConcurrentGallery(new FaceGallery(dimension));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            for (int i = 0; i < 2000; i++) {
+                shared.replace("person" + (i % 50), Arrays.asList(random(random, dimension), random(random, dimension)));
+            }
+        });
+        Thread reader = new Thread(() -> {
+            try {
+                Random random = new Random(2);
+                FaceGallery.Match match = new FaceGallery.Match();
+                int lastSize = 0;
+                for (int i = 0; i < 5000; i++) {
+                    GallerySnapshot snapshot = shared.snapshot();
+                    assertTrue(snapshot.size() >= lastSize);
+                    lastSize = snapshot.size();
+                    if (snapshot.findNearest(random(random, dimension), match)) {
+                        assertNotNull(match.label);
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(100, shared.snapshot().size());
+    }
+
+    @Test
+    public void removals_packTheSnapshotAgain() {
+        Random random = new Random(5);
+        FaceGallery gallery = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE);
+        for (int i = 0; i < 2000; i++) {
+            gallery.add(String.valueOf(i), random(random, EmbeddingExtractor.OUTPUT_SIZE));
+        }
+        ConcurrentGallery shared = new ConcurrentGallery(gallery);
+        // every tenth entry survives, spread over every segment
+        for (int id = 0; id < 2000; id++) {
+            if (id % 10 != 0) {
+                assertTrue(shared.remove(id));
+            }
+        }
+        GallerySnapshot snapshot = shared.snapshot();
+        assertEquals(200, snapshot.size());
+        assertTrue(snapshot.capacity() <= 2 * 200 + GallerySnapshot.SEGMENT_SIZE);
+        assertEquals("1990", snapshot.label(1990));
+        assertNull(snapshot.label(1991));
+
+        FaceGallery.Match expected = new FaceGallery.Match();
+        FaceGallery.Match actual = new FaceGallery.Match();
+        for (int q = 0; q < 20; q++) {
+            float[] query = random(random, EmbeddingExtractor.OUTPUT_SIZE);
+            gallery.findNearest(query, expected);
+            assertTrue(snapshot.findNearest(query, actual));
+            assertEquals(expected.id, actual.id);
+        }
+    }
+
+    @Test
+    public void indexedGallery_isSearchedWhileAWriteIsInProgress() throws InterruptedException {
+        Random random = new Random(8);
+        FaceGallery gallery = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE);
+        gallery.setIndex(new HnswIndex(gallery));
+        gallery.setExactScanLimit(100);
+        final ConcurrentGallery shared = new ConcurrentGallery(gallery);
+        final float[][] embeddings = new float[300][];
+        for (int i = 0; i < embeddings.length; i++) {
+            embeddings[i] = random(random, EmbeddingExtractor.OUTPUT_SIZE);
+            shared.add(String.valueOf(i), embeddings[i]);
+        }
+        assertTrue(gallery.isIndexed());
+
+        // a listener stuck in the middle of a write, like a slow disk
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        gallery.setListener(new FaceGallery.Listener() {
+            @Override
+            public void onAdded(FaceGallery gallery, int id) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onUpdated(FaceGallery gallery, int id) {
+            }
+
+            @Override
+            public void onRemoved(FaceGallery gallery, int id) {
+            }
+
+            @Override
+            public void onRelabeled(FaceGallery gallery, int id) {
+            }
+        });
+        Thread writer = new Thread(() -> shared.add("late", embeddings[0]));
+        writer.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                FaceGallery.Match match = new FaceGallery.Match();
+                for (int i = 0; i < embeddings.length; i += 7) {
+                    assertTrue(shared.findNearest(embeddings[i], match));
+                    assertEquals(String.valueOf(i), match.label);
+                }
+                FaceGallery.Matches top = new FaceGallery.Matches(3);
+                assertEquals(3, shared.findNearest(embeddings[42], top));
+                assertEquals("42", top.labels[0]);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+        reader.join(5000);
+        boolean searched = !reader.isAlive();
+        release.countDown();
+        writer.join();
+        reader.join();
+        assertTrue("search waited for the write", searched);
+        assertNull(failure.get());
+        assertEquals(301, shared.snapshot().size());
+    }
+}
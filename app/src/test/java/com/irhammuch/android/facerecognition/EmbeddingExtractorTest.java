@@ -0,0 +1,19 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EmbeddingExtractorTest {
+
+    @Test
+    public void batchSize_roundsUpToFewSizes() {
+        int[] expected = {1, 2, 4, 4, 8, 8, 8, 8, 16, 16, 16, 16, 16, 16, 16, 16};
+        for (int n = 1; n <= 16; n++) {
+            assertEquals(expected[n - 1], EmbeddingExtractor.batchSize(n, 16));
+        }
+        // never past the max, even when it isn't a power of two
+        assertEquals(12, EmbeddingExtractor.batchSize(9, 12));
+        assertEquals(12, EmbeddingExtractor.batchSize(12, 12));
+    }
+}
@@ -0,0 +1,72 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FaceAlignmentTest {
+
+    private static final float[] TEMPLATE = FaceAlignment.TEMPLATE;
+
+    @Test
+    public void fromLandmarks_templateIsIdentity() {
+        FaceAlignment alignment = FaceAlignment.fromLandmarks(TEMPLATE.clone(), false);
+        assertTrue(alignment.isAligned());
+        assertEquals(10f, alignment.sourceX(10f, 20f), 1e-3f);
+        assertEquals(20f, alignment.sourceY(10f, 20f), 1e-3f);
+    }
+
+    @Test
+    public void fromLandmarks_recoversRotationScaleAndShift() {
+        // the template rotated 30 degrees, scaled 2.5 times and moved
+        double angle = Math.toRadians(30);
+        float a = (float) (2.5 * Math.cos(angle));
+        float b = (float) (2.5 * Math.sin(angle));
+        float[] points = new float[TEMPLATE.length];
+        for (int i = 0; i < TEMPLATE.length; i += 2) {
+            points[i] = a * TEMPLATE[i] - b * TEMPLATE[i + 1] + 300;
+            points[i + 1] = b * TEMPLATE[i] + a * TEMPLATE[i + 1] + 120;
+        }
+
+        FaceAlignment alignment = FaceAlignment.fromLandmarks(points, false);
+        for (int i = 0; i < TEMPLATE.length; i += 2) {
+            assertEquals(points[i], alignment.sourceX(TEMPLATE[i], TEMPLATE[i + 1]), 1e-2f);
+            assertEquals(points[i + 1], alignment.sourceY(TEMPLATE[i], TEMPLATE[i + 1]), 1e-2f);
+        }
+    }
+
+    @Test
+    public void fromLandmarks_flipMirrorsTheCrop() {
+        FaceAlignment alignment = FaceAlignment.fromLandmarks(TEMPLATE.clone(), true);
+        // the left eye of the source shows on the right of the crop
+        float u = EmbeddingExtractor.INPUT_SIZE - TEMPLATE[0];
+        assertEquals(TEMPLATE[0], alignment.sourceX(u, TEMPLATE[1]), 1e-3f);
+        assertEquals(TEMPLATE[1], alignment.sourceY(u, TEMPLATE[1]), 1e-3f);
+    }
+
+    @Test
+    public void fromBox_stretchesTheBox() {
+        FaceAlignment alignment = FaceAlignment.fromBox(100, 50, 156, 274, false);
+        assertFalse(alignment.isAligned());
+        assertEquals(100f, alignment.sourceX(0, 0), 0f);
+        assertEquals(156f, alignment.sourceX(112, 112), 0f);
+        assertEquals(274f, alignment.sourceY(112, 112), 0f);
+
+        FaceAlignment flipped = FaceAlignment.fromBox(100, 50, 156, 274, true);
+        assertEquals(156f, flipped.sourceX(0, 0), 0f);
+        assertEquals(100f, flipped.sourceX(112, 0), 0f);
+
+        assertArrayEquals(new float[]{100, 50, 156, 274}, flipped.sourceBox(), 0f);
+    }
+
+    @Test
+    public void transformed_mapsToTheOtherSource() {
+        FaceAlignment alignment = FaceAlignment.fromBox(10, 20, 66, 76, false);
+        // a region decoded at twice the resolution, starting at (8, 30) of it
+        FaceAlignment region = alignment.transformed(2f, -8f, -30f);
+        assertEquals(12f, region.sourceX(0, 0), 0f);
+        assertEquals(10f, region.sourceY(0, 0), 0f);
+        assertEquals(124f, region.sourceX(112, 112), 0f);
+        assertEquals(122f, region.sourceY(112, 112), 0f);
+    }
+}
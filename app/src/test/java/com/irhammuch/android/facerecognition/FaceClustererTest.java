@@ -0,0 +1,169 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FaceClustererTest {
+
+    private static final int DIMENSION = 8;
+
+    private static FaceGallery gallery() {
+        FaceGallery gallery = new FaceGallery(DIMENSION);
+        gallery.setThreshold(1f);
+        return gallery;
+    }
+
+    /** Point near {@code center} times the first axis, plus noise. */
+    private static float[] near(float center, Random random) {
+        float[] point = new float[DIMENSION];
+        point[0] = center;
+        for (int i = 0; i < DIMENSION; i++) {
+            point[i] += 0.05f * (float) random.nextGaussian();
+        }
+        return point;
+    }
+
+    @Test
+    public void assign_groupsSeparatedFacesInAnyOrder() {
+        Random random = new Random(1);
+        List<float[]> faces = new ArrayList<>();
+        List<Integer> blobs = new ArrayList<>();
+        for (int blob = 0; blob < 4; blob++) {
+            for (int i = 0; i < 30; i++) {
+                faces.add(near(10 * blob, random));
+                blobs.add(blob);
+            }
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < faces.size(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+
+        FaceClusterer clusterer = new FaceClusterer(gallery(), gallery());
+        int[] clusterOfBlob = {-1, -1, -1, -1};
+        for (int i : order) {
+            int cluster = clusterer.clusterOf(clusterer.assign(faces.get(i)));
+            int blob = blobs.get(i);
+            if (clusterOfBlob[blob] < 0) {
+                clusterOfBlob[blob] = cluster;
+            }
+            assertEquals(clusterOfBlob[blob], cluster);
+        }
+        assertEquals(4, clusterer.size());
+        for (int cluster : clusterOfBlob) {
+            assertEquals(30, clusterer.memberCount(cluster));
+        }
+    }
+
+    @Test
+    public void mergePass_joinsClustersWhoseCentroidsCameClose() {
+        Random random = new Random(2);
+        FaceClusterer clusterer = new FaceClusterer(gallery(), gallery(), 2f, 10f, 1000);
+        int a = clusterer.assign(near(0, random));
+        int b = clusterer.assign(near(1.5f, random));
+        assertNotEquals(clusterer.clusterOf(a), clusterer.clusterOf(b));
+
+        clusterer.mergePass();
+        assertEquals(1, clusterer.size());
+        assertEquals(clusterer.clusterOf(a), clusterer.clusterOf(b));
+        assertEquals(clusterer.nameOf(a), clusterer.nameOf(b));
+        assertEquals(2, clusterer.memberCount(clusterer.clusterOf(a)));
+    }
+
+    @Test
+    public void assign_splitsClusterThatSpreadTooFar() {
+        Random random = new Random(3);
+        FaceGallery clusters = gallery();
+        clusters.setThreshold(3f);
+        FaceGallery members = new FaceGallery(DIMENSION);
+        FaceClusterer clusterer = new FaceClusterer(clusters, members, 2f, 1f, 1000);
+        List<Integer> left = new ArrayList<>();
+        List<Integer> right = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            left.add(clusterer.assign(near(0, random)));
+            right.add(clusterer.assign(near(2.5f, random)));
+        }
+
+        assertEquals(2, clusterer.size());
+        Set<Integer> leftClusters = new HashSet<>();
+        Set<Integer> rightClusters = new HashSet<>();
+        for (int i = 0; i < left.size(); i++) {
+            leftClusters.add(clusterer.clusterOf(left.get(i)));
+            rightClusters.add(clusterer.clusterOf(right.get(i)));
+        }
+        assertEquals(1, leftClusters.size());
+        assertEquals(1, rightClusters.size());
+        assertNotEquals(leftClusters, rightClusters);
+    }
+
+    @Test
+    public void removeMember_dropsEmptiedClusters() {
+        Random random = new Random(4);
+        FaceGallery clusters = gallery();
+        FaceClusterer clusterer = new FaceClusterer(clusters, gallery());
+        int a = clusterer.assign(near(0, random));
+        int b = clusterer.assign(near(0, random));
+        int c = clusterer.assign(near(10, random));
+        int cluster = clusterer.clusterOf(a);
+
+        assertTrue(clusterer.removeMember(a));
+        assertFalse(clusterer.removeMember(a));
+        assertNull(clusterer.nameOf(a));
+        assertEquals(1, clusterer.memberCount(cluster));
+
+        assertTrue(clusterer.removeMember(b));
+        assertEquals(0, clusterer.memberCount(cluster));
+        assertNull(clusters.label(cluster));
+        assertEquals(1, clusterer.size());
+        assertNotNull(clusterer.nameOf(c));
+    }
+
+    @Test
+    public void constructor_picksUpStoredMembers() {
+        Random random = new Random(5);
+        FaceGallery clusters = gallery();
+        FaceGallery members = gallery();
+        FaceClusterer clusterer = new FaceClusterer(clusters, members);
+        int a = clusterer.assign(near(0, random));
+        clusterer.assign(near(0, random));
+        int c = clusterer.assign(near(10, random));
+
+        FaceClusterer reopened = new FaceClusterer(clusters, members);
+        assertEquals(2, reopened.size());
+        assertEquals(2, reopened.memberCount(reopened.clusterOf(a)));
+        assertEquals(reopened.clusterOf(a), reopened.clusterOf(reopened.assign(near(0, random))));
+        assertEquals(1, reopened.memberCount(reopened.clusterOf(c)));
+    }
+
+    @Test
+    public void load_rehomesOrphansUnderTheirIds() {
+        Random random = new Random(9);
+        FaceGallery clusters = gallery();
+        FaceGallery members = gallery();
+        FaceClusterer clusterer = new FaceClusterer(clusters, members);
+        int kept = clusterer.assign(near(0, random));
+        int first = clusterer.assign(near(10, random));
+        int second = clusterer.assign(near(10, random));
+        clusters.relabel(clusterer.clusterOf(kept), "alice");
+
+        // a crash after the cluster was removed but before its members were
+        clusters.remove(clusterer.clusterOf(first));
+
+        FaceClusterer loaded = new FaceClusterer(clusters, members);
+        assertEquals(2, loaded.size());
+        assertEquals(3, members.size());
+        assertEquals("alice", loaded.nameOf(kept));
+        assertNotNull(loaded.nameOf(first));
+        assertEquals(loaded.clusterOf(first), loaded.clusterOf(second));
+        assertEquals(2, loaded.memberCount(loaded.clusterOf(first)));
+    }
+}
@@ -0,0 +1,74 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FaceEnrolmentTest {
+
+    private static final int DIMENSION = 4;
+
+    private static float[] near(float x, float y, Random random) {
+        float[] point = {x, y, 0, 0};
+        for (int i = 0; i < DIMENSION; i++) {
+            point[i] += 0.05f * (float) random.nextGaussian();
+        }
+        return point;
+    }
+
+    @Test
+    public void add_skipsNearDuplicates() {
+        FaceEnrolment enrolment = new FaceEnrolment(new FaceGallery(DIMENSION), 1);
+        assertTrue(enrolment.add(new float[]{0, 0, 0, 0}));
+        assertFalse(enrolment.add(new float[]{0.01f, 0, 0, 0}));
+        assertTrue(enrolment.add(new float[]{0.5f, 0, 0, 0}));
+        assertEquals(2, enrolment.sampleCount());
+    }
+
+    @Test
+    public void isDone_afterMaxSamplesOrFrames() {
+        FaceEnrolment enrolment = new FaceEnrolment(new FaceGallery(DIMENSION), 1, 2, 3, 1);
+        enrolment.add(new float[]{0, 0, 0, 0});
+        enrolment.nextFrame();
+        enrolment.nextFrame();
+        assertFalse(enrolment.isDone());
+        enrolment.nextFrame();
+        assertTrue(enrolment.isDone());
+        assertFalse(enrolment.add(new float[]{1, 0, 0, 0}));
+    }
+
+    @Test
+    public void prototypes_dropOutliersAndCoverPoses() {
+        Random random = new Random(1);
+        FaceGallery gallery = new FaceGallery(DIMENSION);
+        FaceEnrolment enrolment = new FaceEnrolment(gallery, 1, 40, 100, 2);
+        for (int i = 0; i < 10; i++) {
+            enrolment.add(near(0, 0, random));
+            enrolment.add(near(0.6f, 0, random));
+        }
+        // a crop that slipped onto someone else
+        enrolment.add(new float[]{0, 5, 0, 0});
+
+        List<float[]> prototypes = enrolment.prototypes();
+        assertEquals(2, prototypes.size());
+        float[] left = prototypes.get(0)[0] < prototypes.get(1)[0] ? prototypes.get(0) : prototypes.get(1);
+        float[] right = left == prototypes.get(0) ? prototypes.get(1) : prototypes.get(0);
+        assertEquals(0f, left[0], 0.1f);
+        assertEquals(0.6f, right[0], 0.1f);
+        assertEquals(0f, left[1], 0.1f);
+        assertEquals(0f, right[1], 0.1f);
+    }
+
+    @Test
+    public void prototypes_smallBurstGivesCentroid() {
+        FaceEnrolment enrolment = new FaceEnrolment(new FaceGallery(DIMENSION), 1);
+        enrolment.add(new float[]{0, 0, 0, 0});
+        enrolment.add(new float[]{0.4f, 0, 0, 0});
+        List<float[]> prototypes = enrolment.prototypes();
+        assertEquals(1, prototypes.size());
+        assertArrayEquals(new float[]{0.2f, 0, 0, 0}, prototypes.get(0), 1e-6f);
+    }
+}
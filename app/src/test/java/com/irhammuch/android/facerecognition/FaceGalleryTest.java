@@ -0,0 +1,281 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FaceGalleryTest {
+
+    private static float[] vector(float... values) {
+        return values;
+    }
+
+    @Test
+    public void findNearest_returnsClosestEntry() {
+        FaceGallery gallery = new FaceGallery(3);
+        gallery.add("a", vector(0, 0, 0));
+        gallery.add("b", vector(1, 0, 0));
+        gallery.add("c", vector(0, 5, 0));
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        assertTrue(gallery.findNearest(vector(0.9f, 0.1f, 0), match));
+        assertEquals("b", match.label);
+        assertEquals(1, match.id);
+        assertEquals(Math.sqrt(0.01 + 0.01), match.distance, 1e-5);
+    }
+
+    @Test
+    public void findNearest_topKClosestFirst() {
+        FaceGallery gallery = new FaceGallery(2);
+        for (int i = 0; i < 10; i++) {
+            gallery.add("face" + i, vector(i, 0));
+        }
+        gallery.remove(4);
+
+        FaceGallery.Matches matches = new FaceGallery.Matches(3);
+        assertEquals(3, gallery.findNearest(vector(4.1f, 0), matches));
+        assertEquals(5, matches.ids[0]);
+        assertEquals(3, matches.ids[1]);
+        assertEquals(6, matches.ids[2]);
+        assertEquals("face3", matches.labels[1]);
+        assertEquals(0.9f, matches.distances[0], 1e-5f);
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        matches.get(2, match);
+        assertEquals("face6", match.label);
+        SimilarityClassifier.Recognition recognition = matches.recognition(0, vector(4.1f, 0));
+        assertEquals("5", recognition.getId());
+        assertEquals("face5", recognition.getTitle());
+        assertEquals(4.1f, recognition.getEmbedding()[0], 0f);
+
+        // the holder is reused, a smaller gallery gives fewer matches
+        FaceGallery small = new FaceGallery(2);
+        small.add("only", vector(1, 1));
+        assertEquals(1, small.findNearest(vector(0, 0), matches));
+        assertEquals(1, matches.count());
+    }
+
+    @Test
+    public void findNearest_onEmptyGallery() {
+        FaceGallery gallery = new FaceGallery(2);
+        FaceGallery.Match match = new FaceGallery.Match();
+        assertFalse(gallery.findNearest(vector(1, 1), match));
+        assertFalse(match.found());
+    }
+
+    @Test
+    public void remove_keepsIdsStableAcrossCompaction() {
+        FaceGallery gallery = new FaceGallery(2);
+        for (int i = 0; i < 8; i++) {
+            gallery.add("face" + i, vector(i, i));
+        }
+        assertTrue(gallery.remove(1));
+        assertTrue(gallery.remove(2));
+        assertTrue(gallery.remove(3)); // triggers compaction
+        assertFalse(gallery.remove(3));
+        assertEquals(5, gallery.size());
+
+        float[] out = new float[2];
+        assertTrue(gallery.embedding(6, out));
+        assertArrayEquals(vector(6, 6), out, 0f);
+        assertEquals("face6", gallery.label(6));
+        assertNull(gallery.label(2));
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(vector(2.2f, 2.2f), match);
+        assertEquals("face4", match.label);
+    }
+
+    @Test
+    public void put_replacesExistingLabel() {
+        FaceGallery gallery = new FaceGallery(2);
+        int id = gallery.put("a", vector(0, 0));
+        assertEquals(id, gallery.put("a", vector(3, 4)));
+        assertEquals(1, gallery.size());
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(vector(0, 0), match);
+        assertEquals(5f, match.distance, 1e-6f);
+    }
+
+    @Test
+    public void replace_storesEveryPrototypeUnderLabel() {
+        FaceGallery gallery = new FaceGallery(2);
+        gallery.add("a", vector(0, 0));
+        gallery.add("a", vector(1, 0));
+        gallery.add("b", vector(9, 9));
+        gallery.replace("a", Arrays.asList(vector(5, 0), vector(0, 5)));
+        assertEquals(3, gallery.size());
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(vector(0, 4), match);
+        assertEquals("a", match.label);
+        assertEquals(1f, match.distance, 1e-6f);
+        assertEquals(2, gallery.removeAll("a"));
+        assertEquals(1, gallery.size());
+    }
+
+    @Test
+    public void add_growsPastInitialCapacity() {
+        FaceGallery gallery = new FaceGallery(4);
+        for (int i = 0; i < 100; i++) {
+            gallery.add(String.valueOf(i), vector(i, 0, 0, 0));
+        }
+        assertEquals(100, gallery.size());
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(vector(73.4f, 0, 0, 0), match);
+        assertEquals("73", match.label);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsWrongDimension() {
+        new FaceGallery(3).add("a", vector(1, 2));
+    }
+
+    @Test
+    public void cosine_matchesByDirection() {
+        FaceGallery gallery = new FaceGallery(3, FaceGallery.Metric.COSINE);
+        gallery.add("x", vector(10, 0, 0));
+        gallery.add("y", vector(0, 0.1f, 0));
+        gallery.add("xy", vector(1, 1, 0));
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        assertTrue(gallery.findNearest(vector(0, 7, 0.5f), match));
+        assertEquals("y", match.label);
+        assertEquals(1 - 7 / Math.sqrt(49.25), match.distance, 1e-5);
+        assertTrue(gallery.isMatch(match));
+
+        // stored vectors are unit length
+        float[] out = new float[3];
+        gallery.embedding(2, out);
+        assertArrayEquals(vector(0.70710677f, 0.70710677f, 0), out, 1e-6f);
+
+        gallery.findNearest(vector(0, 0, 1), match);
+        assertFalse(gallery.isMatch(match));
+    }
+
+    @Test
+    public void euclidean_handlesDimensionsNotMultipleOfFour() {
+        FaceGallery gallery = new FaceGallery(7);
+        gallery.add("a", vector(1, 1, 1, 1, 1, 1, 1));
+        gallery.add("b", vector(1, 1, 1, 1, 1, 1, 4));
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(vector(1, 1, 1, 1, 1, 1, 3), match);
+        assertEquals("b", match.label);
+        assertEquals(1f, match.distance, 1e-6f);
+    }
+
+    @Test
+    public void quantized_findsSameNearestAsFloatScan() {
+        for (FaceGallery.Metric metric : FaceGallery.Metric.values()) {
+            Random random = new Random(3);
+            FaceGallery quantized = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE, metric);
+            FaceGallery exact = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE, metric);
+            quantized.setQuantized(true);
+            float[][] embeddings = new float[500][EmbeddingExtractor.OUTPUT_SIZE];
+            for (int i = 0; i < 500; i++) {
+                float[] embedding = embeddings[i];
+                for (int d = 0; d < embedding.length; d++) {
+                    embedding[d] = (float) random.nextGaussian();
+                }
+                quantized.add(String.valueOf(i), embedding);
+                exact.add(String.valueOf(i), embedding);
+            }
+
+            FaceGallery.Match expected = new FaceGallery.Match();
+            FaceGallery.Match actual = new FaceGallery.Match();
+            for (int q = 0; q < 100; q++) {
+                // a noisy copy of a stored face, like a second photo of the same person
+                float[] query = embeddings[random.nextInt(500)].clone();
+                for (int d = 0; d < query.length; d++) {
+                    query[d] += 0.3f * (float) random.nextGaussian();
+                }
+                exact.findNearest(query, expected);
+                assertTrue(quantized.findNearest(query, actual));
+                assertEquals(expected.id, actual.id);
+                // re-ranked against the decoded codes, not the floats
+                assertEquals(expected.distance, actual.distance, 0.05f);
+            }
+        }
+    }
+
+    @Test
+    public void quantized_keepsOnlyCodes() {
+        FaceGallery gallery = new FaceGallery(3);
+        int id = gallery.add("a", vector(1, -2, 0.5f));
+        gallery.setQuantized(true);
+        assertNull(gallery.vectors());
+        assertEquals(3, gallery.codes().length / gallery.scales().length);
+
+        float[] out = new float[3];
+        assertTrue(gallery.embedding(id, out));
+        assertArrayEquals(vector(1, -2, 0.5f), out, 2f / 127);
+
+        gallery.setQuantized(false);
+        assertNotNull(gallery.vectors());
+        assertTrue(gallery.embedding(id, out));
+        assertArrayEquals(vector(1, -2, 0.5f), out, 2f / 127);
+    }
+
+    @Test
+    public void quantized_survivesCompaction() {
+        FaceGallery gallery = new FaceGallery(2);
+        for (int i = 0; i < 40; i++) {
+            gallery.add("face" + i, vector(i, -i));
+        }
+        gallery.setQuantized(true);
+        gallery.setRerankCount(2);
+        for (int id = 0; id < 20; id++) {
+            gallery.remove(id);
+        }
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(vector(33.2f, -33.2f), match);
+        assertEquals("face33", match.label);
+    }
+
+    @Test
+    public void topK_agreesAcrossQuantizedAndIndexedSearches() {
+        Random random = new Random(5);
+        FaceGallery exact = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE, FaceGallery.Metric.COSINE);
+        FaceGallery quantized = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE, FaceGallery.Metric.COSINE);
+        quantized.setQuantized(true);
+        FaceGallery indexed = new FaceGallery(EmbeddingExtractor.OUTPUT_SIZE, FaceGallery.Metric.COSINE);
+        indexed.setIndex(new HnswIndex(indexed));
+        indexed.setExactScanLimit(0);
+        for (int i = 0; i < 300; i++) {
+            float[] embedding = new float[EmbeddingExtractor.OUTPUT_SIZE];
+            for (int d = 0; d < embedding.length; d++) {
+                embedding[d] = (float) random.nextGaussian();
+            }
+            exact.add(String.valueOf(i), embedding);
+            quantized.add(String.valueOf(i), embedding);
+            indexed.add(String.valueOf(i), embedding);
+        }
+
+        float[] query = new float[EmbeddingExtractor.OUTPUT_SIZE];
+        exact.embedding(42, query);
+        FaceGallery.Matches expected = new FaceGallery.Matches(12);
+        FaceGallery.Matches actual = new FaceGallery.Matches(12);
+        assertEquals(12, exact.findNearest(query, expected));
+        assertEquals(42, expected.ids[0]);
+        assertEquals(0f, expected.distances[0], 1e-5f);
+        for (int i = 1; i < 12; i++) {
+            assertTrue(expected.distances[i - 1] <= expected.distances[i]);
+        }
+
+        FaceGallery.Match nearest = new FaceGallery.Match();
+        exact.findNearest(query, nearest);
+        assertEquals(nearest.id, expected.ids[0]);
+
+        assertEquals(12, quantized.findNearest(query, actual));
+        assertEquals(42, actual.ids[0]);
+        assertEquals(12, indexed.findNearest(query, actual));
+        assertEquals(42, actual.ids[0]);
+        assertEquals(expected.distances[0], actual.distances[0], 1e-5f);
+    }
+}
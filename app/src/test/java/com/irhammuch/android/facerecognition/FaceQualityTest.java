@@ -0,0 +1,55 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FaceQualityTest {
+
+    @Test
+    public void check_dropsSmallAndTurnedFaces() {
+        FaceQuality quality = new FaceQuality();
+        assertEquals(FaceQuality.Decision.EMBED, quality.check(100, 10, -5, null, null));
+        assertEquals(FaceQuality.Decision.DROP, quality.check(20, 0, 0, null, null));
+        assertEquals(FaceQuality.Decision.DROP, quality.check(100, -60, 0, null, null));
+        assertEquals(FaceQuality.Decision.DROP, quality.check(100, 0, 50, null, null));
+
+        quality.setMaxYaw(70);
+        assertEquals(FaceQuality.Decision.EMBED, quality.check(100, -60, 0, null, null));
+    }
+
+    @Test
+    public void check_defersClosedEyes() {
+        FaceQuality quality = new FaceQuality();
+        assertEquals(FaceQuality.Decision.DEFER, quality.check(100, 0, 0, 0.05f, 0.1f));
+        // a wink or a missing probability is not enough
+        assertEquals(FaceQuality.Decision.EMBED, quality.check(100, 0, 0, 0.05f, 0.9f));
+        assertEquals(FaceQuality.Decision.EMBED, quality.check(100, 0, 0, 0.05f, null));
+    }
+
+    @Test
+    public void copy_keepsSettings() {
+        FaceQuality copy = new FaceQuality().setMinFaceSize(10).setMaxYaw(70).setMinEyeOpen(0).copy();
+        assertEquals(FaceQuality.Decision.EMBED, copy.check(20, -60, 0, 0.05f, 0.1f));
+        assertEquals(FaceQuality.Decision.DROP, copy.check(5, 0, 0, null, null));
+    }
+
+    @Test
+    public void sharpness_separatesDetailFromBlur() {
+        int size = FaceQuality.SHARPNESS_GRID;
+        int[] flat = new int[size * size];
+        int[] gradient = new int[size * size];
+        int[] checkerboard = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                flat[y * size + x] = 128;
+                gradient[y * size + x] = x * 4;
+                checkerboard[y * size + x] = ((x / 2 + y / 2) & 1) == 0 ? 60 : 190;
+            }
+        }
+        assertEquals(0f, FaceQuality.sharpness(flat, size), 0f);
+        // a smooth ramp has no second derivative
+        assertEquals(0f, FaceQuality.sharpness(gradient, size), 0f);
+        assertTrue(FaceQuality.sharpness(checkerboard, size) > 1000);
+    }
+}
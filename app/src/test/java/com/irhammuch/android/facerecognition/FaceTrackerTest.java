@@ -0,0 +1,90 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FaceTrackerTest {
+
+    private final float[] embedding = new float[EmbeddingExtractor.OUTPUT_SIZE];
+
+    // left, top, right, bottom; android.graphics methods only return defaults in host tests
+    private static int[] box(int left, int top, int right, int bottom) {
+        return new int[]{left, top, right, bottom};
+    }
+
+    private FaceTracker.Track frame(FaceTracker tracker, int[] box) {
+        tracker.beginFrame();
+        FaceTracker.Track track = tracker.update(7, box[0], box[1], box[2], box[3]);
+        tracker.endFrame();
+        return track;
+    }
+
+    @Test
+    public void commitsAfterAgreeingVotesThenOnlyVerifies() {
+        FaceTracker tracker = new FaceTracker(3, 10, 0.3f, 0.5f);
+        int[] box = box(0, 0, 100, 100);
+
+        FaceTracker.Track track = frame(tracker, box);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(tracker.needsRecognition(track));
+            tracker.onRecognized(track, embedding, "alice", 0.4f);
+            assertFalse(track.isRecognized());
+            frame(tracker, box);
+        }
+        tracker.onRecognized(track, embedding, "alice", 0.8f);
+        assertTrue(track.isRecognized());
+        assertEquals("alice", track.name);
+        // 0.4, then halfway to 0.4, then halfway to 0.8
+        assertEquals(0.6f, track.distance, 1e-6f);
+
+        for (int i = 1; i < 10; i++) {
+            frame(tracker, box);
+            assertFalse(tracker.needsRecognition(track));
+        }
+        frame(tracker, box);
+        assertTrue(tracker.needsRecognition(track));
+    }
+
+    @Test
+    public void keepsTheIdentityWhileAnotherCollectsVotes() {
+        FaceTracker tracker = new FaceTracker(2, 100, 0.3f, 0.5f);
+        int[] box = box(0, 0, 100, 100);
+        FaceTracker.Track track = frame(tracker, box);
+        tracker.onRecognized(track, embedding, "alice", 0.4f);
+        tracker.onRecognized(track, embedding, "alice", 0.4f);
+        assertEquals("alice", track.name);
+
+        // one miss doesn't change the label
+        tracker.invalidate();
+        tracker.onRecognized(track, embedding, null, 1.5f);
+        assertEquals("alice", track.name);
+        assertTrue(tracker.needsRecognition(track));
+
+        tracker.onRecognized(track, embedding, null, 1.5f);
+        assertTrue(track.isRecognized());
+        assertNull(track.name);
+        assertFalse(tracker.needsRecognition(track));
+    }
+
+    @Test
+    public void jumpingBoxIsRecognizedAgain() {
+        FaceTracker tracker = new FaceTracker(1, 100, 0.3f, 0.5f);
+        FaceTracker.Track track = frame(tracker, box(0, 0, 100, 100));
+        tracker.onRecognized(track, embedding, "alice", 0.4f);
+        frame(tracker, box(10, 0, 110, 100));
+        assertFalse(tracker.needsRecognition(track));
+        frame(tracker, box(300, 0, 400, 100));
+        assertTrue(tracker.needsRecognition(track));
+    }
+
+    @Test
+    public void untrackedFacesCommitAtOnce() {
+        FaceTracker tracker = new FaceTracker();
+        tracker.beginFrame();
+        FaceTracker.Track track = tracker.update(null, 0, 0, 100, 100);
+        tracker.onRecognized(track, embedding, "bob", 0.3f);
+        assertTrue(track.isRecognized());
+        assertEquals("bob", track.name);
+    }
+}
@@ -0,0 +1,54 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameSchedulerTest {
+
+    @Test
+    public void onFrame_dropsFramesWhileDetecting() {
+        FrameScheduler scheduler = new FrameScheduler(10, 100);
+        assertTrue(scheduler.onFrame(0));
+        assertFalse(scheduler.onFrame(5));
+        assertFalse(scheduler.onFrame(9));
+        scheduler.onDetectionFinished(9);
+        // the interval counts from the start of the last detection
+        assertTrue(scheduler.onFrame(10));
+        assertEquals(4, scheduler.framesSeen());
+        assertEquals(2, scheduler.framesDropped());
+        assertEquals(2, scheduler.framesDetected());
+    }
+
+    @Test
+    public void onDetectionFinished_stretchesIntervalToLatency() {
+        FrameScheduler scheduler = new FrameScheduler(10, 100);
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            assertTrue(scheduler.onFrame(now));
+            scheduler.onDetectionFinished(now + 50);
+            now += scheduler.detectionIntervalMs();
+        }
+        assertEquals(60, scheduler.detectionIntervalMs());
+        assertFalse(scheduler.onFrame(now - 1));
+    }
+
+    @Test
+    public void shouldRecognize_keepsRecognitionWithinBudget() {
+        FrameScheduler scheduler = new FrameScheduler(10, 100);
+        assertTrue(scheduler.shouldRecognize(0));
+        scheduler.onRecognitionFinished(0, 20);
+        assertFalse(scheduler.shouldRecognize(99));
+        assertTrue(scheduler.shouldRecognize(100));
+
+        // recognition taking 80ms ends up spread over 160ms
+        long now = 100;
+        for (int i = 0; i < 20; i++) {
+            scheduler.onRecognitionFinished(now, now + 80);
+            now += scheduler.recognitionIntervalMs();
+        }
+        assertEquals(159, scheduler.recognitionIntervalMs(), 1);
+        assertFalse(scheduler.shouldRecognize(now - 1));
+        assertEquals(21, scheduler.recognitions());
+    }
+}
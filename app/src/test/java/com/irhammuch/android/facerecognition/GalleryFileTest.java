@@ -0,0 +1,258 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class GalleryFileTest {
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("gallery", ".bin");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+        return file;
+    }
+
+    private static float[] vector(float... values) {
+        return values;
+    }
+
+    @Test
+    public void journal_isReplayedOnLoad() throws IOException {
+        File file = tempFile();
+        FaceGallery gallery = new FaceGallery(3);
+        GalleryFile galleryFile = new GalleryFile(file);
+        galleryFile.load(gallery);
+        int a = gallery.add("a", vector(1, 0, 0));
+        int b = gallery.add("b", vector(0, 1, 0));
+        int c = gallery.add("c", vector(0, 0, 1));
+        gallery.update(b, vector(0, 2, 0));
+        gallery.remove(c);
+        gallery.relabel(a, "renamed");
+        galleryFile.close();
+
+        FaceGallery loaded = new FaceGallery(3);
+        new GalleryFile(file).load(loaded);
+        assertEquals(2, loaded.size());
+        assertEquals("b", loaded.label(b));
+        assertEquals("renamed", loaded.label(a));
+        assertNull(loaded.label(c));
+        float[] out = new float[3];
+        assertTrue(loaded.embedding(b, out));
+        assertArrayEquals(vector(0, 2, 0), out, 0f);
+        // ids keep counting from where the saved gallery stopped
+        assertEquals(c + 1, loaded.add("d", vector(1, 1, 1)));
+    }
+
+    @Test
+    public void snapshot_roundTripsQuantizedCosineGallery() throws IOException {
+        File file = tempFile();
+        FaceGallery gallery = new FaceGallery(5, FaceGallery.Metric.COSINE);
+        gallery.setQuantized(true);
+        for (int i = 0; i < 50; i++) {
+            gallery.add("face " + i + " \u00e9", vector(i, 1, -i, 2, 0.5f * i));
+        }
+        new GalleryFile(file).save(gallery);
+
+        FaceGallery loaded = new FaceGallery(5, FaceGallery.Metric.COSINE);
+        loaded.setQuantized(true);
+        new GalleryFile(file).load(loaded);
+        assertEquals(50, loaded.size());
+
+        FaceGallery.Match expected = new FaceGallery.Match();
+        FaceGallery.Match actual = new FaceGallery.Match();
+        float[] query = vector(7, 1, -7, 2, 3.4f);
+        gallery.findNearest(query, expected);
+        loaded.findNearest(query, actual);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.label, actual.label);
+        assertEquals(expected.distance, actual.distance, 0f);
+    }
+
+    @Test
+    public void quantizedSnapshot_loadsIntoFloatGallery() throws IOException {
+        File file = tempFile();
+        FaceGallery gallery = new FaceGallery(3);
+        gallery.setQuantized(true);
+        int id = gallery.add("a", vector(1, -2, 0.5f));
+        new GalleryFile(file).save(gallery);
+
+        FaceGallery loaded = new FaceGallery(3);
+        new GalleryFile(file).load(loaded);
+        float[] out = new float[3];
+        assertTrue(loaded.embedding(id, out));
+        assertArrayEquals(vector(1, -2, 0.5f), out, 2f / 127);
+    }
+
+    @Test
+    public void tornRecord_isDropped() throws IOException {
+        File file = tempFile();
+        FaceGallery gallery = new FaceGallery(2);
+        GalleryFile galleryFile = new GalleryFile(file);
+        galleryFile.load(gallery);
+        gallery.add("a", vector(1, 2));
+        gallery.add("b", vector(3, 4));
+        galleryFile.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        FaceGallery loaded = new FaceGallery(2);
+        GalleryFile reopened = new GalleryFile(file);
+        reopened.load(loaded);
+        assertEquals(1, loaded.size());
+        loaded.add("c", vector(5, 6));
+        reopened.close();
+
+        FaceGallery again = new FaceGallery(2);
+        new GalleryFile(file).load(again);
+        assertEquals(loaded.labels(), again.labels());
+    }
+
+    @Test(expected = IOException.class)
+    public void load_rejectsOtherDimension() throws IOException {
+        File file = tempFile();
+        new GalleryFile(file).save(new FaceGallery(4));
+        new GalleryFile(file).load(new FaceGallery(3));
+    }
+
+    @Test
+    public void load_rejectsUnknownMetric() throws IOException {
+        File file = tempFile();
+        new GalleryFile(file).save(new FaceGallery(3));
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // the metric ordinal, little endian, after magic, version and dimension
+            out.seek(12);
+            out.write(new byte[]{99, 0, 0, 0});
+        }
+        try {
+            new GalleryFile(file).load(new FaceGallery(3));
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("metric 99"));
+        }
+    }
+
+    @Test
+    public void open_movesUnreadableFileAside() throws IOException {
+        File file = tempFile();
+        FaceGallery saved = new FaceGallery(4);
+        saved.add("a", vector(1, 2, 3, 4));
+        new GalleryFile(file).save(saved);
+        long length = file.length();
+
+        FaceGallery gallery = new FaceGallery(3);
+        GalleryFile galleryFile = GalleryFile.open(file, gallery);
+        File aside = new File(file.getPath() + GalleryFile.CORRUPT_SUFFIX);
+        aside.deleteOnExit();
+        assertTrue(gallery.isEmpty());
+        assertEquals(length, aside.length());
+
+        // the new file journals as usual
+        gallery.add("b", vector(1, 0, 0));
+        galleryFile.close();
+        FaceGallery loaded = new FaceGallery(3);
+        new GalleryFile(file).load(loaded);
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    public void unalignedFile_staysMarkedUntilEmptied() throws IOException {
+        File file = tempFile();
+        FaceGallery saved = new FaceGallery(3);
+        saved.add("a", vector(1, 0, 0));
+        saved.add("b", vector(0, 1, 0));
+        new GalleryFile(file).save(saved);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // the flags, as written before faces were aligned
+            out.seek(16);
+            out.write(new byte[]{0, 0, 0, 0});
+        }
+
+        FaceGallery gallery = new FaceGallery(3);
+        GalleryFile galleryFile = GalleryFile.open(file, gallery);
+        assertFalse(galleryFile.isAligned());
+        gallery.remove(0);
+        assertFalse(galleryFile.isAligned());
+        gallery.clear();
+        assertTrue(galleryFile.isAligned());
+        gallery.add("c", vector(0, 0, 1));
+        galleryFile.close();
+
+        FaceGallery loaded = new FaceGallery(3);
+        GalleryFile reopened = new GalleryFile(file);
+        reopened.load(loaded);
+        assertTrue(reopened.isAligned());
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    public void deferredRecords_areWrittenOnFlush() throws IOException {
+        File file = tempFile();
+        FaceGallery gallery = new FaceGallery(3);
+        GalleryFile galleryFile = GalleryFile.open(file, gallery);
+        galleryFile.setDeferred(true);
+        long length = file.length();
+
+        int a = gallery.add("a", vector(1, 0, 0));
+        gallery.relabel(a, "b");
+        assertEquals(length, file.length());
+        galleryFile.flush();
+        assertTrue(file.length() > length);
+        galleryFile.close();
+
+        FaceGallery loaded = new FaceGallery(3);
+        new GalleryFile(file).load(loaded);
+        assertEquals("b", loaded.label(a));
+    }
+
+    @Test
+    public void load_rejectsNegativeCount() throws IOException {
+        File file = tempFile();
+        FaceGallery saved = new FaceGallery(3);
+        saved.add("a", vector(1, 0, 0));
+        new GalleryFile(file).save(saved);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // the entry count, after magic, version, dimension, metric and flags
+            out.seek(20);
+            out.write(new byte[]{-1, -1, -1, -1});
+        }
+        try {
+            new GalleryFile(file).load(new FaceGallery(3));
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("Corrupt header"));
+        }
+    }
+
+    @Test
+    public void open_movesFileWithTruncatedVectorsAside() throws IOException {
+        File file = tempFile();
+        FaceGallery saved = new FaceGallery(3);
+        for (int i = 0; i < 20; i++) {
+            saved.add("face " + i, vector(i, 1, 0));
+        }
+        new GalleryFile(file).save(saved);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long length = out.length() - 64;
+            out.setLength(length);
+            // the journal offset, last in the header, still matches the shorter file
+            out.seek(56);
+            for (int shift = 0; shift < 64; shift += 8) {
+                out.write((int) (length >>> shift));
+            }
+        }
+
+        FaceGallery gallery = new FaceGallery(3);
+        GalleryFile.open(file, gallery).close();
+        File aside = new File(file.getPath() + GalleryFile.CORRUPT_SUFFIX);
+        aside.deleteOnExit();
+        assertTrue(aside.exists());
+        assertTrue(gallery.isEmpty());
+    }
+}
@@ -0,0 +1,128 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HnswIndexTest {
+
+    private static final int DIMENSION = 16;
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static FaceGallery indexedGallery(FaceGallery.Metric metric) {
+        FaceGallery gallery = new FaceGallery(DIMENSION, metric);
+        gallery.setExactScanLimit(64);
+        gallery.setIndex(new HnswIndex(gallery));
+        return gallery;
+    }
+
+    private static float recall(FaceGallery indexed, FaceGallery exact, Random random) {
+        FaceGallery.Match expected = new FaceGallery.Match();
+        FaceGallery.Match actual = new FaceGallery.Match();
+        int hits = 0;
+        int queries = 200;
+        for (int q = 0; q < queries; q++) {
+            float[] query = randomVector(random);
+            exact.findNearest(query, expected);
+            indexed.findNearest(query, actual);
+            if (expected.id == actual.id) {
+                hits++;
+                assertEquals(expected.distance, actual.distance, 1e-4f);
+            }
+        }
+        return hits / (float) queries;
+    }
+
+    @Test
+    public void findsSameNearestAsExactScan() {
+        Random random = new Random(1);
+        FaceGallery indexed = indexedGallery(FaceGallery.Metric.EUCLIDEAN);
+        FaceGallery exact = new FaceGallery(DIMENSION);
+        for (int i = 0; i < 2000; i++) {
+            float[] vector = randomVector(random);
+            indexed.add(String.valueOf(i), vector);
+            exact.add(String.valueOf(i), vector);
+        }
+        assertTrue(recall(indexed, exact, random) >= 0.95f);
+    }
+
+    @Test
+    public void cosine_followsUpdatesAndRemovals() {
+        Random random = new Random(2);
+        FaceGallery indexed = indexedGallery(FaceGallery.Metric.COSINE);
+        FaceGallery exact = new FaceGallery(DIMENSION, FaceGallery.Metric.COSINE);
+        for (int i = 0; i < 1000; i++) {
+            float[] vector = randomVector(random);
+            indexed.add(String.valueOf(i), vector);
+            exact.add(String.valueOf(i), vector);
+        }
+        for (int id = 0; id < 1000; id += 3) {
+            float[] vector = randomVector(random);
+            indexed.update(id, vector);
+            exact.update(id, vector);
+        }
+        // Enough removals to compact both galleries.
+        for (int id = 1; id < 1000; id += 3) {
+            indexed.remove(id);
+            exact.remove(id);
+        }
+        assertEquals(exact.size(), indexed.size());
+        assertTrue(recall(indexed, exact, random) >= 0.95f);
+    }
+
+    @Test
+    public void compaction_keepsEveryEntryReachable() {
+        Random random = new Random(3);
+        FaceGallery gallery = indexedGallery(FaceGallery.Metric.EUCLIDEAN);
+        for (int i = 0; i < 1500; i++) {
+            gallery.add(String.valueOf(i), randomVector(random));
+        }
+        // Several waves, each compacting the gallery and dropping most of the waypoints.
+        for (int wave = 0; wave < 4; wave++) {
+            for (int id = 0; id < 1500; id++) {
+                if (gallery.label(id) != null && random.nextInt(3) == 0) {
+                    gallery.remove(id);
+                }
+            }
+        }
+        assertTrue(gallery.size() < 500);
+
+        float[] vector = new float[DIMENSION];
+        FaceGallery.Match match = new FaceGallery.Match();
+        int found = 0;
+        for (int id = 0; id < 1500; id++) {
+            if (gallery.embedding(id, vector)) {
+                assertTrue(gallery.findNearest(vector, match));
+                if (match.id == id) {
+                    found++;
+                }
+            }
+        }
+        assertTrue(found >= 0.99f * gallery.size());
+    }
+
+    @Test
+    public void smallGallery_isScannedExactly() {
+        FaceGallery gallery = indexedGallery(FaceGallery.Metric.EUCLIDEAN);
+        float[] a = new float[DIMENSION];
+        float[] b = new float[DIMENSION];
+        b[0] = 1;
+        gallery.add("a", a);
+        gallery.add("b", b);
+
+        float[] query = new float[DIMENSION];
+        query[0] = 0.8f;
+        FaceGallery.Match match = new FaceGallery.Match();
+        assertTrue(gallery.findNearest(query, match));
+        assertEquals("b", match.label);
+    }
+}
@@ -0,0 +1,66 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InterpreterFactoryTest {
+
+    /** Fails the backends in {@code broken} the way a host without their native code does. */
+    private static InterpreterFactory factory(final List<InterpreterFactory.Backend> tried,
+                                              final InterpreterFactory.Backend... broken) {
+        return new InterpreterFactory() {
+            @Override
+            Loaded tryCreate(ByteBuffer model, Backend backend) {
+                tried.add(backend);
+                if (Arrays.asList(broken).contains(backend)) {
+                    throw new UnsatisfiedLinkError("no tensorflowlite_gpu_jni in java.library.path");
+                }
+                return new Loaded(null, backend, 1000, null);
+            }
+        };
+    }
+
+    @Test
+    public void missingGpuLibrary_fallsBackToCpu() {
+        List<InterpreterFactory.Backend> tried = new ArrayList<>();
+        InterpreterFactory.Loaded loaded = factory(tried, InterpreterFactory.Backend.GPU)
+                .setBackends(InterpreterFactory.Backend.GPU)
+                .create(ByteBuffer.allocate(0));
+        assertEquals(InterpreterFactory.Backend.CPU, loaded.backend);
+        assertEquals(Arrays.asList(InterpreterFactory.Backend.GPU, InterpreterFactory.Backend.CPU), tried);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noWorkingBackend_throws() {
+        factory(new ArrayList<>(), InterpreterFactory.Backend.values())
+                .setBackends(InterpreterFactory.Backend.GPU)
+                .create(ByteBuffer.allocate(0));
+    }
+
+    @Test
+    public void preferredBackend_isTheOnlyOneCreated() {
+        List<InterpreterFactory.Backend> tried = new ArrayList<>();
+        InterpreterFactory.Loaded loaded = factory(tried)
+                .create(ByteBuffer.allocate(0), InterpreterFactory.Backend.NNAPI);
+        assertEquals(InterpreterFactory.Backend.NNAPI, loaded.backend);
+        assertEquals(Arrays.asList(InterpreterFactory.Backend.NNAPI), tried);
+    }
+
+    @Test
+    public void failingPreferredBackend_selectsAmongTheOthers() {
+        List<InterpreterFactory.Backend> tried = new ArrayList<>();
+        InterpreterFactory.Loaded loaded = factory(tried, InterpreterFactory.Backend.GPU)
+                .setBackends(InterpreterFactory.Backend.GPU, InterpreterFactory.Backend.XNNPACK)
+                .setSelectFastest(false)
+                .create(ByteBuffer.allocate(0), InterpreterFactory.Backend.GPU);
+        assertEquals(InterpreterFactory.Backend.XNNPACK, loaded.backend);
+        // the broken backend isn't tried a second time
+        assertEquals(Arrays.asList(InterpreterFactory.Backend.GPU, InterpreterFactory.Backend.XNNPACK), tried);
+    }
+}
@@ -0,0 +1,38 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ModelAccuracyGuardTest {
+
+    @Test
+    public void compare_passesCloseEmbeddings() {
+        float[][] reference = {{1, 0, 0}, {0, 1, 1}};
+        float[][] candidate = {{1, 0.01f, 0}, {0, 2, 2.02f}};
+        ModelAccuracyGuard.Report report = ModelAccuracyGuard.compare(reference, candidate);
+        assertEquals(2, report.count);
+        assertTrue(report.passes());
+    }
+
+    @Test
+    public void compare_failsOnOneDriftingFixture() {
+        float[][] reference = new float[50][];
+        float[][] candidate = new float[50][];
+        for (int i = 0; i < 50; i++) {
+            reference[i] = new float[]{1, i, 0};
+            candidate[i] = new float[]{1, i, 0};
+        }
+        candidate[7] = new float[]{1, 7, 3};
+        ModelAccuracyGuard.Report report = ModelAccuracyGuard.compare(reference, candidate);
+        // the mean still looks fine, the worst fixture does not
+        assertTrue(report.meanCosine > 0.99f);
+        assertFalse(report.passes());
+    }
+
+    @Test
+    public void compare_withoutFixturesNeverPasses() {
+        ModelAccuracyGuard.Report report = ModelAccuracyGuard.compare(new float[0][], new float[0][]);
+        assertFalse(report.passes(0f, 0f));
+    }
+}
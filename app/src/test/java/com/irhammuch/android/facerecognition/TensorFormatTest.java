@@ -0,0 +1,65 @@
+package com.irhammuch.android.facerecognition;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class TensorFormatTest {
+
+    @Test
+    public void putPixel_writesNormalizedFloats() {
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.nativeOrder());
+        TensorFormat.FLOAT.putPixel(buffer, 0, 128, 255);
+        buffer.rewind();
+        assertEquals(-1f, buffer.getFloat(), 0f);
+        assertEquals(0f, buffer.getFloat(), 0f);
+        assertEquals(127f / 128f, buffer.getFloat(), 0f);
+    }
+
+    @Test
+    public void putPixel_quantizesInt8Input() {
+        // the usual int8 input: scale 1/128, zero point 0 maps (v - 128) / 128 to v - 128
+        TensorFormat format = new TensorFormat(TensorFormat.Type.INT8, 1f / 128, 0,
+                TensorFormat.Type.FLOAT32, 0, 0);
+        assertEquals(112 * 112 * 3, format.cropBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        format.putPixel(buffer, 0, 128, 255);
+        assertArrayEquals(new byte[]{-128, 0, 127}, buffer.array());
+    }
+
+    @Test
+    public void putPixel_clampsUint8Input() {
+        TensorFormat format = new TensorFormat(TensorFormat.Type.UINT8, 1f / 256, 128,
+                TensorFormat.Type.FLOAT32, 0, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        format.putPixel(buffer, 0, 128, 255);
+        assertEquals(0, buffer.get(0) & 0xFF);
+        assertEquals(128, buffer.get(1) & 0xFF);
+        assertEquals(255, buffer.get(2) & 0xFF);
+    }
+
+    @Test
+    public void readOutput_dequantizes() {
+        TensorFormat signed = new TensorFormat(TensorFormat.Type.INT8, 1f / 128, 0,
+                TensorFormat.Type.INT8, 0.5f, -10);
+        byte[][] output = (byte[][]) signed.newOutput(2);
+        output[1][0] = -10;
+        output[1][1] = 0;
+        output[1][2] = -128;
+        float[] embedding = new float[EmbeddingExtractor.OUTPUT_SIZE];
+        signed.readOutput(output, 1, embedding);
+        assertEquals(0f, embedding[0], 0f);
+        assertEquals(5f, embedding[1], 0f);
+        assertEquals(-59f, embedding[2], 0f);
+
+        TensorFormat unsigned = new TensorFormat(TensorFormat.Type.UINT8, 1f / 128, 128,
+                TensorFormat.Type.UINT8, 0.25f, 128);
+        output = (byte[][]) unsigned.newOutput(1);
+        output[0][0] = (byte) 255;
+        unsigned.readOutput(output, 0, embedding);
+        assertEquals(127 * 0.25f, embedding[0], 0f);
+    }
+}